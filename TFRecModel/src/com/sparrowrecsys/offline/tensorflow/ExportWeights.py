@@ -0,0 +1,173 @@
+import csv
+import struct
+import sys
+
+import numpy as np
+import tensorflow as tf
+
+# Dump the weights of a saved NeuralCF / EmbeddingMLP / WideNDeep keras model into the binary format read by
+# com.sparrowrecsys.online.serving.EmbeddedModel, and record TF predictions on sample rows for its agreement check.
+#
+# usage: python ExportWeights.py <saved model dir> <model name> <output weights file> [samples csv] [recorded csv] [rows]
+# e.g.   python ExportWeights.py modeldata/neuralcf/002 neuralcf modeldata/neuralcf/model.weights \
+#            sampledata/testSamples.csv modeldata/neuralcf/recorded.csv 1000
+#        java com.sparrowrecsys.online.serving.EmbeddedModel modeldata/neuralcf/model.weights modeldata/neuralcf/recorded.csv
+
+MAGIC = 0x4D525053
+VERSION = 1
+
+COLUMN_NUMERIC = 0
+COLUMN_IDENTITY_EMBEDDING = 1
+COLUMN_VOCABULARY_EMBEDDING = 2
+
+ACTIVATIONS = {'linear': 0, 'relu': 1, 'sigmoid': 2}
+
+INT_FEATURES = {'movieId', 'userId', 'userRatedMovie1', 'releaseYear', 'movieRatingCount', 'userRatingCount'}
+FLOAT_FEATURES = {'movieAvgRating', 'movieRatingStddev', 'userAvgRating', 'userRatingStddev'}
+
+
+def write_int(out, value):
+    out.write(struct.pack('>i', value))
+
+
+def write_utf(out, value):
+    data = value.encode('utf-8')
+    out.write(struct.pack('>H', len(data)))
+    out.write(data)
+
+
+def write_floats(out, values):
+    out.write(np.asarray(values, dtype='>f4').tobytes())
+
+
+def find_variable(layer, column_name):
+    for weight in layer.weights:
+        if column_name + '/' in weight.name:
+            return weight.numpy()
+    raise ValueError('no weights for column ' + column_name + ' in layer ' + layer.name)
+
+
+def dense_features_layers(model):
+    return [layer for layer in model.layers if isinstance(layer, tf.keras.layers.DenseFeatures)]
+
+
+def dense_layers(model):
+    return [layer for layer in model.layers if isinstance(layer, tf.keras.layers.Dense)]
+
+
+def write_columns(out, feature_layers):
+    # DenseFeatures concatenates its columns sorted by name, so this is the model's input order
+    columns = []
+    for layer in feature_layers:
+        for column in sorted(layer._feature_columns, key=lambda c: c.name):
+            columns.append((layer, column))
+    write_int(out, len(columns))
+    for layer, column in columns:
+        if type(column).__name__ == 'NumericColumn':
+            write_utf(out, column.key)
+            write_int(out, COLUMN_NUMERIC)
+            write_int(out, 1)
+            continue
+        categorical = column.categorical_column
+        table = find_variable(layer, column.name)
+        write_utf(out, categorical.key)
+        if hasattr(categorical, 'vocabulary_list'):
+            write_int(out, COLUMN_VOCABULARY_EMBEDDING)
+            write_int(out, column.dimension)
+            write_int(out, len(categorical.vocabulary_list))
+            for word in categorical.vocabulary_list:
+                write_utf(out, word)
+        else:
+            write_int(out, COLUMN_IDENTITY_EMBEDDING)
+            write_int(out, column.dimension)
+            write_int(out, categorical.num_buckets)
+        write_floats(out, table.reshape(-1))
+
+
+def write_layers(out, layers):
+    write_int(out, len(layers))
+    for layer in layers:
+        kernel, bias = layer.get_weights()
+        write_int(out, kernel.shape[0])
+        write_int(out, kernel.shape[1])
+        write_int(out, ACTIVATIONS[layer.get_config()['activation']])
+        write_floats(out, kernel.reshape(-1))
+        write_floats(out, bias)
+
+
+def write_cross(out, wide_layer):
+    if wide_layer is None:
+        write_int(out, 0)
+        return
+    indicator = wide_layer._feature_columns[0]
+    crossed = indicator.categorical_column
+    key1, key2 = crossed.keys
+    rows1, rows2 = key1.num_buckets, key2.num_buckets
+    # bucket of every id pair computed with TF's own hashed cross, so the Java side needs no fingerprint hashing
+    ids1 = np.repeat(np.arange(rows1, dtype=np.int64), rows2).reshape(-1, 1)
+    ids2 = np.tile(np.arange(rows2, dtype=np.int64), rows1).reshape(-1, 1)
+    cross = tf.sparse.cross_hashed([tf.sparse.from_dense(ids1), tf.sparse.from_dense(ids2)],
+                                   num_buckets=crossed.hash_bucket_size)
+    buckets = tf.sparse.to_dense(cross).numpy().reshape(-1)
+    write_int(out, 1)
+    write_utf(out, key1.key)
+    write_utf(out, key2.key)
+    write_int(out, rows1)
+    write_int(out, rows2)
+    out.write(buckets.astype('>i2').tobytes())
+
+
+def export(model, model_name, output_path):
+    feature_layers = dense_features_layers(model)
+    wide_layer = None
+    deep_layers = []
+    for layer in feature_layers:
+        if any(type(c).__name__ == 'IndicatorColumn' for c in layer._feature_columns):
+            wide_layer = layer
+        else:
+            deep_layers.append(layer)
+    # neural cf concatenates the item tower before the user tower
+    deep_layers.sort(key=lambda layer: 0 if any(c.name.startswith('movieId') for c in layer._feature_columns) else 1)
+
+    with open(output_path, 'wb') as out:
+        write_int(out, MAGIC)
+        write_int(out, VERSION)
+        write_utf(out, model_name)
+        write_columns(out, deep_layers)
+        write_layers(out, dense_layers(model))
+        write_cross(out, wide_layer)
+    print('exported ' + model_name + ' weights to ' + output_path)
+
+
+def record(model, samples_path, recorded_path, rows):
+    with open(samples_path) as samples:
+        reader = csv.DictReader(samples)
+        records = [row for _, row in zip(range(rows), reader)]
+    inputs = {}
+    for name in model.input.keys():
+        values = [row.get(name, '') for row in records]
+        if name in INT_FEATURES:
+            inputs[name] = np.array([int(float(v or 0)) for v in values], dtype=np.int32)
+        elif name in FLOAT_FEATURES:
+            inputs[name] = np.array([float(v or 0) for v in values], dtype=np.float32)
+        else:
+            inputs[name] = np.array(values, dtype=object)
+    predictions = model.predict(inputs).reshape(-1)
+    with open(recorded_path, 'w', newline='') as recorded:
+        writer = csv.writer(recorded)
+        header = list(records[0].keys()) + ['prediction']
+        writer.writerow(header)
+        for row, prediction in zip(records, predictions):
+            writer.writerow([row[key] for key in header[:-1]] + [repr(float(prediction))])
+    print('recorded ' + str(len(records)) + ' predictions to ' + recorded_path)
+
+
+if __name__ == '__main__':
+    if len(sys.argv) < 4:
+        print('usage: python ExportWeights.py <saved model dir> <model name> <output weights file> '
+              '[samples csv] [recorded csv] [rows]')
+        sys.exit(1)
+    saved_model = tf.keras.models.load_model(sys.argv[1])
+    export(saved_model, sys.argv[2], sys.argv[3])
+    if len(sys.argv) >= 6:
+        record(saved_model, sys.argv[4], sys.argv[5], int(sys.argv[6]) if len(sys.argv) > 6 else 1000)
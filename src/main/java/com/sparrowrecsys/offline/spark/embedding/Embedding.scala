@@ -3,7 +3,9 @@ package com.sparrowrecsys.offline.spark.embedding
 import java.io.{BufferedWriter, File, FileWriter}
 
 import com.sparrowrecsys.online.factory.JedisFactory
-import com.sparrowrecsys.online.util.Config.{REDIS_ENDPOINT, REDIS_PORT}
+import com.sparrowrecsys.online.model.{EmbeddingSnapshot, PqEmbeddingMatrix}
+import com.sparrowrecsys.online.retrieval.HnswIndex
+import com.sparrowrecsys.online.util.Config.{HNSW_EF_CONSTRUCTION, HNSW_M, IS_ENABLE_PQ_EMBEDDING, PQ_SUBSPACES, PQ_TRAIN_ITERATIONS, REDIS_ENDPOINT, REDIS_PORT}
 import org.apache.log4j.{Level, Logger}
 import org.apache.spark.SparkConf
 import org.apache.spark.ml.feature.{BucketedRandomProjectionLSH}
@@ -88,6 +90,11 @@ object Embedding {
     }
     bw.close()
 
+    //binary snapshot alongside the csv, memory mapped by the online server
+    EmbeddingSnapshot.write(EmbeddingSnapshot.getSnapshotPath(file.getPath),
+      userEmbeddings.map(_._1.toInt).toArray, userEmbeddings.map(_._2).toArray)
+    writePqEmbedding(file.getPath)
+
     if (saveToRedis) {
       val redisClient = jedisFactory.createRedisClient(REDIS_ENDPOINT, REDIS_PORT);
 
@@ -102,6 +109,20 @@ object Embedding {
     }
   }
 
+  //product-quantized copy of the embedding snapshot, loaded online when pq embedding is enabled
+  def writePqEmbedding(embPath:String): Unit = {
+    if (IS_ENABLE_PQ_EMBEDDING) {
+      val snapshot = EmbeddingSnapshot.open(EmbeddingSnapshot.getSnapshotPath(embPath))
+      //the quantizer can't split such vectors, skip it rather than failing the job before redis and lsh
+      if (snapshot.getDim % PQ_SUBSPACES != 0) {
+        println(s"Skip pq embedding of $embPath, dimension ${snapshot.getDim} isn't divisible by $PQ_SUBSPACES subspaces")
+      } else {
+        val quantized = PqEmbeddingMatrix.train(snapshot, PQ_SUBSPACES, PQ_TRAIN_ITERATIONS)
+        quantized.write(PqEmbeddingMatrix.getPqPath(embPath))
+      }
+    }
+  }
+
   //noinspection DuplicatedCode
   def trainItem2vec(sparkSession: SparkSession, samples : RDD[Seq[String]], embLength:Int, embOutputFilename:String, saveToRedis:Boolean, redisKeyPrefix:String): Word2VecModel = {
     val word2vec = new Word2Vec()
@@ -125,6 +146,14 @@ object Embedding {
     }
     bw.close()
 
+    //binary snapshot alongside the csv, memory mapped by the online server
+    val movieIds = model.getVectors.keys.toArray
+    EmbeddingSnapshot.write(EmbeddingSnapshot.getSnapshotPath(file.getPath),
+      movieIds.map(_.toInt), movieIds.map(model.getVectors(_)))
+    writePqEmbedding(file.getPath)
+    //prebuilt HNSW graph of the snapshot, loaded online instead of building it when recall is by HNSW
+    HnswIndex.writeIndex(file.getPath, HNSW_M, HNSW_EF_CONSTRUCTION)
+
     if (saveToRedis) {
       val redisClient = jedisFactory.createRedisClient(REDIS_ENDPOINT, REDIS_PORT);
 
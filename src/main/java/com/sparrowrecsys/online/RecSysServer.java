@@ -1,19 +1,22 @@
 package com.sparrowrecsys.online;
 
 import com.sparrowrecsys.online.datamanager.DataManager;
+import com.sparrowrecsys.online.recprocess.SimilarMovieCache;
 import com.sparrowrecsys.online.service.MovieService;
 import com.sparrowrecsys.online.service.RecForYouService;
 import com.sparrowrecsys.online.service.RecommendationService;
 import com.sparrowrecsys.online.service.SimilarMovieService;
 import com.sparrowrecsys.online.service.UserService;
-import java.net.InetSocketAddress;
 import java.net.URI;
 import java.net.URL;
+import javax.servlet.http.HttpServlet;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
 import org.eclipse.jetty.servlet.DefaultServlet;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
 import org.eclipse.jetty.util.resource.Resource;
+import org.eclipse.jetty.util.thread.QueuedThreadPool;
 
 import static com.sparrowrecsys.online.util.Constants.*;
 import static com.sparrowrecsys.online.util.Config.*;
@@ -37,9 +40,20 @@ public class RecSysServer {
             port = Integer.parseInt(System.getenv("PORT"));
         } catch (NumberFormatException ignored) {}
 
-        //set ip and port number
-        InetSocketAddress inetAddress = new InetSocketAddress("0.0.0.0", port);
-        Server server = new Server(inetAddress);
+        //jetty threads only parse requests and write responses, recommendations run on the services' worker pool.
+        //acceptors and selectors are leased from the same pool, so it keeps SERVER_MIN_THREADS for requests on top of them
+        int maxThreads = Math.max(SERVER_MAX_THREADS, SERVER_ACCEPTORS + SERVER_SELECTORS + SERVER_MIN_THREADS);
+        System.out.println("Jetty thread pool of " + maxThreads + " threads, " + SERVER_ACCEPTORS + " acceptors and "
+                + SERVER_SELECTORS + " selectors.");
+        QueuedThreadPool threadPool = new QueuedThreadPool(maxThreads, SERVER_MIN_THREADS);
+        threadPool.setName("jetty");
+        Server server = new Server(threadPool);
+
+        //set ip and port number, with explicit acceptor and selector threads
+        ServerConnector connector = new ServerConnector(server, SERVER_ACCEPTORS, SERVER_SELECTORS);
+        connector.setHost("0.0.0.0");
+        connector.setPort(port);
+        server.addConnector(connector);
 
         //get index.html path
         URL webRootLocation = this.getClass().getResource("/webroot/index.html");
@@ -58,6 +72,9 @@ public class RecSysServer {
                 webRootUri.getPath() + "modeldata/item2vecEmb.csv",
                 webRootUri.getPath() + "modeldata/userEmb.csv",
                 REDIS_KEY_PREFIX_ITEM2VEC_EMBEDDING, REDIS_KEY_PREFIX_ITEM2VEC_EMBEDDING_BUCKET, REDIS_KEY_PREFIX_USER_EMBEDDING);
+        DataManager.getInstance().loadEmbeddedModels(webRootUri.getPath() + "modeldata/");
+        DataManager.getInstance().startReloader(DATA_RELOAD_INTERVAL_SECONDS);
+        SimilarMovieCache.getInstance().startPrecompute(SIMILAR_MOVIE_CACHE_PRECOMPUTE_MODELS);
 
         //create server context
         ServletContextHandler context = new ServletContextHandler();
@@ -70,9 +87,9 @@ public class RecSysServer {
         context.addServlet(DefaultServlet.class,"/");
         context.addServlet(new ServletHolder(new MovieService()), "/getmovie");
         context.addServlet(new ServletHolder(new UserService()), "/getuser");
-        context.addServlet(new ServletHolder(new SimilarMovieService()), "/getsimilarmovie");
-        context.addServlet(new ServletHolder(new RecommendationService()), "/getrecommendation");
-        context.addServlet(new ServletHolder(new RecForYouService()), "/getrecforyou");
+        context.addServlet(asyncHolder(new SimilarMovieService()), "/getsimilarmovie");
+        context.addServlet(asyncHolder(new RecommendationService()), "/getrecommendation");
+        context.addServlet(asyncHolder(new RecForYouService()), "/getrecforyou");
 
         //set url handler
         server.setHandler(context);
@@ -82,4 +99,11 @@ public class RecSysServer {
         server.start();
         server.join();
     }
+
+    //holder of a servlet served with async processing
+    private static ServletHolder asyncHolder(HttpServlet servlet){
+        ServletHolder holder = new ServletHolder(servlet);
+        holder.setAsyncSupported(true);
+        return holder;
+    }
 }
@@ -0,0 +1,322 @@
+package com.sparrowrecsys.online.datamanager;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+import static com.sparrowrecsys.online.util.Config.CSV_LOADER_THREADS;
+
+/**
+ * CsvLoader, parses a csv file in parallel chunks of a memory-mapped file.
+ *
+ * The file is split at line boundaries into chunks, every chunk is mapped and parsed on a worker thread into its
+ * own result, and the results are returned in file order so the caller can merge them deterministically.
+ * Numbers are parsed straight from the mapped bytes, only string fields allocate. Fields may be quoted with
+ * "" as the escaped quote, as in MovieLens titles containing commas, but a quoted field can't span lines.
+ */
+public class CsvLoader {
+    //chunks smaller than this aren't worth a task
+    private static final long MIN_CHUNK_BYTES = 1 << 20;
+    //a mapped region is limited to 2GB
+    private static final long MAX_CHUNK_BYTES = 1 << 30;
+
+    private CsvLoader(){}
+
+    /**
+     * parse every line of a csv file
+     * @param path  csv file path
+     * @param skipHeader    whether the first line is a header
+     * @param newChunkResult    creates the result a chunk's lines are parsed into
+     * @param parseLine     parses the current line of a record into a chunk result, runs on worker threads
+     * @return  chunk results in file order
+     */
+    public static <R> List<R> load(String path, boolean skipHeader, Supplier<R> newChunkResult,
+                                   BiConsumer<Record, R> parseLine) throws IOException{
+        try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ)) {
+            long size = channel.size();
+            int chunkCount = (int) Math.max(1, Math.min(CSV_LOADER_THREADS * 4L, size / MIN_CHUNK_BYTES));
+            chunkCount = (int) Math.max(chunkCount, (size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+            long[] bounds = new long[chunkCount + 1];
+            bounds[chunkCount] = size;
+            for (int i = 1; i < chunkCount; i++){
+                bounds[i] = nextLineStart(channel, Math.max(bounds[i - 1], size / chunkCount * i));
+            }
+
+            ExecutorService parsePool = Executors.newFixedThreadPool(Math.min(CSV_LOADER_THREADS, chunkCount));
+            try {
+                List<Future<R>> futures = new ArrayList<>(chunkCount);
+                for (int i = 0; i < chunkCount; i++){
+                    MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, bounds[i], bounds[i + 1] - bounds[i]);
+                    boolean skipFirstLine = skipHeader && i == 0;
+                    futures.add(parsePool.submit(() -> parseChunk(chunk, skipFirstLine, newChunkResult.get(), parseLine)));
+                }
+                List<R> results = new ArrayList<>(chunkCount);
+                for (Future<R> future : futures){
+                    results.add(future.get());
+                }
+                return results;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while loading " + path, e);
+            } catch (ExecutionException e) {
+                throw new IOException("failed to parse " + path, e.getCause());
+            } finally {
+                parsePool.shutdownNow();
+            }
+        }
+    }
+
+    //first line start at or after a position
+    private static long nextLineStart(FileChannel channel, long position) throws IOException{
+        if (position == 0){
+            return 0;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(4096);
+        long offset = position - 1;
+        while (offset < channel.size()){
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0){
+                break;
+            }
+            for (int i = 0; i < read; i++){
+                if (buffer.get(i) == '\n'){
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+        return channel.size();
+    }
+
+    private static <R> R parseChunk(ByteBuffer chunk, boolean skipFirstLine, R result, BiConsumer<Record, R> parseLine){
+        Record record = new Record(chunk);
+        int limit = chunk.limit();
+        int lineStart = 0;
+        while (lineStart < limit){
+            int lineEnd = lineStart;
+            while (lineEnd < limit && chunk.get(lineEnd) != '\n'){
+                lineEnd++;
+            }
+            int next = lineEnd + 1;
+            if (lineEnd > lineStart && chunk.get(lineEnd - 1) == '\r'){
+                lineEnd--;
+            }
+            if (skipFirstLine){
+                skipFirstLine = false;
+            } else if (lineEnd > lineStart){
+                record.reset(lineStart, lineEnd);
+                parseLine.accept(record, result);
+            }
+            lineStart = next;
+        }
+        return result;
+    }
+
+    /**
+     * Record, cursor over the fields of the current line, fields are read from left to right
+     */
+    public static class Record {
+        //exact float division by powers of ten, 10^10 is the largest one a float holds exactly
+        private static final float[] FLOAT_POW10 = {1f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+        private final ByteBuffer buffer;
+        private int lineStart;
+        private int lineEnd;
+        private int position;
+        private int fieldCount;
+        private byte[] scratch = new byte[256];
+
+        Record(ByteBuffer buffer){
+            this.buffer = buffer;
+        }
+
+        void reset(int lineStart, int lineEnd){
+            this.lineStart = lineStart;
+            this.lineEnd = lineEnd;
+            this.position = lineStart;
+            this.fieldCount = -1;
+        }
+
+        //number of fields of the line, commas inside quotes don't count
+        public int fieldCount(){
+            if (fieldCount < 0){
+                int count = 1;
+                boolean quoted = false;
+                for (int i = lineStart; i < lineEnd; i++){
+                    byte b = buffer.get(i);
+                    if (b == '"'){
+                        quoted = !quoted;
+                    } else if (b == ',' && !quoted){
+                        count++;
+                    }
+                }
+                fieldCount = count;
+            }
+            return fieldCount;
+        }
+
+        public boolean hasNext(){
+            return position <= lineEnd;
+        }
+
+        //end of the unquoted field starting at position
+        private int fieldEnd(){
+            int end = position;
+            while (end < lineEnd && buffer.get(end) != ','){
+                end++;
+            }
+            return end;
+        }
+
+        public void skip(){
+            if (position < lineEnd && buffer.get(position) == '"'){
+                nextString();
+                return;
+            }
+            position = fieldEnd() + 1;
+        }
+
+        public int nextInt(){
+            long value = nextLong();
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE){
+                throw new NumberFormatException("int out of range: " + value);
+            }
+            return (int) value;
+        }
+
+        public long nextLong(){
+            int end = fieldEnd();
+            int i = skipSpaces(position, end);
+            int last = trimSpaces(i, end);
+            boolean negative = i < last && buffer.get(i) == '-';
+            if (i < last && (buffer.get(i) == '-' || buffer.get(i) == '+')){
+                i++;
+            }
+            if (i == last || last - i > 18){
+                return Long.parseLong(fallback(end));
+            }
+            long value = 0;
+            for (; i < last; i++){
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9){
+                    throw new NumberFormatException("not a number: \"" + fallback(end) + "\"");
+                }
+                value = value * 10 + digit;
+            }
+            position = end + 1;
+            return negative ? -value : value;
+        }
+
+        public float nextFloat(){
+            int end = fieldEnd();
+            int i = skipSpaces(position, end);
+            int last = trimSpaces(i, end);
+            boolean negative = i < last && buffer.get(i) == '-';
+            if (i < last && (buffer.get(i) == '-' || buffer.get(i) == '+')){
+                i++;
+            }
+            long mantissa = 0;
+            int digits = 0;
+            int fractionDigits = -1;
+            for (; i < last; i++){
+                byte b = buffer.get(i);
+                if (b >= '0' && b <= '9'){
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (fractionDigits >= 0){
+                        fractionDigits++;
+                    }
+                } else if (b == '.' && fractionDigits < 0){
+                    fractionDigits = 0;
+                } else {
+                    break;
+                }
+            }
+            //exponents, long mantissas and anything odd go through the JDK, which rounds the same way
+            if (i != last || digits == 0 || digits > 7 || fractionDigits >= FLOAT_POW10.length){
+                return Float.parseFloat(fallback(end));
+            }
+            position = end + 1;
+            float value = fractionDigits > 0 ? mantissa / FLOAT_POW10[fractionDigits] : mantissa;
+            return negative ? -value : value;
+        }
+
+        //next field as a string, unquoted and with "" unescaped if the field is quoted
+        public String nextString(){
+            if (position < lineEnd && buffer.get(position) == '"'){
+                int length = 0;
+                int i = position + 1;
+                while (i < lineEnd){
+                    byte b = buffer.get(i);
+                    if (b == '"'){
+                        if (i + 1 < lineEnd && buffer.get(i + 1) == '"'){
+                            b = '"';
+                            i++;
+                        } else {
+                            i++;
+                            break;
+                        }
+                    }
+                    if (length == scratch.length){
+                        scratch = Arrays.copyOf(scratch, length * 2);
+                    }
+                    scratch[length++] = b;
+                    i++;
+                }
+                //anything between the closing quote and the comma is dropped
+                position = i;
+                position = fieldEnd() + 1;
+                return new String(scratch, 0, length, StandardCharsets.UTF_8);
+            }
+            int end = fieldEnd();
+            String value = decode(position, end);
+            position = end + 1;
+            return value;
+        }
+
+        private String fallback(int end){
+            String value = decode(position, end).trim();
+            position = end + 1;
+            return value;
+        }
+
+        private String decode(int from, int to){
+            int length = to - from;
+            if (length > scratch.length){
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            for (int i = 0; i < length; i++){
+                scratch[i] = buffer.get(from + i);
+            }
+            return new String(scratch, 0, length, StandardCharsets.UTF_8);
+        }
+
+        private int skipSpaces(int from, int to){
+            while (from < to && buffer.get(from) == ' '){
+                from++;
+            }
+            return from;
+        }
+
+        private int trimSpaces(int from, int to){
+            while (to > from && buffer.get(to - 1) == ' '){
+                to--;
+            }
+            return to;
+        }
+    }
+}
@@ -0,0 +1,477 @@
+package com.sparrowrecsys.online.datamanager;
+
+import com.sparrowrecsys.online.model.Embedding;
+import com.sparrowrecsys.online.model.EmbeddingMatrix;
+import com.sparrowrecsys.online.model.EmbeddingSnapshot;
+import com.sparrowrecsys.online.model.PqEmbeddingMatrix;
+import com.sparrowrecsys.online.retrieval.HnswIndex;
+import com.sparrowrecsys.online.retrieval.LshIndex;
+import com.sparrowrecsys.online.serving.EmbeddedModel;
+import com.sparrowrecsys.online.serving.FeatureSchema;
+import com.sparrowrecsys.online.serving.FeatureStore;
+import com.sparrowrecsys.online.util.Config;
+import com.sparrowrecsys.online.util.IntObjectMap;
+import com.sparrowrecsys.online.util.Utility;
+import redis.clients.jedis.Pipeline;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.*;
+
+import static com.sparrowrecsys.online.util.Constants.REDIS_KEY_PREFIX_ITEM2VEC_EMBEDDING_BUCKET;
+
+/**
+ * DataLoader, loads movies, users, ratings, embeddings and indexes from files and Redis into a new DataSnapshot.
+ * A loader is used once, nothing it builds is visible to requests until the snapshot is published.
+ */
+class DataLoader {
+    IntObjectMap<Movie> movieMap;
+    IntObjectMap<User> userMap;
+    HashMap<String, List<Movie>> genreReverseIndexMap;
+    MovieSortIndex movieSortIndex;
+    RatingStore ratingStore;
+    EmbeddingMatrix movieEmbMatrix;
+    EmbeddingMatrix userEmbMatrix;
+    PqEmbeddingMatrix moviePqMatrix;
+    PqEmbeddingMatrix userPqMatrix;
+    HnswIndex movieHnswIndex;
+    LshIndex movieLshIndex;
+    HashMap<String, EmbeddedModel> embeddedModels;
+
+    DataLoader(){
+        this.movieMap = new IntObjectMap<>();
+        this.userMap = new IntObjectMap<>();
+        this.genreReverseIndexMap = new HashMap<>();
+        this.movieSortIndex = MovieSortIndex.EMPTY;
+        this.ratingStore = null;
+        this.movieEmbMatrix = null;
+        this.userEmbMatrix = null;
+        this.moviePqMatrix = null;
+        this.userPqMatrix = null;
+        this.movieHnswIndex = null;
+        this.movieLshIndex = null;
+        this.embeddedModels = new HashMap<>();
+    }
+
+    /**
+     * load all data of the given sources
+     * @param sources   files and Redis keys to load from
+     * @param version   version of the built snapshot
+     * @return  immutable snapshot of the loaded data
+     */
+    DataSnapshot load(DataSources sources, long version) throws Exception{
+        loadMovieData(sources.movieDataPath);
+        loadLinkData(sources.linkDataPath);
+        loadRatingData(sources.ratingDataPath);
+        //average ratings and served fields are final once ratings are loaded, the catalog order is by movie id
+        List<Movie> movies = movieMap.values();
+        movies.sort(Comparator.comparingInt(Movie::getMovieId));
+        //json fragments are encoded once here, responses concatenate them instead of serializing movies
+        movies.forEach(Movie::encodeJson);
+        this.movieSortIndex = MovieSortIndex.build(movies, genreReverseIndexMap);
+        loadMovieEmb(sources.movieEmbPath, sources.movieEmbKey, sources.movieEmbBucketKey);
+        if (Config.RECALL_BY_EMBEDDING_HNSW.equals(Config.RECALL_STRATEGY)){
+            loadMovieHnswIndex(HnswIndex.getIndexPath(sources.movieEmbPath));
+        }
+        if (Config.IS_LOAD_ITEM_FEATURE_FROM_REDIS){
+            loadMovieFeatures("mf:");
+        }
+
+        loadUserEmb(sources.userEmbPath, sources.userRedisKey);
+        if (null != sources.modelDataPath){
+            embeddedModels = loadEmbeddedModels(sources.modelDataPath);
+        }
+        return new DataSnapshot(version, movieMap, userMap, ratingStore, movieSortIndex, movieEmbMatrix, userEmbMatrix,
+                moviePqMatrix, userPqMatrix, movieHnswIndex, movieLshIndex, embeddedModels);
+    }
+
+    private Movie getMovieById(int movieId){
+        return this.movieMap.get(movieId);
+    }
+
+    private User getUserById(int userId){
+        return this.userMap.get(userId);
+    }
+
+    //load movie data from movies.csv, chunks are parsed in parallel and indexed in file order
+    private void loadMovieData(String movieDataPath) throws Exception{
+        System.out.println("Loading movie data from " + movieDataPath + " ...");
+        List<List<Movie>> chunks = CsvLoader.load(movieDataPath, true, ArrayList::new, (record, movies) -> {
+            if (record.fieldCount() == 3){
+                Movie movie = new Movie();
+                movie.setMovieId(record.nextInt());
+                String title = record.nextString().trim();
+                int releaseYear = parseReleaseYear(title);
+                if (releaseYear == -1){
+                    movie.setTitle(title);
+                }else{
+                    movie.setReleaseYear(releaseYear);
+                    movie.setTitle(title.substring(0, title.length()-6).trim());
+                }
+                String genres = record.nextString();
+                if (!genres.trim().isEmpty()){
+                    for (String genre : genres.split("\\|")){
+                        movie.addGenre(genre);
+                    }
+                }
+                movies.add(movie);
+            }
+        });
+        for (List<Movie> movies : chunks){
+            for (Movie movie : movies){
+                for (String genre : movie.getGenres()){
+                    addMovie2GenreIndex(genre, movie);
+                }
+                this.movieMap.put(movie.getMovieId(), movie);
+            }
+        }
+        System.out.println("Loading movie data completed. " + this.movieMap.size() + " movies in total.");
+    }
+
+    //load movie embedding
+    private void loadMovieEmb(String movieEmbPath, String embKey, String embBucketKey) throws Exception{
+        if (Config.EMB_DATA_SOURCE.equals(Config.DATA_SOURCE_FILE)) {
+            String pqPath = PqEmbeddingMatrix.getPqPath(movieEmbPath);
+            if (Config.IS_ENABLE_PQ_EMBEDDING && new File(pqPath).exists()) {
+                loadMoviePqEmb(pqPath);
+                return;
+            }
+            String snapshotPath = EmbeddingSnapshot.getSnapshotPath(movieEmbPath);
+            if (new File(snapshotPath).exists()) {
+                loadMovieEmbSnapshot(snapshotPath);
+                return;
+            }
+            System.out.println("Loading movie embedding from " + movieEmbPath + " ...");
+            int validEmbCount = 0;
+            try (Scanner scanner = new Scanner(new File(movieEmbPath))) {
+                while (scanner.hasNextLine()) {
+                    String movieRawEmbData = scanner.nextLine();
+                    String[] movieEmbData = movieRawEmbData.split(":");
+                    if (movieEmbData.length == 2) {
+                        Movie m = getMovieById(Integer.parseInt(movieEmbData[0]));
+                        if (null == m) {
+                            continue;
+                        }
+                        if (addMovieEmb(m, Utility.parseEmbStr(movieEmbData[1]))) {
+                            validEmbCount++;
+                        }
+                    }
+                }
+            }
+            System.out.println("Loading movie embedding completed. " + validEmbCount + " movie embeddings in total.");
+        }else{
+            loadMovieEmbeddingFromRedis(embKey);
+            loadMovieEmbeddingFromRedis(embBucketKey);
+            buildMovieLshIndex();
+        }
+    }
+
+    /**
+     * load weights of the ranking models listed in Config.EMBEDDED_SCORING_MODELS, models without a weights file
+     * keep being scored by TF serving
+     * @param modelDataPath folder holding one sub folder per model, e.g. modeldata/
+     * @return  loaded models by model name
+     */
+    static HashMap<String, EmbeddedModel> loadEmbeddedModels(String modelDataPath) throws Exception{
+        HashMap<String, EmbeddedModel> embeddedModels = new HashMap<>();
+        for (String model : Config.EMBEDDED_SCORING_MODELS.split(",")){
+            model = model.trim();
+            if (model.isEmpty()){
+                continue;
+            }
+            File weightsFile = new File(modelDataPath + model + File.separator + EmbeddedModel.WEIGHTS_FILE);
+            if (!weightsFile.exists()){
+                System.out.println("No weights file " + weightsFile.getPath() + ", model " + model + " stays on TF serving.");
+                continue;
+            }
+            embeddedModels.put(model, EmbeddedModel.load(weightsFile.getPath()));
+            System.out.println("Loading embedded model " + model + " from " + weightsFile.getPath() + " completed.");
+        }
+        return embeddedModels;
+    }
+
+    //build LSH inverted index from loaded movie embedding buckets
+    private void buildMovieLshIndex(){
+        LshIndex.Builder builder = new LshIndex.Builder();
+        for (Movie m : movieMap.values()) {
+            if (null != m.getEmbBucket()) {
+                builder.add(m.getMovieId(), m.getEmbBucket().getVector());
+            }
+        }
+        movieLshIndex = builder.build();
+        System.out.println("Building movie LSH index completed. " + movieLshIndex.size() + " movies in total.");
+    }
+
+    //load movie embedding from a memory-mapped binary snapshot
+    private void loadMovieEmbSnapshot(String snapshotPath) throws Exception{
+        System.out.println("Loading movie embedding snapshot from " + snapshotPath + " ...");
+        movieEmbMatrix = EmbeddingSnapshot.open(snapshotPath);
+        int validEmbCount = 0;
+        for (int row = 0; row < movieEmbMatrix.getRowCount(); row++){
+            Movie m = getMovieById(movieEmbMatrix.getId(row));
+            if (null == m) {
+                continue;
+            }
+            m.setEmbIndex(row);
+            validEmbCount++;
+        }
+        System.out.println("Loading movie embedding snapshot completed. " + validEmbCount + " movie embeddings in total.");
+    }
+
+    //load product-quantized movie embedding
+    private void loadMoviePqEmb(String pqPath) throws Exception{
+        System.out.println("Loading product-quantized movie embedding from " + pqPath + " ...");
+        moviePqMatrix = PqEmbeddingMatrix.open(pqPath);
+        int validEmbCount = 0;
+        for (int row = 0; row < moviePqMatrix.getRowCount(); row++){
+            Movie m = getMovieById(moviePqMatrix.getId(row));
+            if (null == m) {
+                continue;
+            }
+            m.setEmbIndex(row);
+            validEmbCount++;
+        }
+        System.out.println("Loading product-quantized movie embedding completed. " + validEmbCount + " movie embeddings in "
+                + moviePqMatrix.getMemoryBytes() + " bytes.");
+    }
+
+    private void loadMovieEmbeddingFromRedis(String prefix) throws Exception{
+        System.out.println("Loading movie embeddings from Redis by prefix: " + prefix + "...");
+        final boolean isBucket = REDIS_KEY_PREFIX_ITEM2VEC_EMBEDDING_BUCKET.equals(prefix);
+        int[] validEmbCount = new int[1];
+        RedisBulkLoader.load(prefix + "*", Pipeline::get,
+                (key, value) -> null == getMovieByKey(key) ? null : Utility.parseEmbStr(value),
+                (key, emb) -> {
+                    Movie m = getMovieByKey(key);
+                    if (isBucket) {
+                        // loading bucket data
+                        m.setEmdBucket(emb);
+                    } else if (!addMovieEmb(m, emb)) {
+                        return;
+                    }
+                    validEmbCount[0]++;
+                });
+        System.out.println("Loading movie embedding completed. " + validEmbCount[0] + " movie embeddings in total.");
+    }
+
+    //movie of a "prefix:movieId" Redis key, null if the key has no valid movie id
+    private Movie getMovieByKey(String key){
+        String[] keyParts = key.split(":");
+        if (keyParts.length < 2 || "".equals(keyParts[1])) {
+            return null;
+        }
+        try {
+            return getMovieById(Integer.parseInt(keyParts[1]));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    //load prebuilt movie HNSW index if it exists, otherwise build it over the movie embedding matrix
+    private void loadMovieHnswIndex(String indexPath) throws Exception{
+        if (null == movieEmbMatrix){
+            System.out.println("No movie embedding loaded, skip building HNSW index.");
+            return;
+        }
+        if (new File(indexPath).exists()){
+            System.out.println("Loading movie HNSW index from " + indexPath + " ...");
+            try {
+                movieHnswIndex = HnswIndex.load(indexPath, movieEmbMatrix);
+            } catch (IOException e) {
+                //stale index of older embeddings, or built on the snapshot while the csv was loaded
+                System.out.println("Can't use prebuilt HNSW index, rebuilding it: " + e.getMessage());
+            }
+        }
+        if (null == movieHnswIndex){
+            System.out.println("Building movie HNSW index with M=" + Config.HNSW_M + ", efConstruction=" + Config.HNSW_EF_CONSTRUCTION + " ...");
+            movieHnswIndex = HnswIndex.build(movieEmbMatrix, Config.HNSW_M, Config.HNSW_EF_CONSTRUCTION);
+        }
+        System.out.println("Loading movie HNSW index completed. " + movieHnswIndex.size() + " nodes in total.");
+    }
+
+    //load movie features, parsed into one typed store shared by the movies of the snapshot
+    private void loadMovieFeatures(String movieFeaturesPrefix) throws Exception{
+        System.out.println("Loading movie features from Redis ...");
+        FeatureStore featureStore = new FeatureStore(FeatureSchema.MOVIE, movieMap.size());
+        int validFeaturesCount = RedisBulkLoader.load(movieFeaturesPrefix + "*", Pipeline::hgetAll,
+                (key, features) -> null == getMovieByKey(key) ? null : features,
+                (key, features) -> {
+                    Movie movie = getMovieByKey(key);
+                    //a key seen twice by the bulk load keeps its first row
+                    if (movie.getFeatureStore() != featureStore) {
+                        movie.setFeatures(featureStore, featureStore.add(features));
+                    }
+                });
+        System.out.println("Loading movie features completed. " + validFeaturesCount + " movie features in total.");
+    }
+
+    //load user embedding
+    private void loadUserEmb(String userEmbPath, String embKey) throws Exception{
+        if (Config.EMB_DATA_SOURCE.equals(Config.DATA_SOURCE_FILE)) {
+            String pqPath = PqEmbeddingMatrix.getPqPath(userEmbPath);
+            if (Config.IS_ENABLE_PQ_EMBEDDING && new File(pqPath).exists()) {
+                loadUserPqEmb(pqPath);
+                return;
+            }
+            String snapshotPath = EmbeddingSnapshot.getSnapshotPath(userEmbPath);
+            if (new File(snapshotPath).exists()) {
+                loadUserEmbSnapshot(snapshotPath);
+                return;
+            }
+            System.out.println("Loading user embedding from " + userEmbPath + " ...");
+            int validEmbCount = 0;
+            try (Scanner scanner = new Scanner(new File(userEmbPath))) {
+                while (scanner.hasNextLine()) {
+                    String userRawEmbData = scanner.nextLine();
+                    String[] userEmbData = userRawEmbData.split(":");
+                    if (userEmbData.length == 2) {
+                        User u = getUserById(Integer.parseInt(userEmbData[0]));
+                        if (null == u) {
+                            continue;
+                        }
+                        if (addUserEmb(u, Utility.parseEmbStr(userEmbData[1]))) {
+                            validEmbCount++;
+                        }
+                    }
+                }
+            }
+            System.out.println("Loading user embedding completed. " + validEmbCount + " user embeddings in total.");
+        }
+    }
+
+    //load user embedding from a memory-mapped binary snapshot
+    private void loadUserEmbSnapshot(String snapshotPath) throws Exception{
+        System.out.println("Loading user embedding snapshot from " + snapshotPath + " ...");
+        userEmbMatrix = EmbeddingSnapshot.open(snapshotPath);
+        int validEmbCount = 0;
+        for (int row = 0; row < userEmbMatrix.getRowCount(); row++){
+            User u = getUserById(userEmbMatrix.getId(row));
+            if (null == u) {
+                continue;
+            }
+            u.setEmbIndex(row);
+            validEmbCount++;
+        }
+        System.out.println("Loading user embedding snapshot completed. " + validEmbCount + " user embeddings in total.");
+    }
+
+    //load product-quantized user embedding
+    private void loadUserPqEmb(String pqPath) throws Exception{
+        System.out.println("Loading product-quantized user embedding from " + pqPath + " ...");
+        userPqMatrix = PqEmbeddingMatrix.open(pqPath);
+        int validEmbCount = 0;
+        for (int row = 0; row < userPqMatrix.getRowCount(); row++){
+            User u = getUserById(userPqMatrix.getId(row));
+            if (null == u) {
+                continue;
+            }
+            u.setEmbIndex(row);
+            validEmbCount++;
+        }
+        System.out.println("Loading product-quantized user embedding completed. " + validEmbCount + " user embeddings in "
+                + userPqMatrix.getMemoryBytes() + " bytes.");
+    }
+
+    //put movie embedding into the movie matrix, the matrix is sized by the first embedding loaded
+    private boolean addMovieEmb(Movie movie, Embedding emb){
+        //a key seen twice by a Redis bulk load keeps its first row
+        if (movie.getEmbIndex() >= 0){
+            return false;
+        }
+        if (null == movieEmbMatrix){
+            movieEmbMatrix = new EmbeddingMatrix(emb.getDim(), movieMap.size());
+        }
+        int row = movieEmbMatrix.addRow(movie.getMovieId(), emb.getVector());
+        if (row < 0){
+            return false;
+        }
+        movie.setEmbIndex(row);
+        return true;
+    }
+
+    //put user embedding into the user matrix, the matrix is sized by the first embedding loaded
+    private boolean addUserEmb(User user, Embedding emb){
+        if (null == userEmbMatrix){
+            userEmbMatrix = new EmbeddingMatrix(emb.getDim(), userMap.size());
+        }
+        int row = userEmbMatrix.addRow(user.getUserId(), emb.getVector());
+        if (row < 0){
+            return false;
+        }
+        user.setEmbIndex(row);
+        return true;
+    }
+
+    //parse release year
+    private int parseReleaseYear(String rawTitle){
+        if (null == rawTitle || rawTitle.trim().length() < 6){
+            return -1;
+        }else{
+            String yearString = rawTitle.trim().substring(rawTitle.length()-5, rawTitle.length()-1);
+            try{
+                return Integer.parseInt(yearString);
+            }catch (NumberFormatException exception){
+                return -1;
+            }
+        }
+    }
+
+    //load links data from links.csv, chunks are parsed in parallel and applied in file order
+    private void loadLinkData(String linkDataPath) throws Exception{
+        System.out.println("Loading link data from " + linkDataPath + " ...");
+        int count = 0;
+        List<List<Link>> chunks = CsvLoader.load(linkDataPath, true, ArrayList::new, (record, links) -> {
+            if (record.fieldCount() == 3){
+                links.add(new Link(record.nextInt(), record.nextString().trim(), record.nextString().trim()));
+            }
+        });
+        for (List<Link> links : chunks){
+            for (Link link : links){
+                Movie movie = this.movieMap.get(link.movieId);
+                if (null != movie){
+                    count++;
+                    movie.setImdbId(link.imdbId);
+                    movie.setTmdbId(link.tmdbId);
+                }
+            }
+        }
+        System.out.println("Loading link data completed. " + count + " links in total.");
+    }
+
+    //load ratings data from ratings.csv into the columnar rating store, every chunk fills its own builder
+    private void loadRatingData(String ratingDataPath) throws Exception{
+        System.out.println("Loading rating data from " + ratingDataPath + " ...");
+        List<RatingStore.Builder> chunks = CsvLoader.load(ratingDataPath, true, () -> new RatingStore.Builder(1 << 16), (record, ratings) -> {
+            if (record.fieldCount() == 4){
+                ratings.add(record.nextInt(), record.nextInt(), record.nextFloat(), record.nextLong());
+            }
+        });
+        RatingStore.Builder ratingBuilder = RatingStore.Builder.concat(chunks);
+        int count = ratingBuilder.size;
+        this.ratingStore = ratingBuilder.build(userMap, movieMap);
+
+        System.out.println("Loading rating data completed. " + count + " ratings in total, "
+                + ratingStore.getMemoryBytes() / Math.max(1, count) + " bytes per rating.");
+    }
+
+    //add movie to genre reversed index
+    private void addMovie2GenreIndex(String genre, Movie movie){
+        if (!this.genreReverseIndexMap.containsKey(genre)){
+            this.genreReverseIndexMap.put(genre, new ArrayList<>());
+        }
+        this.genreReverseIndexMap.get(genre).add(movie);
+    }
+
+    //one line of links.csv
+    private static class Link {
+        final int movieId;
+        final String imdbId;
+        final String tmdbId;
+
+        Link(int movieId, String imdbId, String tmdbId){
+            this.movieId = movieId;
+            this.imdbId = imdbId;
+            this.tmdbId = tmdbId;
+        }
+    }
+}
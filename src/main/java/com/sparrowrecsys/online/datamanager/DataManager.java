@@ -1,30 +1,50 @@
 package com.sparrowrecsys.online.datamanager;
 
-import com.sparrowrecsys.online.util.Config;
-import com.sparrowrecsys.online.util.Utility;
+import com.sparrowrecsys.online.model.Embedding;
+import com.sparrowrecsys.online.model.EmbeddingMatrix;
+import com.sparrowrecsys.online.model.PqEmbeddingMatrix;
+import com.sparrowrecsys.online.retrieval.HnswIndex;
+import com.sparrowrecsys.online.serving.EmbeddedModel;
 
-import java.io.File;
 import java.util.*;
-
-import static com.sparrowrecsys.online.util.Constants.FEATURE_MOVIE_RELEASE_YEAR;
-import static com.sparrowrecsys.online.util.Constants.REDIS_KEY_PREFIX_ITEM2VEC_EMBEDDING_BUCKET;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * DataManager is an utility class, takes charge of all data loading logic.
+ *
+ * Data is served from an immutable DataSnapshot published through an atomic reference. Reloading builds the next
+ * snapshot off to the side and swaps it in, readers never lock. A request holding a Lease reads one snapshot
+ * from start to end, even if a newer one is published meanwhile, also when its stages run on other threads.
  */
 
 public class DataManager {
     //singleton instance
     private static volatile DataManager instance;
-    HashMap<Integer, Movie> movieMap;
-    HashMap<Integer, User> userMap;
-    //genre reverse index for quick querying all movies in a genre
-    HashMap<String, List<Movie>> genreReverseIndexMap;
+    //snapshot served to new requests
+    private final AtomicReference<DataSnapshot> current;
+    //snapshot pinned by the lease of the calling thread
+    private final ThreadLocal<DataSnapshot> pinned;
+    //where the current snapshot was loaded from, null until data is loaded
+    private DataSources sources;
+    private long lastVersion;
+    private ScheduledExecutorService reloader;
+    //called with every newly published snapshot
+    private final List<Consumer<DataSnapshot>> publishListeners;
 
     private DataManager(){
-        this.movieMap = new HashMap<>();
-        this.userMap = new HashMap<>();
-        this.genreReverseIndexMap = new HashMap<>();
+        this.current = new AtomicReference<>(DataSnapshot.empty());
+        this.pinned = new ThreadLocal<>();
+        this.sources = null;
+        this.lastVersion = 0;
+        this.reloader = null;
+        this.publishListeners = new CopyOnWriteArrayList<>();
         instance = this;
     }
 
@@ -40,293 +60,221 @@ public class DataManager {
     }
 
     //load data from file system including movie, rating, link data and model data like embedding vectors.
-    public void loadData(String movieDataPath, String linkDataPath, String ratingDataPath, String movieEmbPath, String userEmbPath, String movieEmbKey, String movieEmbBucketKey, String userRedisKey) throws Exception{
-        loadMovieData(movieDataPath);
-        loadLinkData(linkDataPath);
-        loadRatingData(ratingDataPath);
-        loadMovieEmb(movieEmbPath, movieEmbKey, movieEmbBucketKey);
-        if (Config.IS_LOAD_ITEM_FEATURE_FROM_REDIS){
-            loadMovieFeatures("mf:");
-        }
-
-        loadUserEmb(userEmbPath, userRedisKey);
+    public synchronized void loadData(String movieDataPath, String linkDataPath, String ratingDataPath, String movieEmbPath, String userEmbPath, String movieEmbKey, String movieEmbBucketKey, String userRedisKey) throws Exception{
+        String modelDataPath = null == sources ? null : sources.modelDataPath;
+        this.sources = new DataSources(movieDataPath, linkDataPath, ratingDataPath, movieEmbPath, userEmbPath,
+                movieEmbKey, movieEmbBucketKey, userRedisKey, modelDataPath);
+        reload();
     }
 
-    //load movie data from movies.csv
-    private void loadMovieData(String movieDataPath) throws Exception{
-        System.out.println("Loading movie data from " + movieDataPath + " ...");
-        boolean skipFirstLine = true;
-        try (Scanner scanner = new Scanner(new File(movieDataPath))) {
-            while (scanner.hasNextLine()) {
-                String movieRawData = scanner.nextLine();
-                if (skipFirstLine){
-                    skipFirstLine = false;
-                    continue;
-                }
-                String[] movieData = movieRawData.split(",");
-                if (movieData.length == 3){
-                    Movie movie = new Movie();
-                    movie.setMovieId(Integer.parseInt(movieData[0]));
-                    int releaseYear = parseReleaseYear(movieData[1].trim());
-                    if (releaseYear == -1){
-                        movie.setTitle(movieData[1].trim());
-                    }else{
-                        movie.setReleaseYear(releaseYear);
-                        movie.setTitle(movieData[1].trim().substring(0, movieData[1].trim().length()-6).trim());
-                    }
-                    String genres = movieData[2];
-                    if (!genres.trim().isEmpty()){
-                        String[] genreArray = genres.split("\\|");
-                        for (String genre : genreArray){
-                            movie.addGenre(genre);
-                            addMovie2GenreIndex(genre, movie);
-                        }
-                    }
-                    this.movieMap.put(movie.getMovieId(), movie);
-                }
-            }
+    /**
+     * load weights of the ranking models listed in Config.EMBEDDED_SCORING_MODELS, models without a weights file
+     * keep being scored by TF serving. The models are published with the current data as a new snapshot
+     * @param modelDataPath folder holding one sub folder per model, e.g. modeldata/
+     */
+    public synchronized void loadEmbeddedModels(String modelDataPath) throws Exception{
+        if (null != sources){
+            sources = sources.withModelDataPath(modelDataPath);
         }
-        System.out.println("Loading movie data completed. " + this.movieMap.size() + " movies in total.");
+        publish(current.get().withEmbeddedModels(++lastVersion, DataLoader.loadEmbeddedModels(modelDataPath)));
     }
 
-    //load movie embedding
-    private void loadMovieEmb(String movieEmbPath, String embKey, String embBucketKey) throws Exception{
-        if (Config.EMB_DATA_SOURCE.equals(Config.DATA_SOURCE_FILE)) {
-            System.out.println("Loading movie embedding from " + movieEmbPath + " ...");
-            int validEmbCount = 0;
-            try (Scanner scanner = new Scanner(new File(movieEmbPath))) {
-                while (scanner.hasNextLine()) {
-                    String movieRawEmbData = scanner.nextLine();
-                    String[] movieEmbData = movieRawEmbData.split(":");
-                    if (movieEmbData.length == 2) {
-                        Movie m = getMovieById(Integer.parseInt(movieEmbData[0]));
-                        if (null == m) {
-                            continue;
-                        }
-                        m.setEmb(Utility.parseEmbStr(movieEmbData[1]));
-                        validEmbCount++;
-                    }
-                }
-            }
-            System.out.println("Loading movie embedding completed. " + validEmbCount + " movie embeddings in total.");
-        }else{
-            loadMovieEmbeddingFromRedis(embKey);
-            loadMovieEmbeddingFromRedis(embBucketKey);
+    /**
+     * build a new snapshot from the sources of the current one and swap it in, requests keep being served
+     * from the current snapshot while loading, which stays in place if loading fails
+     */
+    public synchronized void reload() throws Exception{
+        if (null == sources){
+            throw new IllegalStateException("no data has been loaded yet");
         }
+        long start = System.currentTimeMillis();
+        DataSnapshot next = new DataLoader().load(sources, lastVersion + 1);
+        lastVersion = next.getVersion();
+        publish(next);
+        System.out.println("Data snapshot v" + next.getVersion() + " published in " + (System.currentTimeMillis() - start)
+                + "ms, " + next.getMovieCount() + " movies and " + next.getUserCount() + " users.");
     }
 
-    private void loadMovieEmbeddingFromRedis(String prefix) throws Exception{
-        System.out.println("Loading movie embeddings from Redis by prefix: " + prefix + "...");
-        Set<String> movieEmbKeys = RedisClient.getInstance().keys(prefix + "*");
-        int validEmbCount = 0;
-        for (String movieEmbKey : movieEmbKeys){
-            String movieId = movieEmbKey.split(":")[1];
-            if ("".equals(movieId)) continue;
-            Movie m = getMovieById(Integer.parseInt(movieId));
-            if (null == m) {
-                continue;
-            }
-            if (REDIS_KEY_PREFIX_ITEM2VEC_EMBEDDING_BUCKET.equals(prefix)) {
-                // loading bucket data
-                m.setEmdBucket(Utility.parseEmbStr(RedisClient.getInstance().get(movieEmbKey)));
-            } else {
-                m.setEmb(Utility.parseEmbStr(RedisClient.getInstance().get(movieEmbKey)));
+    /**
+     * reload data periodically in a background thread
+     * @param intervalSeconds   seconds between the end of a reload and the start of the next one
+     */
+    public synchronized void startReloader(long intervalSeconds){
+        if (null != reloader || intervalSeconds <= 0){
+            return;
+        }
+        reloader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "data-reloader");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reloader.scheduleWithFixedDelay(() -> {
+            try {
+                reload();
+            } catch (Throwable e) {
+                System.out.println("Data reload failed, keep serving snapshot v" + current.get().getVersion() + ": " + e);
             }
-            validEmbCount++;
+        }, intervalSeconds, intervalSeconds, TimeUnit.SECONDS);
+        System.out.println("Data reloader started, reloading every " + intervalSeconds + " seconds.");
+    }
 
+    private void publish(DataSnapshot next){
+        DataSnapshot previous = current.getAndSet(next);
+        previous.retire();
+        for (Consumer<DataSnapshot> listener : publishListeners){
+            listener.accept(next);
         }
-        System.out.println("Loading movie embedding completed. " + validEmbCount + " movie embeddings in total.");
     }
 
-    //load movie features
-    private void loadMovieFeatures(String movieFeaturesPrefix) throws Exception{
-        System.out.println("Loading movie features from Redis ...");
-        Set<String> movieFeaturesKeys = RedisClient.getInstance().keys(movieFeaturesPrefix + "*");
-        int validFeaturesCount = 0;
-        for (String movieFeaturesKey : movieFeaturesKeys){
-            String movieId = movieFeaturesKey.split(":")[1];
-            Movie m = getMovieById(Integer.parseInt(movieId));
-            if (null == m) {
-                continue;
-            }
-            m.setMovieFeatures(RedisClient.getInstance().hgetAll(movieFeaturesKey));
-            validFeaturesCount++;
-        }
-        System.out.println("Loading movie features completed. " + validFeaturesCount + " movie features in total.");
+    /**
+     * register a listener called with every snapshot published from now on, on the publishing thread
+     * @param listener  listener, expected to return quickly and hand any real work to its own thread
+     */
+    public void addPublishListener(Consumer<DataSnapshot> listener){
+        publishListeners.add(listener);
     }
 
-    //load user embedding
-    private void loadUserEmb(String userEmbPath, String embKey) throws Exception{
-        if (Config.EMB_DATA_SOURCE.equals(Config.DATA_SOURCE_FILE)) {
-            System.out.println("Loading user embedding from " + userEmbPath + " ...");
-            int validEmbCount = 0;
-            try (Scanner scanner = new Scanner(new File(userEmbPath))) {
-                while (scanner.hasNextLine()) {
-                    String userRawEmbData = scanner.nextLine();
-                    String[] userEmbData = userRawEmbData.split(":");
-                    if (userEmbData.length == 2) {
-                        User u = getUserById(Integer.parseInt(userEmbData[0]));
-                        if (null == u) {
-                            continue;
-                        }
-                        u.setEmb(Utility.parseEmbStr(userEmbData[1]));
-                        validEmbCount++;
-                    }
-                }
-            }
-            System.out.println("Loading user embedding completed. " + validEmbCount + " user embeddings in total.");
+    /**
+     * pin the current snapshot to the calling thread until the lease is closed, nested leases share the outer one
+     * @return  lease to close when the request is done
+     */
+    public Lease acquire(){
+        DataSnapshot outer = pinned.get();
+        if (null != outer){
+            return new Lease(outer, false, false);
         }
+        DataSnapshot snapshot = enterCurrent();
+        pinned.set(snapshot);
+        return new Lease(snapshot, true, true);
     }
 
-    //parse release year
-    private int parseReleaseYear(String rawTitle){
-        if (null == rawTitle || rawTitle.trim().length() < 6){
-            return -1;
-        }else{
-            String yearString = rawTitle.trim().substring(rawTitle.length()-5, rawTitle.length()-1);
-            try{
-                return Integer.parseInt(yearString);
-            }catch (NumberFormatException exception){
-                return -1;
-            }
-        }
+    /**
+     * hold the current snapshot for a request served by several threads, nothing is pinned to the calling thread.
+     * Stages of the request see the snapshot by running on an executor returned by Lease.pinTo
+     * @return  lease to close when the request is done, from any thread
+     */
+    public Lease acquireDetached(){
+        return new Lease(enterCurrent(), true, false);
     }
 
-    //load links data from links.csv
-    private void loadLinkData(String linkDataPath) throws Exception{
-        System.out.println("Loading link data from " + linkDataPath + " ...");
-        int count = 0;
-        boolean skipFirstLine = true;
-        try (Scanner scanner = new Scanner(new File(linkDataPath))) {
-            while (scanner.hasNextLine()) {
-                String linkRawData = scanner.nextLine();
-                if (skipFirstLine){
-                    skipFirstLine = false;
-                    continue;
-                }
-                String[] linkData = linkRawData.split(",");
-                if (linkData.length == 3){
-                    int movieId = Integer.parseInt(linkData[0]);
-                    Movie movie = this.movieMap.get(movieId);
-                    if (null != movie){
-                        count++;
-                        movie.setImdbId(linkData[1].trim());
-                        movie.setTmdbId(linkData[2].trim());
+    private DataSnapshot enterCurrent(){
+        DataSnapshot snapshot;
+        do {
+            snapshot = current.get();
+        } while (!snapshot.enter());
+        return snapshot;
+    }
+
+    /**
+     * Lease, keeps a snapshot pinned to a thread for the duration of a request
+     */
+    public class Lease implements AutoCloseable {
+        private final DataSnapshot snapshot;
+        //false for nested leases, which leave the snapshot to the outer lease
+        private final boolean owner;
+        //whether the snapshot is pinned to the acquiring thread until the lease is closed
+        private final boolean pinnedToThread;
+        private final AtomicBoolean closed;
+
+        private Lease(DataSnapshot snapshot, boolean owner, boolean pinnedToThread){
+            this.snapshot = snapshot;
+            this.owner = owner;
+            this.pinnedToThread = pinnedToThread;
+            this.closed = new AtomicBoolean(false);
+        }
+
+        /**
+         * executor running every task with the snapshot of the lease pinned to its thread, the lease must stay open
+         * until the tasks are done
+         * @param executor  executor running the tasks
+         * @return  pinning executor
+         */
+        public Executor pinTo(Executor executor){
+            return task -> executor.execute(() -> {
+                DataSnapshot previous = pinned.get();
+                pinned.set(snapshot);
+                try {
+                    task.run();
+                } finally {
+                    if (null == previous){
+                        pinned.remove();
+                    } else {
+                        pinned.set(previous);
                     }
                 }
-            }
+            });
         }
-        System.out.println("Loading link data completed. " + count + " links in total.");
-    }
 
-    //load ratings data from ratings.csv
-    private void loadRatingData(String ratingDataPath) throws Exception{
-        System.out.println("Loading rating data from " + ratingDataPath + " ...");
-        boolean skipFirstLine = true;
-        int count = 0;
-        try (Scanner scanner = new Scanner(new File(ratingDataPath))) {
-            while (scanner.hasNextLine()) {
-                String ratingRawData = scanner.nextLine();
-                if (skipFirstLine){
-                    skipFirstLine = false;
-                    continue;
-                }
-                String[] linkData = ratingRawData.split(",");
-                if (linkData.length == 4){
-                    count ++;
-                    Rating rating = new Rating();
-                    rating.setUserId(Integer.parseInt(linkData[0]));
-                    rating.setMovieId(Integer.parseInt(linkData[1]));
-                    rating.setScore(Float.parseFloat(linkData[2]));
-                    rating.setTimestamp(Long.parseLong(linkData[3]));
-                    Movie movie = this.movieMap.get(rating.getMovieId());
-                    if (null != movie){
-                        movie.addRating(rating);
-                    }
-                    if (!this.userMap.containsKey(rating.getUserId())){
-                        User user = new User();
-                        user.setUserId(rating.getUserId());
-                        this.userMap.put(user.getUserId(), user);
-                    }
-                    this.userMap.get(rating.getUserId()).addRating(rating);
+        //leave the snapshot, only the first call counts
+        @Override
+        public void close() {
+            if (owner && closed.compareAndSet(false, true)){
+                if (pinnedToThread){
+                    pinned.remove();
                 }
+                snapshot.leave();
             }
         }
-
-        System.out.println("Loading rating data completed. " + count + " ratings in total.");
     }
 
-    //add movie to genre reversed index
-    private void addMovie2GenreIndex(String genre, Movie movie){
-        if (!this.genreReverseIndexMap.containsKey(genre)){
-            this.genreReverseIndexMap.put(genre, new ArrayList<>());
-        }
-        this.genreReverseIndexMap.get(genre).add(movie);
+    //snapshot the calling thread reads, the leased one if any, otherwise the current one
+    public DataSnapshot getSnapshot(){
+        DataSnapshot snapshot = pinned.get();
+        return null == snapshot ? current.get() : snapshot;
     }
 
-    //get movies by genre, and order the movies by sortBy method
+    //get movies by genre, and order the movies by sortBy method, the returned list is read-only
     public List<Movie> getMoviesByGenre(String genre, int size, String sortBy){
-        if (null != genre){
-            List<Movie> movies = new ArrayList<>(this.genreReverseIndexMap.get(genre));
-            switch (sortBy){
-                case "rating":movies.sort((m1, m2) -> Double.compare(m2.getAverageRating(), m1.getAverageRating()));break;
-                case FEATURE_MOVIE_RELEASE_YEAR: movies.sort((m1, m2) -> Integer.compare(m2.getReleaseYear(), m1.getReleaseYear()));break;
-                default:
-            }
-
-            if (movies.size() > size){
-                return movies.subList(0, size);
-            }
-            return movies;
-        }
-        return null;
+        return getSnapshot().getMoviesByGenre(genre, size, sortBy);
     }
 
-    //get top N movies order by sortBy method
+    //get top N movies order by sortBy method, the returned list is read-only
     public List<Movie> getMovies(int size, String sortBy) {
-            List<Movie> movies = new ArrayList<>(movieMap.values());
-            switch (sortBy){
-                case "rating":movies.sort((m1, m2) -> Double.compare(m2.getAverageRating(), m1.getAverageRating()));break;
-                case FEATURE_MOVIE_RELEASE_YEAR: movies.sort((m1, m2) -> Integer.compare(m2.getReleaseYear(), m1.getReleaseYear()));break;
-                default:
-            }
-
-            if (movies.size() > size){
-                return movies.subList(0, size);
-            }
-            return movies;
+        return getSnapshot().getMovies(size, sortBy);
     }
 
-    //get top N movies order by sortBy method
+    //get top N movies sharing LSH buckets with the movie, ordered by number of colliding hash tables
     public List<Movie> getMoviesByLSH(Movie movie, int size) {
-        List<Movie> movies = new ArrayList<>(movieMap.values());
-        Set<Float> bucketSet = new HashSet<Float>(movie.getEmbBucket().getEmbVector());
-        HashSet<Movie> candidateSet = new HashSet<>();
-        for (Movie m : movies) {
-            if (null == m.getEmbBucket()) { continue;}
-            ArrayList<Float> buckets = m.getEmbBucket().getEmbVector();
-            for (Float bucket : buckets) {
-                // if a movie fall into any of the bucket, it's in the candidate.
-                if (bucketSet.contains(bucket)) {
-                    candidateSet.add(m);
-                    continue;
-                }
-            }
-        }
-        List<Movie> candidates = new ArrayList<Movie>(candidateSet);
-        if (candidates.size() > size){
-            return candidates.subList(0, size);
-        }
-        return candidates;
+        return getSnapshot().getMoviesByLSH(movie, size);
     }
 
     //get movie object by movie id
     public Movie getMovieById(int movieId){
-        return this.movieMap.get(movieId);
+        return getSnapshot().getMovieById(movieId);
     }
 
     //get user object by user id
     public User getUserById(int userId){
-        return this.userMap.get(userId);
+        return getSnapshot().getUserById(userId);
+    }
+
+    public EmbeddingMatrix getMovieEmbMatrix() {
+        return getSnapshot().getMovieEmbMatrix();
+    }
+
+    public EmbeddingMatrix getUserEmbMatrix() {
+        return getSnapshot().getUserEmbMatrix();
+    }
+
+    public PqEmbeddingMatrix getMoviePqMatrix() {
+        return getSnapshot().getMoviePqMatrix();
+    }
+
+    public PqEmbeddingMatrix getUserPqMatrix() {
+        return getSnapshot().getUserPqMatrix();
+    }
+
+    public HnswIndex getMovieHnswIndex() {
+        return getSnapshot().getMovieHnswIndex();
+    }
+
+    //in-process scorer of a ranking model, null if the model is scored by TF serving
+    public EmbeddedModel getEmbeddedModel(String model) {
+        return getSnapshot().getEmbeddedModel(model);
+    }
+
+    //get user embedding, prefer the one fetched online over the offline matrix row
+    public Embedding getUserEmb(User user){
+        return getSnapshot().getUserEmb(user);
     }
 }
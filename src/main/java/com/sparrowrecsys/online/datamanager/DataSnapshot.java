@@ -0,0 +1,216 @@
+package com.sparrowrecsys.online.datamanager;
+
+import com.sparrowrecsys.online.model.Embedding;
+import com.sparrowrecsys.online.model.EmbeddingMatrix;
+import com.sparrowrecsys.online.model.PqEmbeddingMatrix;
+import com.sparrowrecsys.online.retrieval.HnswIndex;
+import com.sparrowrecsys.online.retrieval.LshIndex;
+import com.sparrowrecsys.online.retrieval.TopKResult;
+import com.sparrowrecsys.online.serving.EmbeddedModel;
+import com.sparrowrecsys.online.util.IntObjectMap;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * DataSnapshot, one consistent version of all serving data: movies, users, sorted views, embeddings and indexes.
+ * Movie and user embedding rows index into the matrices of the same snapshot, so a request must read everything
+ * from one snapshot. Snapshots are never modified once published, a reload builds a new one.
+ */
+public class DataSnapshot {
+    private final long version;
+    private final long loadedAtMillis;
+    //primitive int keyed, never modified once the snapshot is built
+    private final IntObjectMap<Movie> movieMap;
+    private final IntObjectMap<User> userMap;
+    //ratings of all users and movies in columns, null before data is loaded
+    private final RatingStore ratingStore;
+    //pre-sorted catalog and genre views serving top N queries
+    private final MovieSortIndex movieSortIndex;
+    //off-heap embedding matrices, movies and users only keep their row index
+    private final EmbeddingMatrix movieEmbMatrix;
+    private final EmbeddingMatrix userEmbMatrix;
+    //product-quantized embeddings, used instead of the float matrices when PQ is enabled
+    private final PqEmbeddingMatrix moviePqMatrix;
+    private final PqEmbeddingMatrix userPqMatrix;
+    //approximate nearest neighbor index over movieEmbMatrix
+    private final HnswIndex movieHnswIndex;
+    //LSH bucket inverted index over movies that have embedding buckets
+    private final LshIndex movieLshIndex;
+    //ranking models scored in process, by model name
+    private final Map<String, EmbeddedModel> embeddedModels;
+
+    //requests currently reading the snapshot, it's drained once retired and back to 0
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private volatile boolean retired = false;
+    private final AtomicBoolean released = new AtomicBoolean(false);
+
+    DataSnapshot(long version, IntObjectMap<Movie> movieMap, IntObjectMap<User> userMap, RatingStore ratingStore, MovieSortIndex movieSortIndex,
+                 EmbeddingMatrix movieEmbMatrix, EmbeddingMatrix userEmbMatrix,
+                 PqEmbeddingMatrix moviePqMatrix, PqEmbeddingMatrix userPqMatrix,
+                 HnswIndex movieHnswIndex, LshIndex movieLshIndex, Map<String, EmbeddedModel> embeddedModels){
+        this.version = version;
+        this.loadedAtMillis = System.currentTimeMillis();
+        this.movieMap = movieMap;
+        this.userMap = userMap;
+        this.ratingStore = ratingStore;
+        this.movieSortIndex = movieSortIndex;
+        this.movieEmbMatrix = movieEmbMatrix;
+        this.userEmbMatrix = userEmbMatrix;
+        this.moviePqMatrix = moviePqMatrix;
+        this.userPqMatrix = userPqMatrix;
+        this.movieHnswIndex = movieHnswIndex;
+        this.movieLshIndex = movieLshIndex;
+        this.embeddedModels = Collections.unmodifiableMap(embeddedModels);
+    }
+
+    //snapshot served before any data is loaded
+    static DataSnapshot empty(){
+        return new DataSnapshot(0, new IntObjectMap<>(), new IntObjectMap<>(), null, MovieSortIndex.EMPTY,
+                null, null, null, null, null, null, new HashMap<>());
+    }
+
+    //same data with another set of in-process ranking models, published as a new version
+    DataSnapshot withEmbeddedModels(long version, Map<String, EmbeddedModel> models){
+        return new DataSnapshot(version, movieMap, userMap, ratingStore, movieSortIndex, movieEmbMatrix, userEmbMatrix,
+                moviePqMatrix, userPqMatrix, movieHnswIndex, movieLshIndex, models);
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getLoadedAtMillis() {
+        return loadedAtMillis;
+    }
+
+    public int getMovieCount() {
+        return movieMap.size();
+    }
+
+    public int getUserCount() {
+        return userMap.size();
+    }
+
+    public RatingStore getRatingStore() {
+        return ratingStore;
+    }
+
+    //register a reader, false if the snapshot was retired in the meantime and the reader must pick the new one
+    boolean enter(){
+        inFlight.incrementAndGet();
+        if (retired){
+            leave();
+            return false;
+        }
+        return true;
+    }
+
+    void leave(){
+        if (inFlight.decrementAndGet() == 0 && retired){
+            release();
+        }
+    }
+
+    //true once a newer snapshot is published
+    public boolean isRetired(){
+        return retired;
+    }
+
+    //called once a newer snapshot is published, the snapshot is released when its last reader leaves
+    void retire(){
+        retired = true;
+        if (inFlight.get() == 0){
+            release();
+        }
+    }
+
+    private void release(){
+        if (released.compareAndSet(false, true)){
+            //nothing references the snapshot any more, its heap, off-heap and mapped memory go with the next GC
+            System.out.println("Data snapshot v" + version + " drained and released.");
+        }
+    }
+
+    //get movies by genre, and order the movies by sortBy method, the returned list is read-only
+    public List<Movie> getMoviesByGenre(String genre, int size, String sortBy){
+        if (null != genre){
+            return movieSortIndex.getTopMoviesByGenre(genre, size, sortBy);
+        }
+        return null;
+    }
+
+    //get top N movies order by sortBy method, the returned list is read-only
+    public List<Movie> getMovies(int size, String sortBy) {
+        return movieSortIndex.getTopMovies(size, sortBy);
+    }
+
+    //get top N movies sharing LSH buckets with the movie, ordered by number of colliding hash tables
+    public List<Movie> getMoviesByLSH(Movie movie, int size) {
+        List<Movie> candidates = new ArrayList<>();
+        if (null == movieLshIndex || null == movie.getEmbBucket()) {
+            return candidates;
+        }
+        TopKResult topK = movieLshIndex.search(movie.getEmbBucket().getVector(), size, movie.getMovieId());
+        for (int i = 0; i < topK.size(); i++) {
+            Movie candidate = movieMap.get(movieLshIndex.getId(topK.getRow(i)));
+            if (null != candidate) {
+                candidates.add(candidate);
+            }
+        }
+        return candidates;
+    }
+
+    //get movie object by movie id
+    public Movie getMovieById(int movieId){
+        return movieMap.get(movieId);
+    }
+
+    //get user object by user id
+    public User getUserById(int userId){
+        return userMap.get(userId);
+    }
+
+    public EmbeddingMatrix getMovieEmbMatrix() {
+        return movieEmbMatrix;
+    }
+
+    public EmbeddingMatrix getUserEmbMatrix() {
+        return userEmbMatrix;
+    }
+
+    public PqEmbeddingMatrix getMoviePqMatrix() {
+        return moviePqMatrix;
+    }
+
+    public PqEmbeddingMatrix getUserPqMatrix() {
+        return userPqMatrix;
+    }
+
+    public HnswIndex getMovieHnswIndex() {
+        return movieHnswIndex;
+    }
+
+    //in-process scorer of a ranking model, null if the model is scored by TF serving
+    public EmbeddedModel getEmbeddedModel(String model) {
+        return embeddedModels.get(model);
+    }
+
+    //get user embedding, prefer the one fetched online over the offline matrix row
+    public Embedding getUserEmb(User user){
+        if (null == user){
+            return null;
+        }
+        if (null != user.getEmb()){
+            return user.getEmb();
+        }
+        if (user.getEmbIndex() >= 0 && null != userEmbMatrix){
+            return userEmbMatrix.getEmbedding(user.getEmbIndex());
+        }
+        if (user.getEmbIndex() >= 0 && null != userPqMatrix){
+            return userPqMatrix.getEmbedding(user.getEmbIndex());
+        }
+        return null;
+    }
+}
@@ -0,0 +1,35 @@
+package com.sparrowrecsys.online.datamanager;
+
+/**
+ * DataSources, files and Redis keys a DataSnapshot is loaded from, kept so the data can be reloaded later.
+ */
+class DataSources {
+    final String movieDataPath;
+    final String linkDataPath;
+    final String ratingDataPath;
+    final String movieEmbPath;
+    final String userEmbPath;
+    final String movieEmbKey;
+    final String movieEmbBucketKey;
+    final String userRedisKey;
+    //folder of the in-process ranking models, null if none are loaded
+    final String modelDataPath;
+
+    DataSources(String movieDataPath, String linkDataPath, String ratingDataPath, String movieEmbPath, String userEmbPath,
+                String movieEmbKey, String movieEmbBucketKey, String userRedisKey, String modelDataPath){
+        this.movieDataPath = movieDataPath;
+        this.linkDataPath = linkDataPath;
+        this.ratingDataPath = ratingDataPath;
+        this.movieEmbPath = movieEmbPath;
+        this.userEmbPath = userEmbPath;
+        this.movieEmbKey = movieEmbKey;
+        this.movieEmbBucketKey = movieEmbBucketKey;
+        this.userRedisKey = userRedisKey;
+        this.modelDataPath = modelDataPath;
+    }
+
+    DataSources withModelDataPath(String modelDataPath){
+        return new DataSources(movieDataPath, linkDataPath, ratingDataPath, movieEmbPath, userEmbPath,
+                movieEmbKey, movieEmbBucketKey, userRedisKey, modelDataPath);
+    }
+}
@@ -1,58 +1,70 @@
 package com.sparrowrecsys.online.datamanager;
 
 import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.sparrowrecsys.online.model.Embedding;
+import com.sparrowrecsys.online.serving.FeatureStore;
 
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 
 /**
  * Movie Class, contains attributes loaded from movielens movies.csv and other advanced data like averageRating, emb, etc.
  */
 public class Movie {
+    //encodes movie json fragments, an ObjectMapper is thread safe once configured
+    private static final ObjectMapper JSON_MAPPER = new ObjectMapper();
+
     int movieId;
     String title;
     int releaseYear;
     String imdbId;
     String tmdbId;
     List<String> genres;
-    //how many user rate the movie
-    int ratingNumber;
-    //average rating score
-    double averageRating;
+    //count, average, stddev and recency of the movie's ratings
+    @JsonIgnore
+    RatingStatistics ratingStatistics;
 
-    //embedding of the movie
+    //row of the movie in DataManager's movie embedding matrix, -1 if the movie has no embedding
     @JsonIgnore
-    Embedding emb;
+    int embIndex;
 
     // embedding bucket of the movie
     @JsonIgnore
     Embedding embBucket;
 
-    //all rating scores list
+    //all rating scores list, a view of the rating store
     @JsonIgnore
-    List<Rating> ratings;
+    RatingList ratings;
 
+    //typed features of the movie, a row of a FeatureStore shared by all movies of a snapshot
+    @JsonIgnore
+    FeatureStore featureStore;
     @JsonIgnore
-    Map<String, String> movieFeatures;
+    int featureRow;
 
     final int TOP_RATING_SIZE = 10;
 
+    //highest rated ratings in ascending score order
     @JsonSerialize(using = RatingListSerializer.class)
-    List<Rating> topRatings;
+    RatingList topRatings;
+
+    //UTF-8 json of the movie as returned by the services, encoded once when the movie is loaded
+    @JsonIgnore
+    byte[] json;
 
     public Movie() {
-        ratingNumber = 0;
-        averageRating = 0;
+        this.ratingStatistics = new RatingStatistics(0);
         this.genres = new ArrayList<>();
-        this.ratings = new ArrayList<>();
-        this.topRatings = new LinkedList<>();
-        this.emb = null;
+        this.ratings = RatingList.EMPTY;
+        this.topRatings = RatingList.EMPTY;
+        this.embIndex = -1;
         this.embBucket = null;
-        this.movieFeatures = null;
+        this.featureStore = FeatureStore.EMPTY_MOVIE;
+        this.featureRow = FeatureStore.NO_FEATURES;
+        this.json = null;
     }
 
     public int getMovieId() {
@@ -91,33 +103,15 @@ public class Movie {
         this.genres = genres;
     }
 
-    public List<Rating> getRatings() {
+    public RatingList getRatings() {
         return ratings;
     }
 
-    public void addRating(Rating rating) {
-        averageRating = (averageRating * ratingNumber + rating.getScore()) / (ratingNumber+1);
-        ratingNumber++;
-        this.ratings.add(rating);
-        addTopRating(rating);
-    }
-
-    public void addTopRating(Rating rating){
-        if (this.topRatings.isEmpty()){
-            this.topRatings.add(rating);
-        }else{
-            int index = 0;
-            for (Rating topRating : this.topRatings){
-                if (topRating.getScore() >= rating.getScore()){
-                    break;
-                }
-                index ++;
-            }
-            topRatings.add(index, rating);
-            if (topRatings.size() > TOP_RATING_SIZE) {
-                topRatings.remove(0);
-            }
-        }
+    //attach the ratings of the movie and compute the rating statistics from them
+    void setRatings(RatingList ratings) {
+        this.ratings = ratings;
+        this.ratingStatistics = RatingStatistics.of(ratings, TOP_RATING_SIZE);
+        this.topRatings = ratings.select(ratingStatistics.getTopIndexes());
     }
 
     public String getImdbId() {
@@ -137,32 +131,72 @@ public class Movie {
     }
 
     public int getRatingNumber() {
-        return ratingNumber;
+        return ratingStatistics.getCount();
     }
 
     public double getAverageRating() {
-        return averageRating;
+        return ratingStatistics.getMean();
     }
 
-    public Embedding getEmb() {
-        return emb;
+    public double getRatingStddev() {
+        return ratingStatistics.getStddev();
+    }
+
+    //timestamp of the latest rating of the movie, 0 if it has none
+    @JsonIgnore
+    public long getLatestRatingTimestamp() {
+        return ratingStatistics.getLatestTimestamp();
+    }
+
+    public int getEmbIndex() {
+        return embIndex;
     }
 
     public Embedding getEmbBucket() {return embBucket;}
 
-    public void setEmb(Embedding emb) {
-        this.emb = emb;
+    public void setEmbIndex(int embIndex) {
+        this.embIndex = embIndex;
     }
 
     public void setEmdBucket(Embedding embBucket) {
         this.embBucket = embBucket;
     }
 
-    public Map<String, String> getMovieFeatures() {
-        return movieFeatures;
+    public FeatureStore getFeatureStore() {
+        return featureStore;
+    }
+
+    public int getFeatureRow() {
+        return featureRow;
+    }
+
+    /**
+     * point the movie to its features
+     * @param featureStore  store of FeatureSchema.MOVIE features
+     * @param featureRow    row of the movie in the store
+     */
+    public void setFeatures(FeatureStore featureStore, int featureRow) {
+        this.featureStore = featureStore;
+        this.featureRow = featureRow;
     }
 
-    public void setMovieFeatures(Map<String, String> movieFeatures) {
-        this.movieFeatures = movieFeatures;
+    /**
+     * json fragment of the movie, shared by all responses, so it must not be modified
+     * @return  UTF-8 json of the movie
+     */
+    @JsonIgnore
+    public byte[] getJson() {
+        byte[] encoded = json;
+        return null == encoded ? encodeJson() : encoded;
+    }
+
+    //encode the json of the movie, called by the loader once the served fields and ratings are final
+    byte[] encodeJson() {
+        try {
+            json = JSON_MAPPER.writeValueAsBytes(this);
+        } catch (JsonProcessingException e) {
+            throw new IllegalStateException("can't encode movie " + movieId, e);
+        }
+        return json;
     }
 }
@@ -0,0 +1,108 @@
+package com.sparrowrecsys.online.datamanager;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.sparrowrecsys.online.util.Constants.FEATURE_MOVIE_RATING_COUNT;
+import static com.sparrowrecsys.online.util.Constants.FEATURE_MOVIE_RELEASE_YEAR;
+
+/**
+ * MovieSortIndex, immutable views of the whole catalog and of every genre, pre-sorted by every supported sort key.
+ * Top N queries are a slice of a sorted view, no copying or sorting happens at request time.
+ * The index is never modified after it's built, data refreshes build a new one and swap it in.
+ */
+public class MovieSortIndex {
+    public static final String SORT_BY_RATING = "rating";
+
+    //supported sort keys, all in descending order, sorting is stable so ties keep the catalog order
+    private static final Map<String, Comparator<Movie>> SORT_KEYS = new LinkedHashMap<>();
+    static {
+        SORT_KEYS.put(SORT_BY_RATING, (m1, m2) -> Double.compare(m2.getAverageRating(), m1.getAverageRating()));
+        SORT_KEYS.put(FEATURE_MOVIE_RELEASE_YEAR, (m1, m2) -> Integer.compare(m2.getReleaseYear(), m1.getReleaseYear()));
+        SORT_KEYS.put(FEATURE_MOVIE_RATING_COUNT, (m1, m2) -> Integer.compare(m2.getRatingNumber(), m1.getRatingNumber()));
+    }
+
+    public static final MovieSortIndex EMPTY = new MovieSortIndex(new SortedViews(Collections.<Movie>emptyList()),
+            Collections.<String, SortedViews>emptyMap());
+
+    private final SortedViews catalog;
+    private final Map<String, SortedViews> genres;
+
+    private MovieSortIndex(SortedViews catalog, Map<String, SortedViews> genres){
+        this.catalog = catalog;
+        this.genres = genres;
+    }
+
+    /**
+     * sort the catalog and every genre by every sort key
+     * @param movies    all movies, their order is kept for unknown sort keys
+     * @param genreIndex    movies of every genre
+     * @return  built index
+     */
+    public static MovieSortIndex build(Collection<Movie> movies, Map<String, List<Movie>> genreIndex){
+        long start = System.currentTimeMillis();
+        Map<String, SortedViews> genres = new HashMap<>();
+        for (Map.Entry<String, List<Movie>> genre : genreIndex.entrySet()){
+            genres.put(genre.getKey(), new SortedViews(genre.getValue()));
+        }
+        MovieSortIndex index = new MovieSortIndex(new SortedViews(movies), genres);
+        System.out.println("Building movie sort index completed in " + (System.currentTimeMillis() - start)
+                + "ms, " + genres.size() + " genres and " + SORT_KEYS.size() + " sort keys.");
+        return index;
+    }
+
+    /**
+     * top N movies of the catalog
+     * @param size  max number of movies
+     * @param sortBy    sort key, unknown keys return movies in catalog order
+     * @return  read-only list backed by the index
+     */
+    public List<Movie> getTopMovies(int size, String sortBy){
+        return catalog.top(size, sortBy);
+    }
+
+    /**
+     * top N movies of a genre
+     * @param genre genre name
+     * @param size  max number of movies
+     * @param sortBy    sort key, unknown keys return movies in catalog order
+     * @return  read-only list backed by the index, empty for unknown genres
+     */
+    public List<Movie> getTopMoviesByGenre(String genre, int size, String sortBy){
+        SortedViews views = genres.get(genre);
+        if (null == views){
+            return Collections.emptyList();
+        }
+        return views.top(size, sortBy);
+    }
+
+    //one list sorted by every sort key
+    private static class SortedViews {
+        final List<Movie> unsorted;
+        final Map<String, List<Movie>> sorted;
+
+        SortedViews(Collection<Movie> movies){
+            this.unsorted = Collections.unmodifiableList(new ArrayList<>(movies));
+            this.sorted = new HashMap<>();
+            for (Map.Entry<String, Comparator<Movie>> key : SORT_KEYS.entrySet()){
+                List<Movie> view = new ArrayList<>(movies);
+                view.sort(key.getValue());
+                sorted.put(key.getKey(), Collections.unmodifiableList(view));
+            }
+        }
+
+        List<Movie> top(int size, String sortBy){
+            List<Movie> view = null == sortBy ? null : sorted.get(sortBy);
+            if (null == view){
+                view = unsorted;
+            }
+            return view.size() > size ? view.subList(0, Math.max(0, size)) : view;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.sparrowrecsys.online.datamanager;
+
+import java.util.AbstractList;
+import java.util.RandomAccess;
+
+/**
+ * RatingList, read-only view of a range of RatingStore rows.
+ * Primitive accessors read the columns directly, get() builds a short-lived Rating for code that wants objects.
+ */
+public class RatingList extends AbstractList<Rating> implements RandomAccess {
+    public static final RatingList EMPTY = new RatingList(null, null, 0, 0);
+
+    private final RatingStore store;
+    //row numbers of the view, null if the view is a range of consecutive rows
+    private final int[] rows;
+    private final int from;
+    private final int to;
+
+    RatingList(RatingStore store, int[] rows, int from, int to){
+        this.store = store;
+        this.rows = rows;
+        this.from = from;
+        this.to = to;
+    }
+
+    //store row of the i-th rating
+    public int row(int i){
+        return null == rows ? from + i : rows[from + i];
+    }
+
+    public int getMovieId(int i){
+        return store.getMovieId(row(i));
+    }
+
+    public int getUserId(int i){
+        return store.getUserId(row(i));
+    }
+
+    public float getScore(int i){
+        return store.getScore(row(i));
+    }
+
+    public long getTimestamp(int i){
+        return store.getTimestamp(row(i));
+    }
+
+    @Override
+    public Rating get(int i) {
+        if (i < 0 || i >= size()){
+            throw new IndexOutOfBoundsException("index " + i + ", size " + size());
+        }
+        Rating rating = new Rating();
+        int row = row(i);
+        rating.setMovieId(store.getMovieId(row));
+        rating.setUserId(store.getUserId(row));
+        rating.setScore(store.getScore(row));
+        rating.setTimestamp(store.getTimestamp(row));
+        return rating;
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    /**
+     * view of some rows of this list
+     * @param indexes   indexes into this list
+     * @return  view of the selected rows in the given order
+     */
+    public RatingList select(int[] indexes){
+        int[] selected = new int[indexes.length];
+        for (int i = 0; i < indexes.length; i++){
+            selected[i] = row(indexes[i]);
+        }
+        return new RatingList(store, selected, 0, selected.length);
+    }
+}
@@ -12,11 +12,26 @@ public class RatingListSerializer extends JsonSerializer<List<Rating>> {
     public void serialize(List<Rating> ratingList, JsonGenerator jsonGenerator,
                           SerializerProvider provider) throws IOException {
         jsonGenerator.writeStartArray();
-        for (Rating rating : ratingList) {
-            jsonGenerator.writeStartObject();
-            jsonGenerator.writeObjectField("rating", rating);
-            jsonGenerator.writeEndObject();
+        if (ratingList instanceof RatingList) {
+            //read the rating store columns directly, same fields and order as a serialized Rating
+            RatingList ratings = (RatingList) ratingList;
+            for (int i = 0; i < ratings.size(); i++) {
+                jsonGenerator.writeStartObject();
+                jsonGenerator.writeObjectFieldStart("rating");
+                jsonGenerator.writeNumberField("movieId", ratings.getMovieId(i));
+                jsonGenerator.writeNumberField("userId", ratings.getUserId(i));
+                jsonGenerator.writeNumberField("score", ratings.getScore(i));
+                jsonGenerator.writeNumberField("timestamp", ratings.getTimestamp(i));
+                jsonGenerator.writeEndObject();
+                jsonGenerator.writeEndObject();
+            }
+        } else {
+            for (Rating rating : ratingList) {
+                jsonGenerator.writeStartObject();
+                jsonGenerator.writeObjectField("rating", rating);
+                jsonGenerator.writeEndObject();
+            }
         }
         jsonGenerator.writeEndArray();
     }
-}
\ No newline at end of file
+}
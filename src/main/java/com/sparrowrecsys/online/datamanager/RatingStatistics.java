@@ -0,0 +1,207 @@
+package com.sparrowrecsys.online.datamanager;
+
+import java.util.Arrays;
+
+/**
+ * RatingStatistics, running statistics of a stream of ratings in constant space: count, mean and variance
+ * by Welford's algorithm, min and max score, earliest and latest timestamp, and optionally the top rated ones.
+ *
+ * The top ratings are a fixed-capacity min-heap of caller-defined indexes, e.g. positions in a RatingList, so the
+ * lowest kept rating is evicted in O(log k). On equal scores the rating with the smaller index is kept.
+ * Partial statistics of parallel loaders are combined with merge(). Not thread safe.
+ */
+public class RatingStatistics {
+    private final int topCapacity;
+    private int count;
+    private double mean;
+    //sum of squared differences from the mean
+    private double m2;
+    private float min;
+    private float max;
+    private long earliestTimestamp;
+    private long latestTimestamp;
+    //heap of the top ratings, the root is the next one to evict
+    private final float[] topScores;
+    private final int[] topIndexes;
+    private int topSize;
+
+    /**
+     * @param topCapacity   number of top rated ratings to keep, 0 to keep none
+     */
+    public RatingStatistics(int topCapacity){
+        this.topCapacity = topCapacity;
+        this.count = 0;
+        this.mean = 0;
+        this.m2 = 0;
+        this.min = Float.POSITIVE_INFINITY;
+        this.max = Float.NEGATIVE_INFINITY;
+        this.earliestTimestamp = Long.MAX_VALUE;
+        this.latestTimestamp = Long.MIN_VALUE;
+        this.topScores = new float[topCapacity];
+        this.topIndexes = new int[topCapacity];
+        this.topSize = 0;
+    }
+
+    /**
+     * statistics of all ratings of a list
+     * @param ratings   ratings
+     * @param topCapacity   number of top rated ratings to keep, their indexes are positions in the list
+     * @return  statistics of the list
+     */
+    public static RatingStatistics of(RatingList ratings, int topCapacity){
+        RatingStatistics statistics = new RatingStatistics(topCapacity);
+        for (int i = 0; i < ratings.size(); i++){
+            statistics.add(ratings.getScore(i), ratings.getTimestamp(i), i);
+        }
+        return statistics;
+    }
+
+    /**
+     * add a rating
+     * @param score rating score
+     * @param timestamp rating timestamp
+     * @param index index the rating is reported by in getTopIndexes
+     */
+    public void add(float score, long timestamp, int index){
+        count++;
+        double delta = score - mean;
+        mean += delta / count;
+        m2 += delta * (score - mean);
+        min = Math.min(min, score);
+        max = Math.max(max, score);
+        earliestTimestamp = Math.min(earliestTimestamp, timestamp);
+        latestTimestamp = Math.max(latestTimestamp, timestamp);
+        offerTop(score, index);
+    }
+
+    /**
+     * add all ratings of other statistics, as if they had been added to this one
+     * @param other statistics to merge, left unchanged
+     */
+    public void merge(RatingStatistics other){
+        if (other.count == 0){
+            return;
+        }
+        //Chan et al. pairwise combination of means and squared differences
+        long total = (long) count + other.count;
+        double delta = other.mean - mean;
+        mean += delta * other.count / total;
+        m2 += other.m2 + delta * delta * count * other.count / total;
+        count = (int) total;
+        min = Math.min(min, other.min);
+        max = Math.max(max, other.max);
+        earliestTimestamp = Math.min(earliestTimestamp, other.earliestTimestamp);
+        latestTimestamp = Math.max(latestTimestamp, other.latestTimestamp);
+        for (int i = 0; i < other.topSize; i++){
+            offerTop(other.topScores[i], other.topIndexes[i]);
+        }
+    }
+
+    private void offerTop(float score, int index){
+        if (topSize < topCapacity){
+            topScores[topSize] = score;
+            topIndexes[topSize] = index;
+            siftUp(topSize++);
+        } else if (topCapacity > 0 && isLower(topScores[0], topIndexes[0], score, index)){
+            topScores[0] = score;
+            topIndexes[0] = index;
+            siftDown(0);
+        }
+    }
+
+    //whether rating a ranks below rating b, ties rank the larger index lower
+    private static boolean isLower(float scoreA, int indexA, float scoreB, int indexB){
+        return scoreA < scoreB || (scoreA == scoreB && indexA > indexB);
+    }
+
+    private void siftUp(int i){
+        while (i > 0){
+            int parent = (i - 1) >>> 1;
+            if (!isLower(topScores[i], topIndexes[i], topScores[parent], topIndexes[parent])){
+                return;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i){
+        while (true){
+            int lowest = i;
+            int left = 2 * i + 1;
+            int right = left + 1;
+            if (left < topSize && isLower(topScores[left], topIndexes[left], topScores[lowest], topIndexes[lowest])){
+                lowest = left;
+            }
+            if (right < topSize && isLower(topScores[right], topIndexes[right], topScores[lowest], topIndexes[lowest])){
+                lowest = right;
+            }
+            if (lowest == i){
+                return;
+            }
+            swap(i, lowest);
+            i = lowest;
+        }
+    }
+
+    private void swap(int i, int j){
+        float score = topScores[i];
+        topScores[i] = topScores[j];
+        topScores[j] = score;
+        int index = topIndexes[i];
+        topIndexes[i] = topIndexes[j];
+        topIndexes[j] = index;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public double getMean() {
+        return mean;
+    }
+
+    //sample variance like Spark's variance(), 0 with less than two ratings
+    public double getVariance() {
+        return count < 2 ? 0 : m2 / (count - 1);
+    }
+
+    public double getStddev() {
+        return Math.sqrt(getVariance());
+    }
+
+    //lowest score, NaN without ratings
+    public float getMin() {
+        return count == 0 ? Float.NaN : min;
+    }
+
+    //highest score, NaN without ratings
+    public float getMax() {
+        return count == 0 ? Float.NaN : max;
+    }
+
+    //timestamp of the earliest rating, 0 without ratings
+    public long getEarliestTimestamp() {
+        return count == 0 ? 0 : earliestTimestamp;
+    }
+
+    //timestamp of the latest rating, 0 without ratings
+    public long getLatestTimestamp() {
+        return count == 0 ? 0 : latestTimestamp;
+    }
+
+    //indexes of the top rated ratings, from the lowest to the highest ranked
+    public int[] getTopIndexes(){
+        Integer[] order = new Integer[topSize];
+        for (int i = 0; i < topSize; i++){
+            order[i] = i;
+        }
+        Arrays.sort(order, (a, b) -> isLower(topScores[a], topIndexes[a], topScores[b], topIndexes[b]) ? -1
+                : isLower(topScores[b], topIndexes[b], topScores[a], topIndexes[a]) ? 1 : 0);
+        int[] indexes = new int[topSize];
+        for (int i = 0; i < topSize; i++){
+            indexes[i] = topIndexes[order[i]];
+        }
+        return indexes;
+    }
+}
@@ -0,0 +1,277 @@
+package com.sparrowrecsys.online.datamanager;
+
+import com.sparrowrecsys.online.util.IntObjectMap;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * RatingStore, all ratings in parallel primitive columns instead of one Rating object per row.
+ *
+ * Rows are grouped by user (CSR), so the ratings of a user are one contiguous range and userOffsets[u]..userOffsets[u+1]
+ * delimits the rows of the user with ordinal u. The ratings of a movie are a range of movieRows, a permutation of
+ * row numbers in the original file order. Timestamps are unsigned epoch seconds, which last until 2106.
+ * A rating costs 16 bytes: movie id, score, timestamp and its movieRows entry.
+ */
+public class RatingStore {
+    //user id of every user ordinal, and the first row of every user ordinal followed by the row count
+    final int[] userIds;
+    final int[] userOffsets;
+    final int[] movieIds;
+    final float[] scores;
+    final int[] timestamps;
+    //rows of every movie, ranges are handed to the movies as RatingList views
+    final int[] movieRows;
+    final int size;
+
+    private RatingStore(int[] userIds, int[] userOffsets, int[] movieIds, float[] scores, int[] timestamps, int[] movieRows, int size){
+        this.userIds = userIds;
+        this.userOffsets = userOffsets;
+        this.movieIds = movieIds;
+        this.scores = scores;
+        this.timestamps = timestamps;
+        this.movieRows = movieRows;
+        this.size = size;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getMovieId(int row){
+        return movieIds[row];
+    }
+
+    public float getScore(int row){
+        return scores[row];
+    }
+
+    public long getTimestamp(int row){
+        return Integer.toUnsignedLong(timestamps[row]);
+    }
+
+    //user of a row, found by binary search over the user ranges
+    public int getUserId(int row){
+        int low = 0;
+        int high = userIds.length - 1;
+        while (low < high){
+            int mid = (low + high + 1) >>> 1;
+            if (userOffsets[mid] <= row){
+                low = mid;
+            } else {
+                high = mid - 1;
+            }
+        }
+        return userIds[low];
+    }
+
+    public long getMemoryBytes(){
+        return 4L * (userIds.length + userOffsets.length + movieIds.length + scores.length + timestamps.length + movieRows.length);
+    }
+
+    /**
+     * Builder, appends ratings in file order and groups them by user once all are read
+     */
+    public static class Builder {
+        //user ordinal of every row, only needed while building
+        int[] userOrdinals;
+        int[] movieIds;
+        float[] scores;
+        int[] timestamps;
+        int size;
+        //user ordinals in order of first appearance
+        final IntObjectMap<int[]> ordinalOfUser = new IntObjectMap<>();
+        final List<Integer> userIdOfOrdinal = new ArrayList<>();
+        int lastUserId;
+        int lastOrdinal = -1;
+        //false once a user's rows are interleaved with another user's, rows then need to be regrouped
+        boolean groupedByUser = true;
+
+        public Builder(int expectedSize){
+            int capacity = Math.max(16, expectedSize);
+            userOrdinals = new int[capacity];
+            movieIds = new int[capacity];
+            scores = new float[capacity];
+            timestamps = new int[capacity];
+        }
+
+        public void add(int userId, int movieId, float score, long timestamp){
+            if (size == movieIds.length){
+                grow(size + (size >> 1));
+            }
+            userOrdinals[size] = ordinalOf(userId);
+            movieIds[size] = movieId;
+            scores[size] = score;
+            timestamps[size] = (int) timestamp;
+            size++;
+        }
+
+        //ordinal of a user, rows of a user that isn't the last one added break the grouping
+        private int ordinalOf(int userId){
+            if (lastOrdinal >= 0 && userId == lastUserId){
+                return lastOrdinal;
+            }
+            int ordinal;
+            int[] known = ordinalOfUser.get(userId);
+            if (null == known){
+                ordinal = userIdOfOrdinal.size();
+                ordinalOfUser.put(userId, new int[]{ordinal});
+                userIdOfOrdinal.add(userId);
+            } else {
+                ordinal = known[0];
+                groupedByUser = false;
+            }
+            lastUserId = userId;
+            lastOrdinal = ordinal;
+            return ordinal;
+        }
+
+        /**
+         * append builders of consecutive parts of a file into one, as if their rows had been added to it in order.
+         * Every part's columns are released once copied, so the parts and the result don't have to fit in memory twice
+         * @param parts builders in file order
+         * @return  builder holding all rows
+         */
+        public static Builder concat(List<Builder> parts){
+            long total = 0;
+            for (Builder part : parts){
+                total += part.size;
+            }
+            if (total > Integer.MAX_VALUE - 8){
+                throw new IllegalArgumentException("too many ratings: " + total);
+            }
+            Builder merged = new Builder((int) total);
+            for (Builder part : parts){
+                //a part is either grouped by user, then its ordinals first show up in increasing order,
+                //or it isn't and neither is the merged builder
+                int[] mergedOrdinal = new int[part.userIdOfOrdinal.size()];
+                for (int ordinal = 0; ordinal < mergedOrdinal.length; ordinal++){
+                    mergedOrdinal[ordinal] = merged.ordinalOf(part.userIdOfOrdinal.get(ordinal));
+                }
+                merged.groupedByUser &= part.groupedByUser;
+                for (int row = 0; row < part.size; row++){
+                    merged.userOrdinals[merged.size + row] = mergedOrdinal[part.userOrdinals[row]];
+                }
+                System.arraycopy(part.movieIds, 0, merged.movieIds, merged.size, part.size);
+                System.arraycopy(part.scores, 0, merged.scores, merged.size, part.size);
+                System.arraycopy(part.timestamps, 0, merged.timestamps, merged.size, part.size);
+                merged.size += part.size;
+                part.userOrdinals = null;
+                part.movieIds = null;
+                part.scores = null;
+                part.timestamps = null;
+                part.size = 0;
+            }
+            return merged;
+        }
+
+        private void grow(int capacity){
+            userOrdinals = Arrays.copyOf(userOrdinals, capacity);
+            movieIds = Arrays.copyOf(movieIds, capacity);
+            scores = Arrays.copyOf(scores, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+        }
+
+        /**
+         * group rows by user, index them by movie and hand every user and movie its rating view
+         * @param users     users by id, users with ratings who are missing are added
+         * @param movies    movies by id, ratings of unknown movies only show up on the user side
+         * @return  built store
+         */
+        public RatingStore build(IntObjectMap<User> users, IntObjectMap<Movie> movies){
+            //row ranges of every movie in file order, {from, cursor}
+            IntObjectMap<int[]> movieRanges = new IntObjectMap<>(movies.size());
+            for (int row = 0; row < size; row++){
+                int[] range = movieRanges.get(movieIds[row]);
+                if (null == range){
+                    if (null == movies.get(movieIds[row])){
+                        continue;
+                    }
+                    range = new int[2];
+                    movieRanges.put(movieIds[row], range);
+                }
+                range[1]++;
+            }
+            int[] offset = {0};
+            movieRanges.forEach((range, movieId) -> {
+                int count = range[1];
+                range[0] = offset[0];
+                range[1] = offset[0];
+                offset[0] += count;
+            });
+            int[] movieRows = new int[offset[0]];
+            for (int row = 0; row < size; row++){
+                int[] range = movieRanges.get(movieIds[row]);
+                if (null != range){
+                    movieRows[range[1]++] = row;
+                }
+            }
+
+            int userCount = userIdOfOrdinal.size();
+            int[] userOffsets = new int[userCount + 1];
+            for (int row = 0; row < size; row++){
+                userOffsets[userOrdinals[row] + 1]++;
+            }
+            for (int u = 0; u < userCount; u++){
+                userOffsets[u + 1] += userOffsets[u];
+            }
+            if (!groupedByUser){
+                regroupByUser(userOffsets, movieRows);
+            }
+            userOrdinals = null;
+            if (size < movieIds.length){
+                movieIds = Arrays.copyOf(movieIds, size);
+                scores = Arrays.copyOf(scores, size);
+                timestamps = Arrays.copyOf(timestamps, size);
+            }
+
+            int[] userIds = new int[userCount];
+            for (int u = 0; u < userCount; u++){
+                userIds[u] = userIdOfOrdinal.get(u);
+            }
+            RatingStore store = new RatingStore(userIds, userOffsets, movieIds, scores, timestamps, movieRows, size);
+
+            for (int u = 0; u < userCount; u++){
+                User user = users.get(userIds[u]);
+                if (null == user){
+                    user = new User();
+                    user.setUserId(userIds[u]);
+                    users.put(userIds[u], user);
+                }
+                user.setRatings(new RatingList(store, null, userOffsets[u], userOffsets[u + 1]));
+            }
+            movieRanges.forEach((range, movieId) -> {
+                movies.get(movieId).setRatings(new RatingList(store, movieRows, range[0], range[1]));
+            });
+            return store;
+        }
+
+        //stable counting sort of the rows by user ordinal, movieRows are renumbered to the new row order
+        private void regroupByUser(int[] userOffsets, int[] movieRows){
+            int[] cursor = Arrays.copyOf(userOffsets, userOffsets.length - 1);
+            int[] newRow = new int[size];
+            for (int row = 0; row < size; row++){
+                newRow[row] = cursor[userOrdinals[row]]++;
+            }
+            int[] sortedMovieIds = new int[size];
+            for (int row = 0; row < size; row++){
+                sortedMovieIds[newRow[row]] = movieIds[row];
+            }
+            movieIds = sortedMovieIds;
+            float[] sortedScores = new float[size];
+            for (int row = 0; row < size; row++){
+                sortedScores[newRow[row]] = scores[row];
+            }
+            scores = sortedScores;
+            int[] sortedTimestamps = new int[size];
+            for (int row = 0; row < size; row++){
+                sortedTimestamps[newRow[row]] = timestamps[row];
+            }
+            timestamps = sortedTimestamps;
+            for (int i = 0; i < movieRows.length; i++){
+                movieRows[i] = newRow[movieRows[i]];
+            }
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package com.sparrowrecsys.online.datamanager;
+
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
+import redis.clients.jedis.ScanParams;
+import redis.clients.jedis.ScanResult;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+
+import static com.sparrowrecsys.online.util.Config.*;
+
+/**
+ * RedisBulkLoader, loads every key matching a pattern at startup without blocking Redis.
+ *
+ * Keys are iterated with SCAN cursors instead of KEYS, values are fetched in pipelined batches of
+ * REDIS_BATCH_SIZE keys, and up to REDIS_LOADER_THREADS fetched batches are parsed on a worker pool
+ * while the next batches are being scanned and fetched. Parsed values are applied on the calling thread
+ * in batch order. Keys are deduplicated within a batch only, so a key SCAN returns again in a later batch
+ * while Redis rehashes is applied again, and apply must tolerate that.
+ */
+public class RedisBulkLoader {
+
+    private RedisBulkLoader(){}
+
+    /**
+     * load all keys matching a pattern
+     * @param pattern   SCAN match pattern, e.g. "i2vEmb:*"
+     * @param fetch     queues the value request of a key on a pipeline, e.g. Pipeline::get
+     * @param parse     turns a key and its raw value into the loaded value, runs on worker threads, null to skip
+     * @param apply     consumes a key and its parsed value, runs on the calling thread, may see a key twice
+     * @return  number of values applied
+     */
+    public static <R, T> int load(String pattern, BiFunction<Pipeline, String, Response<R>> fetch,
+                                  BiFunction<String, R, T> parse, BiConsumer<String, T> apply){
+        long startTime = System.currentTimeMillis();
+        ExecutorService parsePool = Executors.newFixedThreadPool(REDIS_LOADER_THREADS);
+        try {
+            return RedisClient.getInstance().executeBulk(jedis -> {
+                int scannedCount = 0;
+                int appliedCount = 0;
+                //batches being parsed in batch order, one per loader thread at most
+                Queue<Future<List<Entry<T>>>> pending = new ArrayDeque<>();
+                ScanParams scanParams = new ScanParams().match(pattern).count(REDIS_BATCH_SIZE);
+                String cursor = ScanParams.SCAN_POINTER_START;
+                List<String> keys = new ArrayList<>(REDIS_BATCH_SIZE);
+                Set<String> batchKeys = new HashSet<>();
+                do {
+                    ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
+                    cursor = scanResult.getCursor();
+                    for (String key : scanResult.getResult()){
+                        //SCAN may return a key more than once while Redis rehashes
+                        if (batchKeys.add(key)){
+                            keys.add(key);
+                        }
+                    }
+                    boolean lastScan = ScanParams.SCAN_POINTER_START.equals(cursor);
+                    if (keys.size() < REDIS_BATCH_SIZE && !lastScan){
+                        continue;
+                    }
+
+                    Pipeline pipeline = jedis.pipelined();
+                    List<Response<R>> responses = new ArrayList<>(keys.size());
+                    for (String key : keys){
+                        responses.add(fetch.apply(pipeline, key));
+                    }
+                    pipeline.sync();
+                    scannedCount += keys.size();
+
+                    if (pending.size() >= REDIS_LOADER_THREADS){
+                        appliedCount += applyBatch(pending.poll(), apply);
+                    }
+                    List<String> fetchedKeys = keys;
+                    pending.add(parsePool.submit(() -> parseBatch(fetchedKeys, responses, parse)));
+                    keys = new ArrayList<>(REDIS_BATCH_SIZE);
+                    batchKeys.clear();
+                } while (!ScanParams.SCAN_POINTER_START.equals(cursor));
+                while (!pending.isEmpty()){
+                    appliedCount += applyBatch(pending.poll(), apply);
+                }
+
+                long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+                System.out.println("Bulk loaded " + appliedCount + " of " + scannedCount + " keys matching " + pattern
+                        + " in " + elapsed + " ms, " + (scannedCount * 1000L / elapsed) + " keys/sec.");
+                return appliedCount;
+            });
+        } finally {
+            parsePool.shutdownNow();
+        }
+    }
+
+    private static <R, T> List<Entry<T>> parseBatch(List<String> keys, List<Response<R>> responses, BiFunction<String, R, T> parse){
+        List<Entry<T>> entries = new ArrayList<>(keys.size());
+        for (int i = 0; i < keys.size(); i++){
+            R raw = responses.get(i).get();
+            if (null == raw){
+                continue;
+            }
+            T value = parse.apply(keys.get(i), raw);
+            if (null != value){
+                entries.add(new Entry<>(keys.get(i), value));
+            }
+        }
+        return entries;
+    }
+
+    private static <T> int applyBatch(Future<List<Entry<T>>> parsing, BiConsumer<String, T> apply){
+        List<Entry<T>> entries;
+        try {
+            entries = parsing.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("interrupted while parsing Redis values", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("failed to parse Redis values", e.getCause());
+        }
+        for (Entry<T> entry : entries){
+            apply.accept(entry.key, entry.value);
+        }
+        return entries.size();
+    }
+
+    private static class Entry<T> {
+        final String key;
+        final T value;
+
+        Entry(String key, T value){
+            this.key = key;
+            this.value = value;
+        }
+    }
+}
@@ -1,26 +1,141 @@
 package com.sparrowrecsys.online.datamanager;
 
 import redis.clients.jedis.Jedis;
+import redis.clients.jedis.JedisPool;
+import redis.clients.jedis.JedisPoolConfig;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
-import static com.sparrowrecsys.online.util.Config.*;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
 
+import static com.sparrowrecsys.online.util.Config.*;
 
+/**
+ * RedisClient, thread-safe Redis access backed by a JedisPool.
+ * Every call borrows a connection for its own duration, so concurrent requests no longer share one Jedis.
+ */
 public class RedisClient {
-    //singleton Jedis
-    private static volatile Jedis redisClient;
+    //singleton instance
+    private static volatile RedisClient instance;
+
+    private final JedisPool pool;
 
     private RedisClient(){
-        redisClient = new Jedis(REDIS_ENDPOINT, REDIS_PORT);
+        JedisPoolConfig poolConfig = new JedisPoolConfig();
+        poolConfig.setMaxTotal(REDIS_POOL_MAX_TOTAL);
+        poolConfig.setMaxIdle(REDIS_POOL_MAX_TOTAL);
+        poolConfig.setMinIdle(REDIS_POOL_MIN_IDLE);
+        //wait at most REDIS_POOL_MAX_WAIT_MILLIS for a free connection when the pool is exhausted, then fail
+        poolConfig.setBlockWhenExhausted(true);
+        poolConfig.setMaxWaitMillis(REDIS_POOL_MAX_WAIT_MILLIS);
+        this.pool = new JedisPool(poolConfig, REDIS_ENDPOINT, REDIS_PORT,
+                REDIS_CONNECTION_TIMEOUT_MILLIS, REDIS_SO_TIMEOUT_MILLIS, null, 0, "sparrow-online");
     }
 
-    public static Jedis getInstance(){
-        if (null == redisClient){
+    public static RedisClient getInstance(){
+        if (null == instance){
             synchronized (RedisClient.class){
-                if (null == redisClient){
-                    redisClient = new Jedis(REDIS_ENDPOINT, REDIS_PORT);
+                if (null == instance){
+                    instance = new RedisClient();
                 }
             }
         }
-        return redisClient;
+        return instance;
+    }
+
+    /**
+     * run an action on a pooled connection, the connection is returned to the pool afterwards
+     * @param action    action using the borrowed connection, must not keep a reference to it
+     * @return  result of the action
+     */
+    public <T> T execute(Function<Jedis, T> action){
+        try (Jedis jedis = pool.getResource()) {
+            return action.apply(jedis);
+        }
+    }
+
+    /**
+     * run a bulk action, e.g. a load of all keys at startup, with the read timeout raised to REDIS_BULK_SO_TIMEOUT_MILLIS
+     * @param action    action using the borrowed connection, must not keep a reference to it
+     * @return  result of the action
+     */
+    public <T> T executeBulk(Function<Jedis, T> action){
+        try (Jedis jedis = pool.getResource()) {
+            int soTimeout = jedis.getClient().getSoTimeout();
+            jedis.getClient().setSoTimeout(REDIS_BULK_SO_TIMEOUT_MILLIS);
+            try {
+                return action.apply(jedis);
+            } finally {
+                //the connection goes back to the pool with the request path timeout
+                jedis.getClient().setSoTimeout(soTimeout);
+            }
+        }
+    }
+
+    public String get(String key){
+        return execute(jedis -> jedis.get(key));
+    }
+
+    public Map<String, String> hgetAll(String key){
+        return execute(jedis -> jedis.hgetAll(key));
+    }
+
+    /**
+     * get values of many string keys, sent as MGET commands of at most REDIS_BATCH_SIZE keys with the bulk timeout
+     * @param keys  keys to get
+     * @return  values in key order, null for missing keys
+     */
+    public List<String> mget(List<String> keys){
+        if (keys.isEmpty()){
+            return Collections.emptyList();
+        }
+        return executeBulk(jedis -> {
+            List<String> values = new ArrayList<>(keys.size());
+            for (int from = 0; from < keys.size(); from += REDIS_BATCH_SIZE){
+                List<String> batch = keys.subList(from, Math.min(keys.size(), from + REDIS_BATCH_SIZE));
+                values.addAll(jedis.mget(batch.toArray(new String[0])));
+            }
+            return values;
+        });
+    }
+
+    /**
+     * get many hashes, pipelined in batches of at most REDIS_BATCH_SIZE keys with the bulk timeout
+     * @param keys  hash keys to get
+     * @return  hashes in key order, empty maps for missing keys
+     */
+    public List<Map<String, String>> hgetAllBatch(List<String> keys){
+        if (keys.isEmpty()){
+            return Collections.emptyList();
+        }
+        return executeBulk(jedis -> {
+            List<Map<String, String>> values = new ArrayList<>(keys.size());
+            List<Response<Map<String, String>>> responses = new ArrayList<>(REDIS_BATCH_SIZE);
+            for (int from = 0; from < keys.size(); from += REDIS_BATCH_SIZE){
+                Pipeline pipeline = jedis.pipelined();
+                responses.clear();
+                for (String key : keys.subList(from, Math.min(keys.size(), from + REDIS_BATCH_SIZE))){
+                    responses.add(pipeline.hgetAll(key));
+                }
+                pipeline.sync();
+                for (Response<Map<String, String>> response : responses){
+                    values.add(response.get());
+                }
+            }
+            return values;
+        });
+    }
+
+    //connections currently borrowed and idle, for monitoring
+    public int getActiveConnections(){
+        return pool.getNumActive();
+    }
+
+    public int getIdleConnections(){
+        return pool.getNumIdle();
     }
 }
@@ -3,9 +3,9 @@ package com.sparrowrecsys.online.datamanager;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.databind.annotation.JsonSerialize;
 import com.sparrowrecsys.online.model.Embedding;
+import com.sparrowrecsys.online.serving.FeatureSchema;
+import com.sparrowrecsys.online.serving.FeatureStore;
 
-import java.util.ArrayList;
-import java.util.List;
 import java.util.Map;
 
 /**
@@ -13,25 +13,32 @@ import java.util.Map;
  */
 public class User {
     int userId;
-    double averageRating = 0;
-    double highestRating = 0;
-    double lowestRating = 5.0;
-    int ratingCount = 0;
+    //count, average, spread and recency of the user's ratings
+    @JsonIgnore
+    RatingStatistics ratingStatistics;
 
+    //a view of the rating store
     @JsonSerialize(using = RatingListSerializer.class)
-    List<Rating> ratings;
+    RatingList ratings;
 
-    //embedding of the movie
+    //embedding of the user fetched online, takes priority over embIndex
     @JsonIgnore
     Embedding emb;
 
+    //row of the user in DataManager's user embedding matrix, -1 if the user has no offline embedding
+    @JsonIgnore
+    int embIndex;
+
+    //typed features of the user in a single entity store, swapped in by one write
     @JsonIgnore
-    Map<String, String> userFeatures;
+    FeatureStore featureStore;
 
     public User(){
-        this.ratings = new ArrayList<>();
+        this.ratings = RatingList.EMPTY;
+        this.ratingStatistics = new RatingStatistics(0);
         this.emb = null;
-        this.userFeatures = null;
+        this.embIndex = -1;
+        this.featureStore = FeatureStore.EMPTY_USER;
     }
 
     public int getUserId() {
@@ -42,58 +49,59 @@ public class User {
         this.userId = userId;
     }
 
-    public List<Rating> getRatings() {
+    public RatingList getRatings() {
         return ratings;
     }
 
-    public void setRatings(List<Rating> ratings) {
+    //attach the ratings of the user and compute the rating statistics from them
+    void setRatings(RatingList ratings) {
         this.ratings = ratings;
-    }
-
-    public void addRating(Rating rating) {
-        this.ratings.add(rating);
-        this.averageRating = (this.averageRating * ratingCount + rating.getScore()) / (ratingCount + 1);
-        if (rating.getScore() > highestRating){
-            highestRating = rating.getScore();
-        }
-
-        if (rating.getScore() < lowestRating){
-            lowestRating = rating.getScore();
-        }
-
-        ratingCount++;
+        this.ratingStatistics = RatingStatistics.of(ratings, 0);
     }
 
     public double getAverageRating() {
-        return averageRating;
-    }
-
-    public void setAverageRating(double averageRating) {
-        this.averageRating = averageRating;
+        return ratingStatistics.getMean();
     }
 
+    //highest score of the user, 0 if the user has no ratings
     public double getHighestRating() {
-        return highestRating;
-    }
-
-    public void setHighestRating(double highestRating) {
-        this.highestRating = highestRating;
+        return ratingStatistics.getCount() == 0 ? 0 : ratingStatistics.getMax();
     }
 
+    //lowest score of the user, 5 if the user has no ratings
     public double getLowestRating() {
-        return lowestRating;
+        return ratingStatistics.getCount() == 0 ? 5.0 : ratingStatistics.getMin();
     }
 
-    public void setLowestRating(double lowestRating) {
-        this.lowestRating = lowestRating;
+    public int getRatingCount() {
+        return ratingStatistics.getCount();
     }
 
-    public int getRatingCount() {
-        return ratingCount;
+    public double getRatingStddev() {
+        return ratingStatistics.getStddev();
     }
 
-    public void setRatingCount(int ratingCount) {
-        this.ratingCount = ratingCount;
+    //timestamp of the latest rating of the user, 0 if the user has none
+    @JsonIgnore
+    public long getLatestRatingTimestamp() {
+        return ratingStatistics.getLatestTimestamp();
+    }
+
+    /**
+     * copy of the user carrying an online profile, so a request doesn't modify the user shared by the snapshot
+     * @param profile   embedding and features fetched online, missing parts keep the user's own
+     * @return  request local copy of the user
+     */
+    public User withProfile(UserProfile profile){
+        User user = new User();
+        user.userId = userId;
+        user.ratingStatistics = ratingStatistics;
+        user.ratings = ratings;
+        user.embIndex = embIndex;
+        Embedding profileEmb = profile.getEmb();
+        user.emb = null == profileEmb ? emb : profileEmb;
+        user.featureStore = null == profile.getFeatures() ? featureStore : profile.getFeatures();
+        return user;
     }
 
     public Embedding getEmb() {
@@ -104,11 +112,20 @@ public class User {
         this.emb = emb;
     }
 
-    public Map<String, String> getUserFeatures() {
-        return userFeatures;
+    public int getEmbIndex() {
+        return embIndex;
+    }
+
+    public void setEmbIndex(int embIndex) {
+        this.embIndex = embIndex;
+    }
+
+    public FeatureStore getFeatureStore() {
+        return featureStore;
     }
 
+    //parse the raw features of the user, e.g. a Redis hash, into a typed row
     public void setUserFeatures(Map<String, String> userFeatures) {
-        this.userFeatures = userFeatures;
+        this.featureStore = FeatureStore.of(FeatureSchema.USER, userFeatures);
     }
 }
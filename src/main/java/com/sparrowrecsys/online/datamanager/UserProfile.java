@@ -0,0 +1,56 @@
+package com.sparrowrecsys.online.datamanager;
+
+import com.sparrowrecsys.online.model.Embedding;
+import com.sparrowrecsys.online.serving.FeatureSchema;
+import com.sparrowrecsys.online.serving.FeatureStore;
+
+/**
+ * UserProfile, immutable online state of a user fetched from Redis: embedding and features.
+ * Profiles are cached and shared between requests, a request applies one to its own copy of the user.
+ * The embedding is kept as a private copy of its vector and handed out as a new Embedding, since Embedding
+ * is mutable and a caller modifying it would corrupt the profile for every later request.
+ */
+public class UserProfile {
+    //object headers and references, a rough estimate is enough to bound the cache
+    private static final int BASE_BYTES = 64;
+    private static final int BYTES_PER_FEATURE = 24;
+
+    private final int userId;
+    //trimmed embedding vector and its norm, null if Redis has no embedding of the user or embeddings aren't loaded from Redis
+    private final float[] embVector;
+    private final float embNorm;
+    //null if user features aren't loaded from Redis
+    private final FeatureStore features;
+
+    public UserProfile(int userId, Embedding emb, FeatureStore features){
+        this.userId = userId;
+        this.embVector = null == emb ? null : emb.getVector().clone();
+        this.embNorm = null == emb ? 0 : emb.getNorm();
+        this.features = features;
+    }
+
+    public int getUserId() {
+        return userId;
+    }
+
+    //a new embedding over a copy of the cached vector on every call, null if the profile has no embedding
+    public Embedding getEmb() {
+        return null == embVector ? null : new Embedding(embVector.clone(), embNorm);
+    }
+
+    public FeatureStore getFeatures() {
+        return features;
+    }
+
+    //estimated heap size of the profile
+    public int getEstimatedBytes(){
+        int bytes = BASE_BYTES;
+        if (null != embVector){
+            bytes += BASE_BYTES + 4 * embVector.length;
+        }
+        if (null != features){
+            bytes += BASE_BYTES + BYTES_PER_FEATURE * FeatureSchema.USER.getColumnCount();
+        }
+        return bytes;
+    }
+}
@@ -1,48 +1,130 @@
 package com.sparrowrecsys.online.model;
 
+import java.util.AbstractList;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.RandomAccess;
 
 /**
  * Embedding Class, contains embedding vector and related calculation
  */
 public class Embedding {
-    //embedding vector
-    ArrayList<Float> embVector;
+    //embedding vector, stored as a contiguous primitive array
+    float[] vector;
+    //number of valid dimensions in vector
+    int dim;
+    //cached L2 norm, NaN means it needs to be recomputed
+    float norm;
 
     public Embedding(){
-        this.embVector = new ArrayList<>();
+        this.vector = new float[0];
+        this.dim = 0;
+        this.norm = Float.NaN;
+    }
+
+    public Embedding(float[] vector){
+        this.vector = vector;
+        this.dim = vector.length;
+        this.norm = VectorMath.norm(vector, 0, vector.length);
+    }
+
+    //embedding of a vector whose norm is already known, e.g. a copy of a cached vector
+    public Embedding(float[] vector, float norm){
+        this.vector = vector;
+        this.dim = vector.length;
+        this.norm = norm;
     }
 
     public Embedding(ArrayList<Float> embVector){
-        this.embVector = embVector;
+        this(toArray(embVector));
     }
 
     public void addDim(Float element){
-        this.embVector.add(element);
+        if (dim == vector.length){
+            vector = Arrays.copyOf(vector, Math.max(8, dim * 2));
+        }
+        vector[dim++] = element;
+        norm = Float.NaN;
+    }
+
+    public int getDim() {
+        return dim;
     }
 
+    //get the primitive vector, trimmed to its dimension
+    public float[] getVector() {
+        if (vector.length != dim){
+            vector = Arrays.copyOf(vector, dim);
+        }
+        return vector;
+    }
+
+    public float getNorm() {
+        if (Float.isNaN(norm)){
+            norm = VectorMath.norm(vector, 0, dim);
+        }
+        return norm;
+    }
+
+    //boxed view of the vector, kept for callers that still work on lists
     public ArrayList<Float> getEmbVector() {
-        return embVector;
+        return new ArrayList<>(new FloatListView(vector, dim));
     }
 
     public void setEmbVector(ArrayList<Float> embVector) {
-        this.embVector = embVector;
+        this.vector = toArray(embVector);
+        this.dim = this.vector.length;
+        this.norm = Float.NaN;
     }
 
     //calculate cosine similarity between two embeddings
     public double calculateSimilarity(Embedding otherEmb){
-        if (null == embVector || null == otherEmb || null == otherEmb.getEmbVector()
-                || embVector.size() != otherEmb.getEmbVector().size()){
+        if (null == otherEmb || dim != otherEmb.dim){
             return -1;
         }
-        double dotProduct = 0;
-        double denominator1 = 0;
-        double denominator2 = 0;
-        for (int i = 0; i < embVector.size(); i++){
-            dotProduct += embVector.get(i) * otherEmb.getEmbVector().get(i);
-            denominator1 += embVector.get(i) * embVector.get(i);
-            denominator2 += otherEmb.getEmbVector().get(i) * otherEmb.getEmbVector().get(i);
+        return VectorMath.cosine(vector, 0, getNorm(), otherEmb.vector, 0, otherEmb.getNorm(), dim);
+    }
+
+    //calculate dot product between two embeddings
+    public double calculateDotProduct(Embedding otherEmb){
+        if (null == otherEmb || dim != otherEmb.dim){
+            return 0;
+        }
+        return VectorMath.dot(vector, 0, otherEmb.vector, 0, dim);
+    }
+
+    private static float[] toArray(ArrayList<Float> embVector){
+        if (null == embVector){
+            return new float[0];
+        }
+        float[] array = new float[embVector.size()];
+        for (int i = 0; i < array.length; i++){
+            array[i] = embVector.get(i);
+        }
+        return array;
+    }
+
+    //read-only list adapter over a float array
+    private static class FloatListView extends AbstractList<Float> implements RandomAccess {
+        private final float[] values;
+        private final int size;
+
+        FloatListView(float[] values, int size){
+            this.values = values;
+            this.size = size;
+        }
+
+        @Override
+        public Float get(int index) {
+            if (index >= size){
+                throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+            }
+            return values[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
         }
-        return dotProduct / (Math.sqrt(denominator1) * Math.sqrt(denominator2));
     }
 }
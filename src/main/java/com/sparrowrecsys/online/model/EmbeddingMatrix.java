@@ -0,0 +1,178 @@
+package com.sparrowrecsys.online.model;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.zip.CRC32;
+
+/**
+ * EmbeddingMatrix, row-major off-heap storage for a whole set of embeddings.
+ * Each row is addressed by a dense ordinal, and rows' L2 norms are kept on heap for cosine scoring.
+ *
+ * A single buffer holds at most 2GB, so rows are stored in regions of a power of two rows each, and a row ordinal
+ * splits into a region and an offset in it. Small matrices have a single region.
+ */
+public class EmbeddingMatrix {
+    //embedding dimension
+    final int dim;
+    //row-major float blocks, row r occupies [o * dim, (o + 1) * dim) of region r >>> regionShift, o = r & regionMask
+    final FloatBuffer[] regions;
+    final int regionShift;
+    final int regionMask;
+    //L2 norm of every row
+    final float[] norms;
+    //original id (movie id or user id) of every row
+    final int[] ids;
+    //number of rows filled
+    int rowCount;
+
+    public EmbeddingMatrix(int dim, int capacity){
+        this.dim = dim;
+        int rowsPerRegion = getRowsPerRegion(dim);
+        this.regionShift = Integer.numberOfTrailingZeros(rowsPerRegion);
+        this.regionMask = rowsPerRegion - 1;
+        this.regions = new FloatBuffer[Math.max(1, (int) (((long) capacity + rowsPerRegion - 1) / rowsPerRegion))];
+        for (int region = 0; region < regions.length; region++){
+            int rows = Math.min(rowsPerRegion, capacity - region * rowsPerRegion);
+            regions[region] = ByteBuffer.allocateDirect(rows * dim * Float.BYTES).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        }
+        this.norms = new float[capacity];
+        this.ids = new int[capacity];
+        this.rowCount = 0;
+    }
+
+    /**
+     * wrap already filled float blocks, e.g. memory-mapped regions of a snapshot, norms are kept as given
+     * @param dim   embedding dimension
+     * @param ids   original id of every row
+     * @param norms L2 norm of every row
+     * @param regions   row-major float blocks of getRowsPerRegion(dim) rows each, only the last one may be shorter
+     */
+    public EmbeddingMatrix(int dim, int[] ids, float[] norms, FloatBuffer[] regions){
+        this.dim = dim;
+        int rowsPerRegion = getRowsPerRegion(dim);
+        this.regionShift = Integer.numberOfTrailingZeros(rowsPerRegion);
+        this.regionMask = rowsPerRegion - 1;
+        this.regions = regions;
+        this.ids = ids;
+        this.norms = norms;
+        this.rowCount = ids.length;
+    }
+
+    /**
+     * rows of a region, the largest power of two whose floats fit in a 2GB buffer
+     * @param dim   embedding dimension
+     * @return  number of rows per region
+     */
+    public static int getRowsPerRegion(int dim){
+        return Integer.highestOneBit(Math.max(1, Integer.MAX_VALUE / (Math.max(1, dim) * Float.BYTES)));
+    }
+
+    /**
+     * append a vector to the matrix
+     * @param id    original id of the vector
+     * @param vector    embedding vector, must have the matrix dimension
+     * @return  row ordinal of the vector, -1 if it can't be stored
+     */
+    public synchronized int addRow(int id, float[] vector){
+        if (null == vector || vector.length != dim || rowCount == ids.length){
+            return -1;
+        }
+        int row = rowCount;
+        FloatBuffer data = regions[row >>> regionShift];
+        int offset = (row & regionMask) * dim;
+        for (int i = 0; i < dim; i++){
+            data.put(offset + i, vector[i]);
+        }
+        norms[row] = VectorMath.norm(vector, 0, dim);
+        ids[row] = id;
+        rowCount++;
+        return row;
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getId(int row) {
+        return ids[row];
+    }
+
+    public float getNorm(int row) {
+        return norms[row];
+    }
+
+    //dot product between a row and a query vector
+    public float dot(int row, float[] query){
+        return VectorMath.dot(regions[row >>> regionShift], (row & regionMask) * dim, query, 0, dim);
+    }
+
+    //cosine similarity between a row and a query vector whose norm is known
+    public double cosine(int row, float[] query, float queryNorm){
+        if (norms[row] == 0 || queryNorm == 0){
+            return 0;
+        }
+        return dot(row, query) / ((double) norms[row] * queryNorm);
+    }
+
+    //cosine similarity between two rows of this matrix
+    public double cosine(int rowA, int rowB){
+        if (norms[rowA] == 0 || norms[rowB] == 0){
+            return 0;
+        }
+        return VectorMath.dot(regions[rowA >>> regionShift], (rowA & regionMask) * dim,
+                regions[rowB >>> regionShift], (rowB & regionMask) * dim, dim) / ((double) norms[rowA] * norms[rowB]);
+    }
+
+    //copy a row into dest
+    public void copyRow(int row, float[] dest){
+        FloatBuffer data = regions[row >>> regionShift];
+        int offset = (row & regionMask) * dim;
+        for (int i = 0; i < dim; i++){
+            dest[i] = data.get(offset + i);
+        }
+    }
+
+    //materialize a row as a heap embedding, for non hot-path callers
+    public Embedding getEmbedding(int row){
+        float[] vector = new float[dim];
+        copyRow(row, vector);
+        return new Embedding(vector);
+    }
+
+    /**
+     * checksum of the dimension, ids and vectors in row order, identifies the matrix an index was built on
+     * @return  CRC32 of the matrix content
+     */
+    public long fingerprint(){
+        CRC32 crc = new CRC32();
+        ByteBuffer row = ByteBuffer.allocate(2 * Integer.BYTES + dim * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+        row.putInt(dim).putInt(rowCount).flip();
+        crc.update(row);
+        for (int r = 0; r < rowCount; r++){
+            row.clear();
+            row.putInt(ids[r]);
+            FloatBuffer data = regions[r >>> regionShift];
+            int offset = (r & regionMask) * dim;
+            for (int i = 0; i < dim; i++){
+                row.putFloat(data.get(offset + i));
+            }
+            row.flip();
+            crc.update(row);
+        }
+        return crc.getValue();
+    }
+
+    //approximate bytes held by this matrix, off-heap blocks plus on-heap norms and ids
+    public long getMemoryBytes(){
+        long bytes = (long) norms.length * Float.BYTES + (long) ids.length * Integer.BYTES;
+        for (FloatBuffer data : regions){
+            bytes += (long) data.capacity() * Float.BYTES;
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,237 @@
+package com.sparrowrecsys.online.model;
+
+import com.sparrowrecsys.online.util.Config;
+import com.sparrowrecsys.online.util.Utility;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Scanner;
+import java.util.zip.CRC32;
+
+/**
+ * EmbeddingSnapshot, versioned binary file format for a set of embeddings, opened by memory mapping with no parsing.
+ *
+ * Layout, all values little endian:
+ * magic(int) version(int) dim(int) count(int) tableChecksum(long) vectorChecksum(long)
+ * id table: count ints
+ * norm table: count floats, L2 norm of every vector
+ * float block: count * dim floats, row-major in id table order
+ *
+ * Opening reads the id and norm tables and verifies their checksum. The float block is mapped in regions of
+ * EmbeddingMatrix.getRowsPerRegion rows, at most 2GB each, and is only read by searches, so opening is bound by the
+ * size of the tables rather than of the vectors. Its checksum is verified only if IS_VERIFY_EMBEDDING_SNAPSHOT is set.
+ */
+public class EmbeddingSnapshot {
+    public static final int MAGIC = 0x45535253;
+    //version 2 adds the norm table and checksums the tables apart from the float block
+    public static final int VERSION = 2;
+    public static final int HEADER_BYTES = 32;
+    public static final String SNAPSHOT_SUFFIX = ".bin";
+    //bytes encoded before each write to the channel, or read from it
+    private static final int IO_BUFFER_BYTES = 1 << 16;
+
+    private EmbeddingSnapshot(){}
+
+    //snapshot file path that sits alongside an embedding csv file, e.g. item2vecEmb.csv -> item2vecEmb.bin
+    public static String getSnapshotPath(String csvPath){
+        return Utility.replaceExtension(csvPath, SNAPSHOT_SUFFIX);
+    }
+
+    /**
+     * write embeddings into a snapshot file, streamed through a small buffer with the header written last
+     * @param path  output file path
+     * @param ids   id of every embedding
+     * @param vectors   embedding vectors, all of the same dimension
+     */
+    public static void write(String path, int[] ids, float[][] vectors) throws IOException{
+        if (ids.length != vectors.length){
+            throw new IllegalArgumentException("ids and vectors have different sizes: " + ids.length + " vs " + vectors.length);
+        }
+        int dim = vectors.length == 0 ? 0 : vectors[0].length;
+        for (float[] vector : vectors){
+            if (vector.length != dim){
+                throw new IllegalArgumentException("inconsistent embedding dimension: " + vector.length + " vs " + dim);
+            }
+        }
+
+        CRC32 tableCrc = new CRC32();
+        CRC32 vectorCrc = new CRC32();
+        try (RandomAccessFile file = new RandomAccessFile(path, "rw"); FileChannel channel = file.getChannel()) {
+            channel.truncate(0);
+            channel.position(HEADER_BYTES);
+            ByteBuffer chunk = ByteBuffer.allocate(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            for (int id : ids){
+                if (chunk.remaining() < Integer.BYTES){
+                    flush(channel, chunk, tableCrc);
+                }
+                chunk.putInt(id);
+            }
+            for (float[] vector : vectors){
+                if (chunk.remaining() < Float.BYTES){
+                    flush(channel, chunk, tableCrc);
+                }
+                //same norm as a row added to an in-memory matrix
+                chunk.putFloat(VectorMath.norm(vector, 0, dim));
+            }
+            flush(channel, chunk, tableCrc);
+            for (float[] vector : vectors){
+                for (float element : vector){
+                    if (chunk.remaining() < Float.BYTES){
+                        flush(channel, chunk, vectorCrc);
+                    }
+                    chunk.putFloat(element);
+                }
+            }
+            flush(channel, chunk, vectorCrc);
+
+            //the checksums are known once the body is written
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MAGIC).putInt(VERSION).putInt(dim).putInt(ids.length)
+                    .putLong(tableCrc.getValue()).putLong(vectorCrc.getValue());
+            header.flip();
+            long position = 0;
+            while (header.hasRemaining()){
+                position += channel.write(header, position);
+            }
+        }
+    }
+
+    //write the encoded bytes of a chunk and add them to the checksum, the chunk is cleared for reuse
+    private static void flush(FileChannel channel, ByteBuffer chunk, CRC32 crc) throws IOException{
+        chunk.flip();
+        crc.update(chunk.duplicate());
+        while (chunk.hasRemaining()){
+            channel.write(chunk);
+        }
+        chunk.clear();
+    }
+
+    /**
+     * open a snapshot file as an embedding matrix backed by the mapped file
+     * @param path  snapshot file path
+     * @return  embedding matrix whose rows are in the snapshot id table order
+     */
+    public static EmbeddingMatrix open(String path) throws IOException{
+        try (RandomAccessFile file = new RandomAccessFile(path, "r"); FileChannel channel = file.getChannel()) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0, path);
+            if (header.getInt(0) != MAGIC){
+                throw new IOException("not an embedding snapshot: " + path);
+            }
+            int version = header.getInt(4);
+            if (version != VERSION){
+                throw new IOException("unsupported embedding snapshot version " + version + ", convert the csv again: " + path);
+            }
+            int dim = header.getInt(8);
+            int count = header.getInt(12);
+            long tableChecksum = header.getLong(16);
+            long vectorChecksum = header.getLong(24);
+            long vectorStart = HEADER_BYTES + (long) count * (Integer.BYTES + Float.BYTES);
+            long expectedBytes = vectorStart + (long) count * dim * Float.BYTES;
+            if (channel.size() != expectedBytes){
+                throw new IOException("truncated embedding snapshot, expected " + expectedBytes + " bytes but got " + channel.size() + ": " + path);
+            }
+
+            //the tables are read in chunks, a chunk holds a whole number of ints and floats
+            CRC32 crc = new CRC32();
+            int[] ids = new int[count];
+            float[] norms = new float[count];
+            ByteBuffer chunk = ByteBuffer.allocate(IO_BUFFER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            long position = HEADER_BYTES;
+            for (int from = 0; from < count; from += IO_BUFFER_BYTES / Integer.BYTES){
+                int rows = Math.min(count - from, IO_BUFFER_BYTES / Integer.BYTES);
+                position += readTable(channel, chunk, position, rows * Integer.BYTES, crc, path);
+                chunk.asIntBuffer().get(ids, from, rows);
+            }
+            for (int from = 0; from < count; from += IO_BUFFER_BYTES / Float.BYTES){
+                int rows = Math.min(count - from, IO_BUFFER_BYTES / Float.BYTES);
+                position += readTable(channel, chunk, position, rows * Float.BYTES, crc, path);
+                chunk.asFloatBuffer().get(norms, from, rows);
+            }
+            if (crc.getValue() != tableChecksum){
+                throw new IOException("embedding snapshot checksum mismatch in id or norm table: " + path);
+            }
+
+            int rowsPerRegion = EmbeddingMatrix.getRowsPerRegion(dim);
+            FloatBuffer[] regions = new FloatBuffer[Math.max(1, (int) (((long) count + rowsPerRegion - 1) / rowsPerRegion))];
+            CRC32 vectorCrc = Config.IS_VERIFY_EMBEDDING_SNAPSHOT ? new CRC32() : null;
+            for (int region = 0; region < regions.length; region++){
+                long regionBytes = (long) Math.min(rowsPerRegion, count - region * rowsPerRegion) * dim * Float.BYTES;
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY,
+                        vectorStart + (long) region * rowsPerRegion * dim * Float.BYTES, regionBytes);
+                if (null != vectorCrc){
+                    vectorCrc.update(mapped.duplicate());
+                }
+                regions[region] = mapped.order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+            if (null != vectorCrc && vectorCrc.getValue() != vectorChecksum){
+                throw new IOException("embedding snapshot checksum mismatch in float block: " + path);
+            }
+            return new EmbeddingMatrix(dim, ids, norms, regions);
+        }
+    }
+
+    //read bytes of a table into the chunk at a file position and add them to the checksum
+    private static int readTable(FileChannel channel, ByteBuffer chunk, long position, int bytes, CRC32 crc, String path) throws IOException{
+        chunk.clear();
+        chunk.limit(bytes);
+        readFully(channel, chunk, position, path);
+        crc.update(chunk.duplicate());
+        return bytes;
+    }
+
+    //fill the buffer from a file position, the buffer is flipped for reading afterwards
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, String path) throws IOException{
+        while (buffer.hasRemaining()){
+            int read = channel.read(buffer, position);
+            if (read < 0){
+                throw new IOException("truncated embedding snapshot: " + path);
+            }
+            position += read;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * convert an embedding csv file in "id:e1 e2 e3..." format into a snapshot file
+     * @param csvPath   input csv file path
+     * @param snapshotPath  output snapshot file path
+     * @return  number of embeddings written
+     */
+    public static int convertCsv(String csvPath, String snapshotPath) throws IOException{
+        List<Integer> ids = new ArrayList<>();
+        List<float[]> vectors = new ArrayList<>();
+        try (Scanner scanner = new Scanner(new File(csvPath))) {
+            while (scanner.hasNextLine()) {
+                String[] embData = scanner.nextLine().split(":");
+                if (embData.length == 2) {
+                    ids.add(Integer.parseInt(embData[0]));
+                    vectors.add(Utility.parseEmbStr(embData[1]).getVector());
+                }
+            }
+        }
+        int[] idArray = new int[ids.size()];
+        for (int i = 0; i < idArray.length; i++){
+            idArray[i] = ids.get(i);
+        }
+        write(snapshotPath, idArray, vectors.toArray(new float[0][]));
+        return idArray.length;
+    }
+
+    //convert embedding csv files given as arguments into snapshots alongside them
+    public static void main(String[] args) throws IOException{
+        for (String csvPath : args){
+            String snapshotPath = getSnapshotPath(csvPath);
+            int count = convertCsv(csvPath, snapshotPath);
+            System.out.println("Converted " + count + " embeddings from " + csvPath + " to " + snapshotPath);
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.sparrowrecsys.online.model;
+
+import com.sparrowrecsys.online.util.Utility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * PqEmbeddingMatrix, product-quantized counterpart of EmbeddingMatrix: one code byte per subspace for every row.
+ *
+ * File layout written by write() and read by open():
+ * magic(int) version(int) dim(int) subspaces(int) centroids(int) count(int)
+ * codebook: subspaces * centroids * (dim / subspaces) floats
+ * id table: count ints
+ * codes: count * subspaces bytes
+ */
+public class PqEmbeddingMatrix {
+    public static final int MAGIC = 0x51505253;
+    public static final int VERSION = 1;
+    public static final String PQ_SUFFIX = ".pq";
+
+    final ProductQuantizer pq;
+    final int[] ids;
+    final byte[] codes;
+    final int rowCount;
+
+    public PqEmbeddingMatrix(ProductQuantizer pq, int[] ids, byte[] codes){
+        this.pq = pq;
+        this.ids = ids;
+        this.codes = codes;
+        this.rowCount = ids.length;
+    }
+
+    //quantized file path that sits alongside an embedding file, e.g. item2vecEmb.csv -> item2vecEmb.pq
+    public static String getPqPath(String embPath){
+        return Utility.replaceExtension(embPath, PQ_SUFFIX);
+    }
+
+    /**
+     * train a quantizer over all rows of an embedding matrix and encode them
+     * @param matrix    uncompressed embedding matrix
+     * @param subspaces number of subspaces, must divide the dimension
+     * @param iterations    k-means iterations per subspace
+     * @return  quantized matrix in the same row order
+     */
+    public static PqEmbeddingMatrix train(EmbeddingMatrix matrix, int subspaces, int iterations){
+        float[][] vectors = new float[matrix.getRowCount()][matrix.getDim()];
+        for (int row = 0; row < vectors.length; row++){
+            matrix.copyRow(row, vectors[row]);
+        }
+        return encode(matrix, ProductQuantizer.train(vectors, subspaces, iterations, 42));
+    }
+
+    //encode every row of an embedding matrix with a trained quantizer
+    public static PqEmbeddingMatrix encode(EmbeddingMatrix matrix, ProductQuantizer pq){
+        int rows = matrix.getRowCount();
+        int[] ids = new int[rows];
+        byte[] codes = new byte[rows * pq.getSubspaces()];
+        float[] vector = new float[matrix.getDim()];
+        for (int row = 0; row < rows; row++){
+            matrix.copyRow(row, vector);
+            pq.encode(vector, codes, row * pq.getSubspaces());
+            ids[row] = matrix.getId(row);
+        }
+        return new PqEmbeddingMatrix(pq, ids, codes);
+    }
+
+    public int getRowCount() {
+        return rowCount;
+    }
+
+    public int getDim() {
+        return pq.getDim();
+    }
+
+    public int getId(int row) {
+        return ids[row];
+    }
+
+    public ProductQuantizer getQuantizer() {
+        return pq;
+    }
+
+    //lookup table of a query, built once and reused for every row scored against it
+    public float[] buildQueryTable(float[] query){
+        return pq.buildQueryTable(query);
+    }
+
+    //approximate cosine similarity between the query of a lookup table and a row
+    public float score(int row, float[] table){
+        return pq.score(table, codes, row * pq.getSubspaces());
+    }
+
+    //decode a row into a unit-length heap embedding
+    public Embedding getEmbedding(int row){
+        float[] vector = new float[pq.getDim()];
+        pq.decode(codes, row * pq.getSubspaces(), vector);
+        return new Embedding(vector);
+    }
+
+    //bytes held by codes, ids and the codebook
+    public long getMemoryBytes(){
+        return (long) codes.length + (long) ids.length * Integer.BYTES + (long) pq.getCodebook().length * Float.BYTES;
+    }
+
+    /**
+     * save quantizer and codes
+     * @param path  output file path
+     */
+    public void write(String path) throws IOException{
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(pq.getDim());
+            out.writeInt(pq.getSubspaces());
+            out.writeInt(pq.getCentroids());
+            out.writeInt(rowCount);
+            for (float value : pq.getCodebook()){
+                out.writeFloat(value);
+            }
+            for (int id : ids){
+                out.writeInt(id);
+            }
+            out.write(codes);
+        }
+    }
+
+    /**
+     * load quantizer and codes
+     * @param path  quantized file path
+     * @return  quantized embedding matrix
+     */
+    public static PqEmbeddingMatrix open(String path) throws IOException{
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("not a supported product-quantized embedding file: " + path);
+            }
+            int dim = in.readInt();
+            int subspaces = in.readInt();
+            int centroids = in.readInt();
+            int count = in.readInt();
+            float[] codebook = new float[dim * centroids];
+            for (int i = 0; i < codebook.length; i++){
+                codebook[i] = in.readFloat();
+            }
+            int[] ids = new int[count];
+            for (int i = 0; i < count; i++){
+                ids[i] = in.readInt();
+            }
+            byte[] codes = new byte[count * subspaces];
+            in.readFully(codes);
+            return new PqEmbeddingMatrix(new ProductQuantizer(dim, subspaces, centroids, codebook), ids, codes);
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.sparrowrecsys.online.model;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * ProductQuantizer, splits vectors into equal sub-vectors and quantizes every sub-vector to one of up to 256
+ * centroids, so a vector is stored as one byte per subspace.
+ *
+ * Vectors are L2 normalized before training and encoding, so the dot product of a normalized query with a
+ * decoded vector approximates their cosine similarity. Scoring uses asymmetric distance: the query stays
+ * uncompressed and its dot products with every centroid are precomputed into a lookup table.
+ */
+public class ProductQuantizer {
+    public static final int MAX_CENTROIDS = 256;
+
+    final int dim;
+    final int subspaces;
+    final int subDim;
+    final int centroids;
+    //codebook[(subspace * centroids + centroid) * subDim + i]
+    final float[] codebook;
+
+    public ProductQuantizer(int dim, int subspaces, int centroids, float[] codebook){
+        if (subspaces <= 0 || dim % subspaces != 0){
+            throw new IllegalArgumentException("embedding dimension " + dim + " can't be split into " + subspaces + " subspaces");
+        }
+        if (centroids <= 0 || centroids > MAX_CENTROIDS){
+            throw new IllegalArgumentException("centroid count must be in [1, " + MAX_CENTROIDS + "], got " + centroids);
+        }
+        this.dim = dim;
+        this.subspaces = subspaces;
+        this.subDim = dim / subspaces;
+        this.centroids = centroids;
+        this.codebook = codebook;
+    }
+
+    /**
+     * train codebooks with k-means in every subspace
+     * @param vectors   training vectors, all of the same dimension
+     * @param subspaces number of subspaces, must divide the dimension
+     * @param iterations    k-means iterations per subspace
+     * @param seed      random seed for centroid initialization
+     * @return  trained quantizer
+     */
+    public static ProductQuantizer train(float[][] vectors, int subspaces, int iterations, long seed){
+        if (vectors.length == 0){
+            throw new IllegalArgumentException("no vectors to train product quantizer");
+        }
+        int dim = vectors[0].length;
+        int centroids = Math.min(MAX_CENTROIDS, vectors.length);
+        ProductQuantizer pq = new ProductQuantizer(dim, subspaces, centroids, new float[subspaces * centroids * (dim / subspaces)]);
+        float[][] normalized = new float[vectors.length][];
+        for (int i = 0; i < vectors.length; i++){
+            normalized[i] = normalize(vectors[i]);
+        }
+        Random random = new Random(seed);
+        for (int subspace = 0; subspace < subspaces; subspace++){
+            pq.trainSubspace(normalized, subspace, iterations, random);
+        }
+        return pq;
+    }
+
+    private void trainSubspace(float[][] vectors, int subspace, int iterations, Random random){
+        int offset = subspace * subDim;
+        int base = subspace * centroids * subDim;
+        //initialize centroids with distinct random samples
+        int[] order = new int[vectors.length];
+        for (int i = 0; i < order.length; i++){
+            order[i] = i;
+        }
+        for (int c = 0; c < centroids; c++){
+            int pick = c + random.nextInt(order.length - c);
+            int swap = order[c];
+            order[c] = order[pick];
+            order[pick] = swap;
+            System.arraycopy(vectors[order[c]], offset, codebook, base + c * subDim, subDim);
+        }
+
+        int[] assignments = new int[vectors.length];
+        float[] sums = new float[centroids * subDim];
+        int[] counts = new int[centroids];
+        for (int iteration = 0; iteration < iterations; iteration++){
+            for (int i = 0; i < vectors.length; i++){
+                assignments[i] = nearestCentroid(subspace, vectors[i], offset);
+            }
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < vectors.length; i++){
+                int c = assignments[i];
+                counts[c]++;
+                for (int d = 0; d < subDim; d++){
+                    sums[c * subDim + d] += vectors[i][offset + d];
+                }
+            }
+            for (int c = 0; c < centroids; c++){
+                if (counts[c] == 0){
+                    //re-seed empty clusters with a random sample
+                    System.arraycopy(vectors[random.nextInt(vectors.length)], offset, codebook, base + c * subDim, subDim);
+                    continue;
+                }
+                for (int d = 0; d < subDim; d++){
+                    codebook[base + c * subDim + d] = sums[c * subDim + d] / counts[c];
+                }
+            }
+        }
+    }
+
+    private int nearestCentroid(int subspace, float[] vector, int offset){
+        int base = subspace * centroids * subDim;
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < centroids; c++){
+            float distance = 0;
+            int centroidOffset = base + c * subDim;
+            for (int d = 0; d < subDim; d++){
+                float diff = vector[offset + d] - codebook[centroidOffset + d];
+                distance += diff * diff;
+            }
+            if (distance < bestDistance){
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    //encode a vector into codes[codesOffset, codesOffset + subspaces)
+    public void encode(float[] vector, byte[] codes, int codesOffset){
+        float[] normalized = normalize(vector);
+        for (int subspace = 0; subspace < subspaces; subspace++){
+            codes[codesOffset + subspace] = (byte) nearestCentroid(subspace, normalized, subspace * subDim);
+        }
+    }
+
+    //decode codes[codesOffset, codesOffset + subspaces) into a unit-length approximation of the original vector
+    public void decode(byte[] codes, int codesOffset, float[] vector){
+        for (int subspace = 0; subspace < subspaces; subspace++){
+            int centroidOffset = (subspace * centroids + (codes[codesOffset + subspace] & 0xff)) * subDim;
+            System.arraycopy(codebook, centroidOffset, vector, subspace * subDim, subDim);
+        }
+    }
+
+    /**
+     * precompute dot products between a normalized query and every centroid
+     * @param query query vector, normalized internally
+     * @return  lookup table indexed by subspace * centroids + centroid
+     */
+    public float[] buildQueryTable(float[] query){
+        float[] normalized = normalize(query);
+        float[] table = new float[subspaces * centroids];
+        for (int subspace = 0; subspace < subspaces; subspace++){
+            for (int c = 0; c < centroids; c++){
+                table[subspace * centroids + c] = VectorMath.dot(normalized, subspace * subDim,
+                        codebook, (subspace * centroids + c) * subDim, subDim);
+            }
+        }
+        return table;
+    }
+
+    //approximate cosine similarity between the query of a lookup table and an encoded vector
+    public float score(float[] table, byte[] codes, int codesOffset){
+        float score = 0;
+        for (int subspace = 0; subspace < subspaces; subspace++){
+            score += table[subspace * centroids + (codes[codesOffset + subspace] & 0xff)];
+        }
+        return score;
+    }
+
+    public int getDim() {
+        return dim;
+    }
+
+    public int getSubspaces() {
+        return subspaces;
+    }
+
+    public int getCentroids() {
+        return centroids;
+    }
+
+    public float[] getCodebook() {
+        return codebook;
+    }
+
+    static float[] normalize(float[] vector){
+        float norm = VectorMath.norm(vector, 0, vector.length);
+        float[] normalized = new float[vector.length];
+        if (norm == 0){
+            return normalized;
+        }
+        for (int i = 0; i < vector.length; i++){
+            normalized[i] = vector[i] / norm;
+        }
+        return normalized;
+    }
+}
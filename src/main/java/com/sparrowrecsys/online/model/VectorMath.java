@@ -0,0 +1,76 @@
+package com.sparrowrecsys.online.model;
+
+import java.nio.FloatBuffer;
+
+/**
+ * VectorMath, dot product and cosine kernels over primitive float arrays.
+ * Loops are kept simple and unrolled with independent accumulators so the JIT can pipeline and vectorize them.
+ */
+public class VectorMath {
+
+    private VectorMath(){}
+
+    //dot product of a[aOffset, aOffset + dim) and b[bOffset, bOffset + dim)
+    public static float dot(float[] a, int aOffset, float[] b, int bOffset, int dim){
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        int bound = dim & ~3;
+        for (; i < bound; i += 4){
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < dim; i++){
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    //L2 norm of a[offset, offset + dim)
+    public static float norm(float[] a, int offset, int dim){
+        return (float) Math.sqrt(dot(a, offset, a, offset, dim));
+    }
+
+    //cosine similarity with both norms precomputed
+    public static double cosine(float[] a, int aOffset, float aNorm, float[] b, int bOffset, float bNorm, int dim){
+        if (aNorm == 0 || bNorm == 0){
+            return 0;
+        }
+        return dot(a, aOffset, b, bOffset, dim) / ((double) aNorm * bNorm);
+    }
+
+    //dot product of an off-heap row data[dataOffset, dataOffset + dim) and b[bOffset, bOffset + dim)
+    public static float dot(FloatBuffer data, int dataOffset, float[] b, int bOffset, int dim){
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        int bound = dim & ~3;
+        for (; i < bound; i += 4){
+            s0 += data.get(dataOffset + i) * b[bOffset + i];
+            s1 += data.get(dataOffset + i + 1) * b[bOffset + i + 1];
+            s2 += data.get(dataOffset + i + 2) * b[bOffset + i + 2];
+            s3 += data.get(dataOffset + i + 3) * b[bOffset + i + 3];
+        }
+        for (; i < dim; i++){
+            s0 += data.get(dataOffset + i) * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    //dot product of two off-heap rows
+    public static float dot(FloatBuffer a, int aOffset, FloatBuffer b, int bOffset, int dim){
+        float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = 0;
+        int bound = dim & ~3;
+        for (; i < bound; i += 4){
+            s0 += a.get(aOffset + i) * b.get(bOffset + i);
+            s1 += a.get(aOffset + i + 1) * b.get(bOffset + i + 1);
+            s2 += a.get(aOffset + i + 2) * b.get(bOffset + i + 2);
+            s3 += a.get(aOffset + i + 3) * b.get(bOffset + i + 3);
+        }
+        for (; i < dim; i++){
+            s0 += a.get(aOffset + i) * b.get(bOffset + i);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+}
@@ -4,7 +4,22 @@ import com.sparrowrecsys.online.datamanager.DataManager;
 import com.sparrowrecsys.online.datamanager.Movie;
 import com.sparrowrecsys.online.datamanager.RedisClient;
 import com.sparrowrecsys.online.datamanager.User;
+import com.sparrowrecsys.online.datamanager.UserProfile;
+import com.sparrowrecsys.online.model.Embedding;
+import com.sparrowrecsys.online.model.EmbeddingMatrix;
+import com.sparrowrecsys.online.model.PqEmbeddingMatrix;
+import com.sparrowrecsys.online.retrieval.HnswIndex;
+import com.sparrowrecsys.online.retrieval.TopKResult;
+import com.sparrowrecsys.online.serving.CircuitBreaker;
+import com.sparrowrecsys.online.serving.EmbeddedModel;
+import com.sparrowrecsys.online.serving.FeatureSchema;
+import com.sparrowrecsys.online.serving.FeatureStore;
+import com.sparrowrecsys.online.serving.JsonByteWriter;
+import com.sparrowrecsys.online.serving.ModelServingBatcher;
+import com.sparrowrecsys.online.serving.PredictRequestEncoder;
+import com.sparrowrecsys.online.serving.PredictResponseParser;
 import com.sparrowrecsys.online.util.Config;
+import com.sparrowrecsys.online.util.NearCache;
 import com.sparrowrecsys.online.util.Utility;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -13,8 +28,15 @@ import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import org.json.JSONArray;
-import org.json.JSONObject;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 
 import static com.sparrowrecsys.online.util.Constants.*;
 import static com.sparrowrecsys.online.util.HttpClient.*;
@@ -24,6 +46,43 @@ import static com.sparrowrecsys.online.util.HttpClient.*;
  */
 
 public class RecForYouProcess {
+    private static final int CANDIDATE_SIZE = 800;
+    //models scored by TF serving unless they are embedded
+    private static final HashSet<String> MODEL_SERVING_MODELS = new HashSet<>(Arrays.asList(NEURAL_CF, WIDE_N_DEEP, EMBEDDING_MLP));
+    //fails model serving calls of async requests that miss their latency budget
+    private static final ScheduledExecutorService DEADLINE_TIMER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "rec-deadline-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    //online profiles of recently served users
+    private static final NearCache<UserProfile> USER_PROFILE_CACHE = new NearCache<>(Config.USER_PROFILE_CACHE_MAX_BYTES,
+            Config.USER_PROFILE_CACHE_TTL_MILLIS, UserProfile::getEstimatedBytes);
+
+    public static NearCache<UserProfile> getUserProfileCache(){
+        return USER_PROFILE_CACHE;
+    }
+
+    /**
+     * fetch the embedding and features of a user from Redis in one pipelined round trip
+     * @param userId    input user id
+     * @return  immutable profile, parts that aren't loaded from Redis or missing there are null
+     */
+    static UserProfile loadUserProfile(int userId){
+        final boolean loadEmb = Config.EMB_DATA_SOURCE.equals(Config.DATA_SOURCE_REDIS);
+        final boolean loadFeatures = Config.IS_LOAD_USER_FEATURE_FROM_REDIS;
+        return RedisClient.getInstance().execute(jedis -> {
+            Pipeline pipeline = jedis.pipelined();
+            Response<String> userEmb = loadEmb ? pipeline.get("uEmb:" + userId) : null;
+            Response<Map<String, String>> userFeatures = loadFeatures ? pipeline.hgetAll(USER_FEATURE_PREFIX + userId) : null;
+            pipeline.sync();
+            Embedding emb = null == userEmb || null == userEmb.get() ? null : Utility.parseEmbStr(userEmb.get());
+            FeatureStore features = null == userFeatures || null == userFeatures.get() ? null
+                    : FeatureStore.of(FeatureSchema.USER, userFeatures.get());
+            return new UserProfile(userId, emb, features);
+        });
+    }
 
     /**
      * get recommendation movie list
@@ -33,36 +92,88 @@ public class RecForYouProcess {
      * @return  list of similar movies
      */
     public static List<Movie> getRecList(int userId, int size, String model){
-        User user = DataManager.getInstance().getUserById(userId);
+        return getRecResult(userId, size, model).getMovies();
+    }
+
+    /**
+     * get recommendation movie list within the latency budget, telling whether ranking had to fall back
+     * @param userId input user id
+     * @param size  size of similar items
+     * @param model model used for calculating similarity
+     * @return  recommended movies and the model that actually ranked them
+     */
+    public static RecResult getRecResult(int userId, int size, String model){
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.REC_LATENCY_BUDGET_MILLIS);
+        User user = loadUser(userId);
         if (null == user){
-            return new ArrayList<>();
+            return new RecResult(new ArrayList<>(), model, model, false);
         }
-        final int CANDIDATE_SIZE = 800;
-        List<Movie> candidates = DataManager.getInstance().getMovies(CANDIDATE_SIZE, "rating");
 
-        //load user emb from redis if data source is redis
-        if (Config.EMB_DATA_SOURCE.equals(Config.DATA_SOURCE_REDIS)) {
-            String userEmbKey = "uEmb:" + userId;
-            String userEmb = RedisClient.getInstance().get(userEmbKey);
-            if (null != userEmb){
-                user.setEmb(Utility.parseEmbStr(userEmb));
-            }
-        }
+        List<Movie> candidates = candidateGenerator(user, CANDIDATE_SIZE);
+        return truncate(rank(user, candidates, model, deadlineNanos), size);
+    }
 
-        if (Config.IS_LOAD_USER_FEATURE_FROM_REDIS) {
-            String userFeaturesKey = USER_FEATURE_PREFIX + userId;
-            Map<String, String> userFeatures = RedisClient.getInstance().hgetAll(userFeaturesKey);
-            if (null != userFeatures){
-                user.setUserFeatures(userFeatures);
-            }
+    /**
+     * get recommendation movie list as stages on an executor, no thread is held while model serving scores
+     * @param userId input user id
+     * @param size  size of similar items
+     * @param model model used for calculating similarity
+     * @param executor  runs the stages, it must pin the snapshot of the request, see DataManager.Lease.pinTo
+     * @return  future of the recommended movies and the model that actually ranked them
+     */
+    public static CompletableFuture<RecResult> getRecResultAsync(int userId, int size, String model, Executor executor){
+        long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.REC_LATENCY_BUDGET_MILLIS);
+        return CompletableFuture.supplyAsync(() -> loadUser(userId), executor)
+                .thenComposeAsync(user -> {
+                    if (null == user){
+                        return CompletableFuture.completedFuture(new RecResult(new ArrayList<>(), model, model, false));
+                    }
+                    List<Movie> candidates = candidateGenerator(user, CANDIDATE_SIZE);
+                    return rankAsync(user, candidates, model, deadlineNanos, executor);
+                }, executor)
+                .thenApply(ranked -> truncate(ranked, size));
+    }
+
+    //user with its online embedding and features, null for an unknown user
+    private static User loadUser(int userId){
+        User user = DataManager.getInstance().getUserById(userId);
+        if (null == user){
+            return null;
         }
+        //user emb from redis if data source is redis, and user features, cached near the process
+        if (Config.EMB_DATA_SOURCE.equals(Config.DATA_SOURCE_REDIS) || Config.IS_LOAD_USER_FEATURE_FROM_REDIS) {
+            UserProfile profile = Config.USER_PROFILE_CACHE_MAX_BYTES > 0
+                    ? USER_PROFILE_CACHE.get(userId, RecForYouProcess::loadUserProfile) : loadUserProfile(userId);
+            user = user.withProfile(profile);
+        }
+        return user;
+    }
 
-        List<Movie> rankedList = ranker(user, candidates, model);
+    private static RecResult truncate(RecResult ranked, int size){
+        if (ranked.getMovies().size() > size){
+            return new RecResult(ranked.getMovies().subList(0, size), ranked.getRequestedModel(), ranked.getRankedBy(), ranked.isDegraded());
+        }
+        return ranked;
+    }
 
-        if (rankedList.size() > size){
-            return rankedList.subList(0, size);
+    /**
+     * generate candidates for user recommendation
+     * @param user  input user
+     * @param size  size of candidate pool
+     * @return  movie candidates
+     */
+    public static List<Movie> candidateGenerator(User user, int size){
+        HnswIndex movieHnswIndex = DataManager.getInstance().getMovieHnswIndex();
+        if (Config.RECALL_BY_EMBEDDING_HNSW.equals(Config.RECALL_STRATEGY) && null != movieHnswIndex) {
+            Embedding userEmb = DataManager.getInstance().getUserEmb(user);
+            EmbeddingMatrix movieEmbMatrix = DataManager.getInstance().getMovieEmbMatrix();
+            if (null != userEmb && userEmb.getDim() == movieEmbMatrix.getDim()) {
+                TopKResult topK = movieHnswIndex.search(userEmb.getVector(), size, Math.max(Config.HNSW_EF_SEARCH, size));
+                System.out.println("recall candidates are generated by user embedding HNSW index");
+                return SimilarMovieProcess.toMovies(topK, movieEmbMatrix::getId);
+            }
         }
-        return rankedList;
+        return DataManager.getInstance().getMovies(size, "rating");
     }
 
     /**
@@ -73,29 +184,159 @@ public class RecForYouProcess {
      * @return  ranked movie list
      */
     public static List<Movie> ranker(User user, List<Movie> candidates, String model){
+        return rank(user, candidates, model,
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Config.REC_LATENCY_BUDGET_MILLIS)).getMovies();
+    }
+
+    /**
+     * rank candidates, falling back to embedding scores or candidate order when model serving misses the deadline
+     * @param user    input user
+     * @param candidates    movie candidates
+     * @param model     model name used for ranking
+     * @param deadlineNanos System.nanoTime() by which model serving scores must be back
+     * @return  ranked movie list and the model that actually ranked it
+     */
+    public static RecResult rank(User user, List<Movie> candidates, String model, long deadlineNanos){
         HashMap<Movie, Double> candidateScoreMap = new HashMap<>();
-        HashSet<String> modelSet = new HashSet<>(Arrays.asList(NEURAL_CF, WIDE_N_DEEP, EMBEDDING_MLP));
+        String rankedBy = model;
+        boolean degraded = false;
 
         System.out.println("[DEBUG]: the requested model is: " + model);
         if (EMBEDDING.equals(model)) {
             System.out.println("[DEBUG] now using model: " + EMBEDDING);
-            for (Movie candidate : candidates){
-                double similarity = calculateEmbSimilarScore(user, candidate);
-                candidateScoreMap.put(candidate, similarity);
+            scoreByEmbedding(user, candidates, candidateScoreMap);
+        } else if (MODEL_SERVING_MODELS.contains(model)) {
+            EmbeddedModel embeddedModel = DataManager.getInstance().getEmbeddedModel(model);
+            if (null != embeddedModel) {
+                //scored in process, no serialization or network hop
+                System.out.println("[DEBUG] now using embedded model: " + model);
+                double[] scores = embeddedModel.score(user, candidates);
+                for (int i = 0 ; i < candidates.size(); i++){
+                    candidateScoreMap.put(candidates.get(i), scores[i]);
+                }
+            } else if (!callModelServing(user, candidates, candidateScoreMap, model, deadlineNanos)) {
+                degraded = true;
+                candidateScoreMap.clear();
+                rankedBy = scoreDegraded(user, candidates, candidateScoreMap, model);
             }
-        } else if (modelSet.contains(model)) {
-            callModelServing(user, candidates, candidateScoreMap, model);
         } else {
             // default ranking in candidate set
             System.out.println("[DEBUG] now using model: fallback");
+            rankedBy = FALLBACK;
+            scoreByCandidateOrder(candidates, candidateScoreMap);
+        }
+
+        return sortByScore(candidateScoreMap, model, rankedBy, degraded);
+    }
+
+    /**
+     * rank candidates like rank, but a model serving call completes the future on the executor instead of blocking
+     * @param user    input user
+     * @param candidates    movie candidates
+     * @param model     model name used for ranking
+     * @param deadlineNanos System.nanoTime() by which model serving scores must be back
+     * @param executor  runs the stage after model serving, it must pin the snapshot of the request
+     * @return  future of the ranked movie list and the model that actually ranked it
+     */
+    public static CompletableFuture<RecResult> rankAsync(User user, List<Movie> candidates, String model, long deadlineNanos,
+                                                         Executor executor){
+        if (!MODEL_SERVING_MODELS.contains(model) || null != DataManager.getInstance().getEmbeddedModel(model)
+                || candidates.isEmpty()){
+            //scored in process right away
+            return CompletableFuture.completedFuture(rank(user, candidates, model, deadlineNanos));
+        }
+        System.out.println("[DEBUG]: the requested model is: " + model);
+        CompletableFuture<double[]> scoresFuture = requestModelServing(user, candidates, model);
+        if (null == scoresFuture){
+            HashMap<Movie, Double> candidateScoreMap = new HashMap<>();
+            String rankedBy = scoreDegraded(user, candidates, candidateScoreMap, model);
+            return CompletableFuture.completedFuture(sortByScore(candidateScoreMap, model, rankedBy, true));
+        }
+        if (!Config.IS_ENABLE_MODEL_SERVING_BATCHING) {
+            //the request is in flight while this thread goes on with other requests
+            PredictRequestEncoder.discardBuffer();
+        }
+        return withDeadline(scoresFuture, deadlineNanos).handleAsync((scores, e) -> {
+            HashMap<Movie, Double> candidateScoreMap = new HashMap<>();
+            if (null != e) {
+                recordModelServingFailure(model, scoresFuture, e);
+                String rankedBy = scoreDegraded(user, candidates, candidateScoreMap, model);
+                return sortByScore(candidateScoreMap, model, rankedBy, true);
+            }
+            recordModelServingSuccess(user, model);
             for (int i = 0 ; i < candidates.size(); i++){
-                candidateScoreMap.put(candidates.get(i), (double)(candidates.size() - i));
+                candidateScoreMap.put(candidates.get(i), scores[i]);
             }
-        }
+            return sortByScore(candidateScoreMap, model, model, false);
+        }, executor);
+    }
 
+    //model scores missed the budget, rank by embedding similarity, or by candidate order without a user embedding
+    private static String scoreDegraded(User user, List<Movie> candidates, HashMap<Movie, Double> candidateScoreMap, String model){
+        String rankedBy = scoreByEmbedding(user, candidates, candidateScoreMap) ? EMBEDDING : FALLBACK;
+        System.out.println("[DEBUG] model " + model + " is degraded to: " + rankedBy);
+        return rankedBy;
+    }
+
+    private static RecResult sortByScore(HashMap<Movie, Double> candidateScoreMap, String model, String rankedBy, boolean degraded){
         List<Movie> rankedList = new ArrayList<>();
         candidateScoreMap.entrySet().stream().sorted(Map.Entry.comparingByValue(Comparator.reverseOrder())).forEach(m -> rankedList.add(m.getKey()));
-        return rankedList;
+        return new RecResult(rankedList, model, rankedBy, degraded);
+    }
+
+    //future failing with a TimeoutException once the deadline passes, unless the scores are back before
+    private static <T> CompletableFuture<T> withDeadline(CompletableFuture<T> future, long deadlineNanos){
+        CompletableFuture<T> bounded = new CompletableFuture<>();
+        ScheduledFuture<?> timeout = DEADLINE_TIMER.schedule(
+                () -> bounded.completeExceptionally(new TimeoutException("model serving missed the latency budget")),
+                Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        future.whenComplete((value, e) -> {
+            timeout.cancel(false);
+            if (null != e) {
+                bounded.completeExceptionally(e);
+            } else {
+                bounded.complete(value);
+            }
+        });
+        return bounded;
+    }
+
+    /**
+     * score candidates by cosine similarity to the user embedding
+     * @param user  input user
+     * @param candidates    movie candidates
+     * @param candidateScoreMap save similarity score into the score map
+     * @return  false if the user has no usable embedding, candidates are then scored by candidate order
+     */
+    private static boolean scoreByEmbedding(User user, List<Movie> candidates, HashMap<Movie, Double> candidateScoreMap){
+        Embedding userEmb = DataManager.getInstance().getUserEmb(user);
+        PqEmbeddingMatrix moviePqMatrix = DataManager.getInstance().getMoviePqMatrix();
+        EmbeddingMatrix movieEmbMatrix = DataManager.getInstance().getMovieEmbMatrix();
+        if (null != moviePqMatrix && null != userEmb && userEmb.getDim() == moviePqMatrix.getDim()) {
+            //asymmetric distance, the user query table is built once for all candidates
+            float[] queryTable = moviePqMatrix.buildQueryTable(userEmb.getVector());
+            for (Movie candidate : candidates){
+                double similarity = candidate.getEmbIndex() < 0 ? -1 : moviePqMatrix.score(candidate.getEmbIndex(), queryTable);
+                candidateScoreMap.put(candidate, similarity);
+            }
+            return true;
+        }
+        if (null != movieEmbMatrix && null != userEmb && userEmb.getDim() == movieEmbMatrix.getDim()) {
+            for (Movie candidate : candidates){
+                double similarity = calculateEmbSimilarScore(userEmb, candidate);
+                candidateScoreMap.put(candidate, similarity);
+            }
+            return true;
+        }
+        scoreByCandidateOrder(candidates, candidateScoreMap);
+        return false;
+    }
+
+    //keep the candidate order, candidates come sorted by recall score or rating
+    private static void scoreByCandidateOrder(List<Movie> candidates, HashMap<Movie, Double> candidateScoreMap){
+        for (int i = 0 ; i < candidates.size(); i++){
+            candidateScoreMap.put(candidates.get(i), (double)(candidates.size() - i));
+        }
     }
 
     /**
@@ -105,10 +346,25 @@ public class RecForYouProcess {
      * @return  similarity score
      */
     public static double calculateEmbSimilarScore(User user, Movie candidate){
-        if (null == user || null == candidate || null == user.getEmb()){
+        if (null == user){
             return -1;
         }
-        return user.getEmb().calculateSimilarity(candidate.getEmb());
+        return calculateEmbSimilarScore(DataManager.getInstance().getUserEmb(user), candidate);
+    }
+
+    /**
+     * function to calculate similarity score between a user embedding and a candidate in the movie embedding matrix
+     * @param userEmb   input user embedding
+     * @param candidate candidate movie
+     * @return  similarity score
+     */
+    public static double calculateEmbSimilarScore(Embedding userEmb, Movie candidate){
+        EmbeddingMatrix movieEmbMatrix = DataManager.getInstance().getMovieEmbMatrix();
+        if (null == userEmb || null == candidate || null == movieEmbMatrix
+                || candidate.getEmbIndex() < 0 || userEmb.getDim() != movieEmbMatrix.getDim()){
+            return -1;
+        }
+        return movieEmbMatrix.cosine(candidate.getEmbIndex(), userEmb.getVector(), userEmb.getNorm());
     }
 
     /**
@@ -117,59 +373,75 @@ public class RecForYouProcess {
      * @param candidates        candidate movies
      * @param candidateScoreMap save prediction score into the score map
      * @param model             model name
+     * @param deadlineNanos     System.nanoTime() after which the call is abandoned
+     * @return  false if the endpoint is skipped by its circuit breaker, fails or misses the deadline, the map is untouched then
      */
-    public static void callModelServing(User user, List<Movie> candidates, HashMap<Movie, Double> candidateScoreMap, String model){
+    public static boolean callModelServing(User user, List<Movie> candidates, HashMap<Movie, Double> candidateScoreMap, String model, long deadlineNanos){
         if (null == user || null == candidates || candidates.size() == 0){
-            return;
-        }
-
-        JSONArray instances = new JSONArray();
-        for (Movie m : candidates){
-            JSONObject instance = new JSONObject();
-            instance.put(USER_ID, user.getUserId());
-            instance.put(MOVIE_ID, m.getMovieId());
-            if (EMBEDDING_MLP.equals(model) || WIDE_N_DEEP.equals(model)) {
-                // movie features
-                instance.put(FEATURE_MOVIE_GENRE_1,m.getMovieFeatures().get(FEATURE_MOVIE_GENRE_1));
-                instance.put(FEATURE_MOVIE_GENRE_2,m.getMovieFeatures().get(FEATURE_MOVIE_GENRE_2));
-                instance.put(FEATURE_MOVIE_GENRE_3,m.getMovieFeatures().get(FEATURE_MOVIE_GENRE_3));
-                instance.put(FEATURE_MOVIE_RELEASE_YEAR, Integer.parseInt(m.getMovieFeatures().get(FEATURE_MOVIE_RELEASE_YEAR)));
-                instance.put(FEATURE_MOVIE_RATING_COUNT, Integer.parseInt(m.getMovieFeatures().get(FEATURE_MOVIE_RATING_COUNT)));
-                instance.put(FEATURE_MOVIE_AVG_RATING, Float.parseFloat(m.getMovieFeatures().get(FEATURE_MOVIE_AVG_RATING)));
-                instance.put(FEATURE_MOVIE_RATING_STDDEV, Float.parseFloat(m.getMovieFeatures().get(FEATURE_MOVIE_RATING_STDDEV)));
-                // user features
-                instance.put(FEATURE_USER_RATING_COUNT, Integer.parseInt(user.getUserFeatures().get(FEATURE_USER_RATING_COUNT)));
-                instance.put(FEATURE_USER_AVG_RATING, Float.parseFloat(user.getUserFeatures().get(FEATURE_USER_AVG_RATING)));
-                instance.put(FEATURE_USER_GENRE_1, user.getUserFeatures().get(FEATURE_USER_GENRE_1));
-                instance.put(FEATURE_USER_GENRE_2, user.getUserFeatures().get(FEATURE_USER_GENRE_2));
-                instance.put(FEATURE_USER_GENRE_3, user.getUserFeatures().get(FEATURE_USER_GENRE_3));
-                instance.put(FEATURE_USER_GENRE_4, user.getUserFeatures().get(FEATURE_USER_GENRE_4));
-                instance.put(FEATURE_USER_GENRE_5, user.getUserFeatures().get(FEATURE_USER_GENRE_5));
-                instance.put(FEATURE_USER_RATING_STDDEV, Float.parseFloat(user.getUserFeatures().get(FEATURE_USER_RATING_STDDEV)));
-            }
-            if (WIDE_N_DEEP.equals(model)) {
-                instance.put(FEATURE_USER_RATED_MOVIE_1, Integer.parseInt(user.getUserFeatures().get(FEATURE_USER_RATED_MOVIE_1)));
+            return true;
+        }
+        CompletableFuture<double[]> scoresFuture = requestModelServing(user, candidates, model);
+        if (null == scoresFuture){
+            return false;
+        }
+        double[] scores;
+        try {
+            scores = scoresFuture.get(Math.max(0, deadlineNanos - System.nanoTime()), TimeUnit.NANOSECONDS);
+        } catch (Exception e) {
+            if (!Config.IS_ENABLE_MODEL_SERVING_BATCHING) {
+                //the timed out request may still be reading the buffer
+                PredictRequestEncoder.discardBuffer();
             }
+            recordModelServingFailure(model, scoresFuture, e);
+            return false;
+        }
+        recordModelServingSuccess(user, model);
 
-            instances.put(instance);
+        for (int i = 0 ; i < candidates.size(); i++){
+            candidateScoreMap.put(candidates.get(i), scores[i]);
         }
+        return true;
+    }
 
-        JSONObject instancesRoot = new JSONObject();
-        instancesRoot.put("instances", instances);
+    /**
+     * send the candidates of a user to TensorFlow serving, batched with concurrent requests if batching is enabled
+     * @param user              input user
+     * @param candidates        candidate movies
+     * @param model             model name
+     * @return  future of one score per candidate, null if the endpoint is skipped by its open circuit breaker
+     */
+    static CompletableFuture<double[]> requestModelServing(User user, List<Movie> candidates, String model){
+        if (!CircuitBreaker.forModel(model).allowRequest()){
+            System.out.println("[DEBUG] model serving of " + model + " is skipped by its open circuit breaker");
+            return null;
+        }
+        try {
+            if (Config.IS_ENABLE_MODEL_SERVING_BATCHING) {
+                //coalesced with concurrent requests for the same model
+                return ModelServingBatcher.getInstance().score(model, user, candidates);
+            }
+            JsonByteWriter requestBody = PredictRequestEncoder.encode(model, user, candidates);
+            return postAsync(ModelServingBatcher.getPredictUrl(model), requestBody.getBuffer(), requestBody.size())
+                    .thenApply(content -> PredictResponseParser.parseScores(content, candidates.size()));
+        } catch (Exception e) {
+            //failed before a request went out, e.g. encoding, reported like a failed call so the breaker hears of it
+            CompletableFuture<double[]> failed = new CompletableFuture<>();
+            failed.completeExceptionally(e);
+            return failed;
+        }
+    }
+
+    private static void recordModelServingFailure(String model, CompletableFuture<double[]> scoresFuture, Throwable e){
+        CircuitBreaker.forModel(model).recordFailure();
+        //a batched request that hasn't been sent yet is dropped from its batch
+        scoresFuture.cancel(false);
+        System.out.println("[DEBUG] model serving call of " + model + " failed or timed out: " + e);
+    }
 
-        //need to confirm the tf serving end point
-        String host = "http://localhost:8501/v1/models/" + model + ":predict";
-        String predictionScores = asyncSinglePostRequest(host, instancesRoot.toString());
+    private static void recordModelServingSuccess(User user, String model){
+        CircuitBreaker.forModel(model).recordSuccess();
         System.out.println("[DEBUG] now using model: " + model);
         System.out.println("[DEBUG] send user" + user.getUserId() + " request to tf serving.");
-        System.out.println("[DEBUG] instancesRoot string is: " + instancesRoot.toString().substring(0, 200) + "...");
-        System.out.println("[DEBUG] prediction score is: " + predictionScores);
-
-        JSONObject predictionsObject = new JSONObject(predictionScores);
-        JSONArray scores = predictionsObject.getJSONArray("predictions");
-        for (int i = 0 ; i < candidates.size(); i++){
-            candidateScoreMap.put(candidates.get(i), scores.getJSONArray(i).getDouble(0));
-        }
     }
 
 }
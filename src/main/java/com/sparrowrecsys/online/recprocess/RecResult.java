@@ -0,0 +1,39 @@
+package com.sparrowrecsys.online.recprocess;
+
+import com.sparrowrecsys.online.datamanager.Movie;
+
+import java.util.List;
+
+/**
+ * RecResult, a recommendation list together with the model that actually ranked it.
+ * A result is degraded when the requested model couldn't score in time and a fallback ranking was used.
+ */
+public class RecResult {
+    private final List<Movie> movies;
+    private final String requestedModel;
+    private final String rankedBy;
+    private final boolean degraded;
+
+    public RecResult(List<Movie> movies, String requestedModel, String rankedBy, boolean degraded){
+        this.movies = movies;
+        this.requestedModel = requestedModel;
+        this.rankedBy = rankedBy;
+        this.degraded = degraded;
+    }
+
+    public List<Movie> getMovies() {
+        return movies;
+    }
+
+    public String getRequestedModel() {
+        return requestedModel;
+    }
+
+    public String getRankedBy() {
+        return rankedBy;
+    }
+
+    public boolean isDegraded() {
+        return degraded;
+    }
+}
@@ -0,0 +1,233 @@
+package com.sparrowrecsys.online.recprocess;
+
+import com.sparrowrecsys.online.datamanager.DataManager;
+import com.sparrowrecsys.online.datamanager.DataSnapshot;
+import com.sparrowrecsys.online.datamanager.Movie;
+import com.sparrowrecsys.online.util.Config;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+import static com.sparrowrecsys.online.util.Constants.FEATURE_MOVIE_RATING_COUNT;
+
+/**
+ * SimilarMovieCache, ranked similar movie lists by (movieId, model, recall strategy).
+ *
+ * Similar movies only depend on the data snapshot, so the lists of a snapshot version are cached until a newer
+ * snapshot is published, and a request is served from the cache by slicing the list to its size. Requests pinned
+ * to an older snapshot than the cached one bypass the cache. Optionally the lists of the whole catalog are
+ * precomputed on a background thread whenever a snapshot is published, most rated movies first.
+ */
+public class SimilarMovieCache {
+    //singleton instance
+    private static volatile SimilarMovieCache instance;
+
+    private final AtomicReference<Generation> generation;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder bypasses = new LongAdder();
+    private ExecutorService precomputer;
+
+    private SimilarMovieCache(){
+        this.generation = new AtomicReference<>(new Generation(-1));
+        this.precomputer = null;
+    }
+
+    public static SimilarMovieCache getInstance(){
+        if (null == instance){
+            synchronized (SimilarMovieCache.class){
+                if (null == instance){
+                    instance = new SimilarMovieCache();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * get similar movies of a movie from the cache, ranking them on a miss
+     * @param movieId   input movie id
+     * @param size  size of similar items
+     * @param model model used for calculating similarity
+     * @param strategy  recall strategy
+     * @return  read-only list of similar movies
+     */
+    public List<Movie> getRecList(int movieId, int size, String model, String strategy){
+        Generation current = generationOf(DataManager.getInstance().getSnapshot());
+        if (null == current || size > Config.SIMILAR_MOVIE_CACHE_LIST_SIZE){
+            bypasses.increment();
+            return truncate(SimilarMovieProcess.rankSimilarMovies(movieId, model, strategy), size);
+        }
+        Key key = new Key(movieId, model, strategy);
+        List<Movie> ranked = current.lists.get(key);
+        if (null == ranked){
+            misses.increment();
+            ranked = current.put(key, SimilarMovieProcess.rankSimilarMovies(movieId, model, strategy));
+        } else {
+            hits.increment();
+        }
+        return truncate(ranked, size);
+    }
+
+    private static List<Movie> truncate(List<Movie> movies, int size){
+        return movies.size() > size ? movies.subList(0, Math.max(0, size)) : movies;
+    }
+
+    //generation of a snapshot, a newer snapshot starts a new generation, null for snapshots older than the cached one
+    private Generation generationOf(DataSnapshot snapshot){
+        while (true){
+            Generation current = generation.get();
+            if (current.version == snapshot.getVersion()){
+                return current;
+            }
+            if (current.version > snapshot.getVersion()){
+                return null;
+            }
+            Generation next = new Generation(snapshot.getVersion());
+            if (generation.compareAndSet(current, next)){
+                return next;
+            }
+        }
+    }
+
+    /**
+     * precompute the similar movies of every movie with the given models on a background thread, now and whenever
+     * a new snapshot is published. A run for a snapshot that has been replaced stops early
+     * @param precomputeModels  comma separated models to precompute, e.g. emb
+     */
+    public synchronized void startPrecompute(String precomputeModels){
+        List<String> models = new ArrayList<>();
+        for (String model : precomputeModels.split(",")){
+            if (!model.trim().isEmpty()){
+                models.add(model.trim());
+            }
+        }
+        if (null != precomputer || models.isEmpty()){
+            return;
+        }
+        precomputer = Executors.newSingleThreadExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "similar-movie-precompute");
+            thread.setDaemon(true);
+            return thread;
+        });
+        DataManager.getInstance().addPublishListener(snapshot -> precomputer.submit(() -> precompute(models)));
+        precomputer.submit(() -> precompute(models));
+        System.out.println("Similar movie precompute started for models " + models + ".");
+    }
+
+    private void precompute(List<String> models){
+        try (DataManager.Lease lease = DataManager.getInstance().acquire()) {
+            DataSnapshot snapshot = DataManager.getInstance().getSnapshot();
+            long start = System.currentTimeMillis();
+            int count = 0;
+            for (Movie movie : snapshot.getMovies(snapshot.getMovieCount(), FEATURE_MOVIE_RATING_COUNT)){
+                for (String model : models){
+                    Generation current = generationOf(snapshot);
+                    if (null == current || current.isFull() || snapshot.isRetired()){
+                        System.out.println("Similar movie precompute of snapshot v" + snapshot.getVersion() + " stopped after "
+                                + count + " lists.");
+                        return;
+                    }
+                    Key key = new Key(movie.getMovieId(), model, Config.RECALL_STRATEGY);
+                    if (!current.lists.containsKey(key)){
+                        current.put(key, SimilarMovieProcess.rankSimilarMovies(movie.getMovieId(), model, Config.RECALL_STRATEGY));
+                        count++;
+                    }
+                }
+            }
+            System.out.println("Similar movie precompute of snapshot v" + snapshot.getVersion() + " completed in "
+                    + (System.currentTimeMillis() - start) + "ms, " + count + " lists.");
+        } catch (Exception e) {
+            System.out.println("Similar movie precompute failed: " + e);
+        }
+    }
+
+    //number of lists cached for the current snapshot
+    public int size(){
+        return generation.get().count.get();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    //requests served without the cache, larger than the cached lists or pinned to an older snapshot
+    public long getBypasses() {
+        return bypasses.sum();
+    }
+
+    @Override
+    public String toString() {
+        return String.format("version=%d lists=%d hits=%d misses=%d bypasses=%d",
+                generation.get().version, size(), getHits(), getMisses(), getBypasses());
+    }
+
+    /**
+     * Generation, cached lists of one snapshot version
+     */
+    private static class Generation {
+        final long version;
+        final ConcurrentHashMap<Key, List<Movie>> lists;
+        final AtomicInteger count;
+
+        Generation(long version){
+            this.version = version;
+            this.lists = new ConcurrentHashMap<>();
+            this.count = new AtomicInteger();
+        }
+
+        boolean isFull(){
+            return count.get() >= Config.SIMILAR_MOVIE_CACHE_MAX_LISTS;
+        }
+
+        //cache the head of a ranked list unless the generation is full, return the list to serve
+        List<Movie> put(Key key, List<Movie> ranked){
+            List<Movie> cached = Collections.unmodifiableList(new ArrayList<>(
+                    ranked.subList(0, Math.min(ranked.size(), Config.SIMILAR_MOVIE_CACHE_LIST_SIZE))));
+            if (ranked.isEmpty() || isFull()){
+                return cached;
+            }
+            if (null == lists.putIfAbsent(key, cached)){
+                count.incrementAndGet();
+            }
+            return cached;
+        }
+    }
+
+    private static class Key {
+        final int movieId;
+        final String model;
+        final String strategy;
+
+        Key(int movieId, String model, String strategy){
+            this.movieId = movieId;
+            this.model = model;
+            this.strategy = strategy;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            Key key = (Key) o;
+            return movieId == key.movieId && Objects.equals(model, key.model) && Objects.equals(strategy, key.strategy);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * movieId + Objects.hashCode(model)) + Objects.hashCode(strategy);
+        }
+    }
+}
@@ -2,10 +2,17 @@ package com.sparrowrecsys.online.recprocess;
 
 import com.sparrowrecsys.online.datamanager.DataManager;
 import com.sparrowrecsys.online.datamanager.Movie;
+import com.sparrowrecsys.online.model.EmbeddingMatrix;
+import com.sparrowrecsys.online.model.PqEmbeddingMatrix;
+import com.sparrowrecsys.online.retrieval.BruteForceRetriever;
+import com.sparrowrecsys.online.retrieval.HnswIndex;
+import com.sparrowrecsys.online.retrieval.TopKResult;
+import com.sparrowrecsys.online.util.IntObjectMap;
 
 import static com.sparrowrecsys.online.util.Config.*;
 import static com.sparrowrecsys.online.util.Constants.*;
 import java.util.*;
+import java.util.function.IntUnaryOperator;
 
 /**
  * Recommendation process of similar movies
@@ -14,24 +21,30 @@ import java.util.*;
 public class SimilarMovieProcess {
 
     /**
-     * get recommendation movie list
+     * get recommendation movie list, served from the similar movie cache
      * @param movieId input movie id
      * @param size  size of similar items
      * @param model model used for calculating similarity
-     * @return  list of similar movies
+     * @return  read-only list of similar movies
      */
     public static List<Movie> getRecList(int movieId, int size, String model){
+        return SimilarMovieCache.getInstance().getRecList(movieId, size, model, RECALL_STRATEGY);
+    }
+
+    /**
+     * rank all similar movies of a movie without the cache
+     * @param movieId input movie id
+     * @param model model used for calculating similarity
+     * @param strategy  recall strategy
+     * @return  ranked list of similar movies, empty for an unknown movie
+     */
+    public static List<Movie> rankSimilarMovies(int movieId, String model, String strategy){
         Movie movie = DataManager.getInstance().getMovieById(movieId);
         if (null == movie){
             return new ArrayList<>();
         }
-        List<Movie> candidates = candidateGenerator(movie, RECALL_STRATEGY);
-        List<Movie> rankedList = ranker(movie, candidates, model);
-
-        if (rankedList.size() > size){
-            return rankedList.subList(0, size);
-        }
-        return rankedList;
+        List<Movie> candidates = candidateGenerator(movie, strategy);
+        return ranker(movie, candidates, model);
     }
 
     /**
@@ -40,7 +53,7 @@ public class SimilarMovieProcess {
      * @return  movie candidates
      */
     public static List<Movie> candidateGenerator(Movie movie, String strategy){
-        HashMap<Integer, Movie> candidateMap = new HashMap<>();
+        IntObjectMap<Movie> candidateMap = new IntObjectMap<>(512);
         List<Movie> oneCandidates = new ArrayList<>();
         if (RECALL_BY_EMBEDDING_LSH.equals(strategy) && EMB_DATA_SOURCE.equals(DATA_SOURCE_REDIS)) {
             // This can only be called when redis have data, since we don't generate data offline.
@@ -49,6 +62,20 @@ public class SimilarMovieProcess {
                 candidateMap.put(candidate.getMovieId(), candidate);
             }
             System.out.println("recall candidates are generated by embedding LSH");
+        } else if (RECALL_BY_EMBEDDING_BRUTE_FORCE.equals(strategy) && movie.getEmbIndex() >= 0
+                && (null != DataManager.getInstance().getMovieEmbMatrix() || null != DataManager.getInstance().getMoviePqMatrix())) {
+            oneCandidates = retrievalCandidatesByEmbedding(movie, 500);
+            for (Movie candidate : oneCandidates) {
+                candidateMap.put(candidate.getMovieId(), candidate);
+            }
+            System.out.println("recall candidates are generated by embedding brute-force top-K");
+        } else if (RECALL_BY_EMBEDDING_HNSW.equals(strategy) && movie.getEmbIndex() >= 0
+                && null != DataManager.getInstance().getMovieHnswIndex()) {
+            oneCandidates = retrievalCandidatesByHnsw(movie, 500);
+            for (Movie candidate : oneCandidates) {
+                candidateMap.put(candidate.getMovieId(), candidate);
+            }
+            System.out.println("recall candidates are generated by embedding HNSW index");
         } else {
             for (String genre : movie.getGenres()) {
                 oneCandidates = DataManager.getInstance().getMoviesByGenre(genre, 100, "rating");
@@ -59,7 +86,7 @@ public class SimilarMovieProcess {
             System.out.println("recall candidates are generated by naive fallback");
         }
         candidateMap.remove(movie.getMovieId());
-        return new ArrayList<>(candidateMap.values());
+        return candidateMap.values();
     }
 
     /**
@@ -74,7 +101,7 @@ public class SimilarMovieProcess {
 
         HashSet<String> genres = new HashSet<>(movie.getGenres());
 
-        HashMap<Integer, Movie> candidateMap = new HashMap<>();
+        IntObjectMap<Movie> candidateMap = new IntObjectMap<>(512);
         for (String genre : genres){
             List<Movie> oneCandidates = DataManager.getInstance().getMoviesByGenre(genre, 20, "rating");
             for (Movie candidate : oneCandidates){
@@ -93,7 +120,7 @@ public class SimilarMovieProcess {
         }
 
         candidateMap.remove(movie.getMovieId());
-        return new ArrayList<>(candidateMap.values());
+        return candidateMap.values();
     }
 
     /**
@@ -103,26 +130,56 @@ public class SimilarMovieProcess {
      * @return  movie candidates
      */
     public static List<Movie> retrievalCandidatesByEmbedding(Movie movie, int size){
-        if (null == movie || null == movie.getEmb()){
+        EmbeddingMatrix movieEmbMatrix = DataManager.getInstance().getMovieEmbMatrix();
+        PqEmbeddingMatrix moviePqMatrix = DataManager.getInstance().getMoviePqMatrix();
+        if (null == movie || movie.getEmbIndex() < 0){
             return null;
         }
 
-        List<Movie> allCandidates = DataManager.getInstance().getMovies(10000, "rating");
-        HashMap<Movie,Double> movieScoreMap = new HashMap<>();
-        for (Movie candidate : allCandidates){
-            double similarity = calculateEmbSimilarScore(movie, candidate);
-            movieScoreMap.put(candidate, similarity);
+        if (null != movieEmbMatrix){
+            TopKResult topK = BruteForceRetriever.searchByRow(movieEmbMatrix, movie.getEmbIndex(), size);
+            return toMovies(topK, movieEmbMatrix::getId);
         }
+        if (null != moviePqMatrix){
+            float[] query = moviePqMatrix.getEmbedding(movie.getEmbIndex()).getVector();
+            TopKResult topK = BruteForceRetriever.search(moviePqMatrix, query, size, movie.getEmbIndex());
+            return toMovies(topK, moviePqMatrix::getId);
+        }
+        return null;
+    }
 
-        List<Map.Entry<Movie,Double>> movieScoreList = new ArrayList<>(movieScoreMap.entrySet());
-        movieScoreList.sort(Map.Entry.comparingByValue());
-
-        List<Movie> candidates = new ArrayList<>();
-        for (Map.Entry<Movie,Double> movieScoreEntry : movieScoreList){
-            candidates.add(movieScoreEntry.getKey());
+    /**
+     * approximate embedding based candidate generation method using the HNSW index
+     * @param movie input movie
+     * @param size  size of candidate pool
+     * @return  movie candidates
+     */
+    public static List<Movie> retrievalCandidatesByHnsw(Movie movie, int size){
+        EmbeddingMatrix movieEmbMatrix = DataManager.getInstance().getMovieEmbMatrix();
+        HnswIndex movieHnswIndex = DataManager.getInstance().getMovieHnswIndex();
+        if (null == movie || movie.getEmbIndex() < 0 || null == movieEmbMatrix || null == movieHnswIndex){
+            return null;
         }
 
-        return candidates.subList(0, Math.min(candidates.size(), size));
+        TopKResult topK = movieHnswIndex.searchByRow(movie.getEmbIndex(), size, Math.max(HNSW_EF_SEARCH, size));
+        return toMovies(topK, movieEmbMatrix::getId);
+    }
+
+    /**
+     * map retrieved matrix rows back to movies
+     * @param topK  retrieved rows
+     * @param rowToMovieId  maps a row of the retrieved matrix to its movie id
+     * @return  movies in retrieval order
+     */
+    public static List<Movie> toMovies(TopKResult topK, IntUnaryOperator rowToMovieId){
+        List<Movie> movies = new ArrayList<>(topK.size());
+        for (int i = 0; i < topK.size(); i++){
+            Movie movie = DataManager.getInstance().getMovieById(rowToMovieId.applyAsInt(topK.getRow(i)));
+            if (null != movie){
+                movies.add(movie);
+            }
+        }
+        return movies;
     }
 
     /**
@@ -134,11 +191,21 @@ public class SimilarMovieProcess {
      */
     public static List<Movie> ranker(Movie movie, List<Movie> candidates, String model){
         HashMap<Movie, Double> candidateScoreMap = new HashMap<>();
+        //with quantized embeddings the query table is built once and every candidate is scored by table lookups
+        PqEmbeddingMatrix moviePqMatrix = DataManager.getInstance().getMoviePqMatrix();
+        float[] pqQueryTable = null;
+        if (EMBEDDING.equals(model) && null != moviePqMatrix && movie.getEmbIndex() >= 0){
+            pqQueryTable = moviePqMatrix.buildQueryTable(moviePqMatrix.getEmbedding(movie.getEmbIndex()).getVector());
+        }
         for (Movie candidate : candidates){
             double similarity;
             switch (model){
                 case EMBEDDING:
-                    similarity = calculateEmbSimilarScore(movie, candidate);
+                    if (null != pqQueryTable){
+                        similarity = candidate.getEmbIndex() < 0 ? -1 : moviePqMatrix.score(candidate.getEmbIndex(), pqQueryTable);
+                    } else {
+                        similarity = calculateEmbSimilarScore(movie, candidate);
+                    }
                     break;
                 default:
                     similarity = calculateSimilarScore(movie, candidate);
@@ -179,9 +246,11 @@ public class SimilarMovieProcess {
      * @return  similarity score
      */
     public static double calculateEmbSimilarScore(Movie movie, Movie candidate){
-        if (null == movie || null == candidate){
+        EmbeddingMatrix movieEmbMatrix = DataManager.getInstance().getMovieEmbMatrix();
+        if (null == movie || null == candidate || null == movieEmbMatrix
+                || movie.getEmbIndex() < 0 || candidate.getEmbIndex() < 0){
             return -1;
         }
-        return movie.getEmb().calculateSimilarity(candidate.getEmb());
+        return movieEmbMatrix.cosine(movie.getEmbIndex(), candidate.getEmbIndex());
     }
 }
@@ -0,0 +1,118 @@
+package com.sparrowrecsys.online.retrieval;
+
+import com.sparrowrecsys.online.model.EmbeddingMatrix;
+import com.sparrowrecsys.online.model.PqEmbeddingMatrix;
+import com.sparrowrecsys.online.model.VectorMath;
+import com.sparrowrecsys.online.util.Config;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * BruteForceRetriever, exact top-K cosine retrieval over an embedding matrix.
+ * The matrix is split into partitions scanned in parallel on a fork-join pool, each partition keeps its own
+ * bounded min-heap, and partition heaps are merged on the way back up.
+ */
+public class BruteForceRetriever {
+    //shared pool for partition scans
+    private static final ForkJoinPool pool = new ForkJoinPool(Config.RETRIEVAL_PARALLELISM);
+
+    private BruteForceRetriever(){}
+
+    /**
+     * retrieve the K rows most similar to the query
+     * @param matrix    embedding matrix to scan
+     * @param query     query vector, must have the matrix dimension
+     * @param k         number of rows to retrieve
+     * @param excludeRow    row to skip, e.g. the query item itself, -1 for none
+     * @return  top K rows ordered by descending cosine similarity
+     */
+    public static TopKResult search(EmbeddingMatrix matrix, float[] query, int k, int excludeRow){
+        if (null == matrix || null == query || query.length != matrix.getDim() || k <= 0){
+            return new TopKResult(new int[0], new float[0]);
+        }
+        float queryNorm = VectorMath.norm(query, 0, query.length);
+        ScanTask task = new ScanTask(matrix, query, queryNorm, k, excludeRow, 0, matrix.getRowCount());
+        TopKHeap heap = matrix.getRowCount() <= Config.RETRIEVAL_PARTITION_SIZE ? task.compute() : pool.invoke(task);
+        return heap.toResult();
+    }
+
+    //retrieve the K rows most similar to an existing row of the matrix, the row itself is excluded
+    public static TopKResult searchByRow(EmbeddingMatrix matrix, int row, int k){
+        if (null == matrix || row < 0 || row >= matrix.getRowCount()){
+            return new TopKResult(new int[0], new float[0]);
+        }
+        float[] query = new float[matrix.getDim()];
+        matrix.copyRow(row, query);
+        return search(matrix, query, k, row);
+    }
+
+    /**
+     * retrieve the K rows of a product-quantized matrix most similar to the query, scored by asymmetric distance
+     * @param matrix    quantized embedding matrix to scan
+     * @param query     uncompressed query vector
+     * @param k         number of rows to retrieve
+     * @param excludeRow    row to skip, e.g. the query item itself, -1 for none
+     * @return  top K rows ordered by descending approximate cosine similarity
+     */
+    public static TopKResult search(PqEmbeddingMatrix matrix, float[] query, int k, int excludeRow){
+        if (null == matrix || null == query || query.length != matrix.getDim() || k <= 0){
+            return new TopKResult(new int[0], new float[0]);
+        }
+        //a code scan only does one table lookup per subspace, so a single pass is cheap enough
+        float[] table = matrix.buildQueryTable(query);
+        TopKHeap heap = new TopKHeap(k);
+        for (int row = 0; row < matrix.getRowCount(); row++){
+            if (row != excludeRow){
+                heap.offer(row, matrix.score(row, table));
+            }
+        }
+        return heap.toResult();
+    }
+
+    //scan task over rows [from, to), splits itself until a partition is small enough
+    private static class ScanTask extends RecursiveTask<TopKHeap> {
+        final EmbeddingMatrix matrix;
+        final float[] query;
+        final float queryNorm;
+        final int k;
+        final int excludeRow;
+        final int from;
+        final int to;
+
+        ScanTask(EmbeddingMatrix matrix, float[] query, float queryNorm, int k, int excludeRow, int from, int to){
+            this.matrix = matrix;
+            this.query = query;
+            this.queryNorm = queryNorm;
+            this.k = k;
+            this.excludeRow = excludeRow;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected TopKHeap compute() {
+            if (to - from <= Config.RETRIEVAL_PARTITION_SIZE){
+                return scan();
+            }
+            int middle = (from + to) >>> 1;
+            ScanTask left = new ScanTask(matrix, query, queryNorm, k, excludeRow, from, middle);
+            ScanTask right = new ScanTask(matrix, query, queryNorm, k, excludeRow, middle, to);
+            left.fork();
+            TopKHeap heap = right.compute();
+            heap.merge(left.join());
+            return heap;
+        }
+
+        private TopKHeap scan(){
+            TopKHeap heap = new TopKHeap(k);
+            for (int row = from; row < to; row++){
+                if (row == excludeRow){
+                    continue;
+                }
+                heap.offer(row, (float) matrix.cosine(row, query, queryNorm));
+            }
+            return heap;
+        }
+    }
+}
@@ -0,0 +1,504 @@
+package com.sparrowrecsys.online.retrieval;
+
+import com.sparrowrecsys.online.model.EmbeddingMatrix;
+import com.sparrowrecsys.online.model.EmbeddingSnapshot;
+import com.sparrowrecsys.online.model.VectorMath;
+import com.sparrowrecsys.online.util.Config;
+import com.sparrowrecsys.online.util.Utility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.TreeSet;
+
+/**
+ * HnswIndex, hierarchical navigable small world graph for approximate cosine nearest neighbor search
+ * over the rows of an embedding matrix. Graph nodes are matrix row ordinals.
+ *
+ * The index is built single-threaded and is read-only afterwards, so searches can run concurrently.
+ */
+public class HnswIndex {
+    static final int MAGIC = 0x57534e48;
+    //version 2 adds the fingerprint of the embedding matrix the graph was built on
+    static final int VERSION = 2;
+    public static final String INDEX_SUFFIX = ".hnsw";
+
+    final EmbeddingMatrix matrix;
+    //max number of neighbors per node on upper levels, level 0 keeps twice as many
+    final int m;
+    final int efConstruction;
+    //links[node][level] = neighbor rows of node on that level
+    final int[][][] links;
+    int entryPoint;
+    int maxLevel;
+
+    //per-thread visited marks shared by all indexes, so reloads don't leave an array per index on every thread
+    private static final ThreadLocal<VisitedSet> VISITED_SETS = ThreadLocal.withInitial(VisitedSet::new);
+
+    private HnswIndex(EmbeddingMatrix matrix, int m, int efConstruction){
+        this.matrix = matrix;
+        this.m = m;
+        this.efConstruction = efConstruction;
+        this.links = new int[matrix.getRowCount()][][];
+        this.entryPoint = -1;
+        this.maxLevel = -1;
+    }
+
+    /**
+     * build an index over all rows of an embedding matrix
+     * @param matrix    embedding matrix
+     * @param m         max neighbors per node on upper levels
+     * @param efConstruction    size of the dynamic candidate list while inserting
+     * @return  built index
+     */
+    public static HnswIndex build(EmbeddingMatrix matrix, int m, int efConstruction){
+        HnswIndex index = new HnswIndex(matrix, m, efConstruction);
+        Random random = new Random(42);
+        double levelMultiplier = 1 / Math.log(Math.max(2, m));
+        float[] vector = new float[matrix.getDim()];
+        for (int row = 0; row < matrix.getRowCount(); row++){
+            int level = (int) (-Math.log(1 - random.nextDouble()) * levelMultiplier);
+            matrix.copyRow(row, vector);
+            index.insert(row, level, vector);
+        }
+        return index;
+    }
+
+    //prebuilt index file path that sits alongside an embedding file, e.g. item2vecEmb.csv -> item2vecEmb.hnsw
+    public static String getIndexPath(String embPath){
+        return Utility.replaceExtension(embPath, INDEX_SUFFIX);
+    }
+
+    public int size() {
+        return links.length;
+    }
+
+    /**
+     * approximate top-K search
+     * @param query     query vector, must have the matrix dimension
+     * @param k         number of rows to retrieve
+     * @param efSearch  size of the dynamic candidate list, larger is more accurate and slower
+     * @return  top K rows ordered by descending cosine similarity
+     */
+    public TopKResult search(float[] query, int k, int efSearch){
+        return search(query, k, efSearch, -1);
+    }
+
+    //approximate top-K search that skips excludeRow, e.g. the query item itself
+    public TopKResult search(float[] query, int k, int efSearch, int excludeRow){
+        if (entryPoint < 0 || null == query || query.length != matrix.getDim() || k <= 0){
+            return new TopKResult(new int[0], new float[0]);
+        }
+        float queryNorm = VectorMath.norm(query, 0, query.length);
+        int current = entryPoint;
+        float currentScore = score(current, query, queryNorm);
+        for (int level = maxLevel; level > 0; level--){
+            int[] best = {current};
+            float[] bestScore = {currentScore};
+            greedyClosest(query, queryNorm, level, best, bestScore);
+            current = best[0];
+            currentScore = bestScore[0];
+        }
+        int ef = Math.max(efSearch, k + (excludeRow >= 0 ? 1 : 0));
+        TopKHeap candidates = searchLayer(query, queryNorm, current, currentScore, ef, 0);
+        TopKResult all = candidates.toResult();
+        TopKHeap topK = new TopKHeap(k);
+        for (int i = 0; i < all.size(); i++){
+            if (all.getRow(i) != excludeRow){
+                topK.offer(all.getRow(i), all.getScore(i));
+            }
+        }
+        return topK.toResult();
+    }
+
+    //approximate top-K search using an existing row as query, the row itself is excluded
+    public TopKResult searchByRow(int row, int k, int efSearch){
+        if (row < 0 || row >= matrix.getRowCount()){
+            return new TopKResult(new int[0], new float[0]);
+        }
+        float[] query = new float[matrix.getDim()];
+        matrix.copyRow(row, query);
+        return search(query, k, efSearch, row);
+    }
+
+    private void insert(int row, int level, float[] vector){
+        links[row] = new int[level + 1][];
+        for (int l = 0; l <= level; l++){
+            links[row][l] = new int[0];
+        }
+        if (entryPoint < 0){
+            entryPoint = row;
+            maxLevel = level;
+            return;
+        }
+        float norm = matrix.getNorm(row);
+        int current = entryPoint;
+        float currentScore = score(current, vector, norm);
+        for (int l = maxLevel; l > level; l--){
+            int[] best = {current};
+            float[] bestScore = {currentScore};
+            greedyClosest(vector, norm, l, best, bestScore);
+            current = best[0];
+            currentScore = bestScore[0];
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--){
+            TopKResult candidates = searchLayer(vector, norm, current, currentScore, efConstruction, l).toResult();
+            int maxNeighbors = l == 0 ? 2 * m : m;
+            int[] neighbors = selectNeighbors(candidates.getRows(), candidates.getScores(), Math.min(m, maxNeighbors));
+            links[row][l] = neighbors;
+            for (int neighbor : neighbors){
+                addLink(neighbor, row, l, maxNeighbors);
+            }
+            current = candidates.getRow(0);
+            currentScore = candidates.getScore(0);
+        }
+        if (level > maxLevel){
+            maxLevel = level;
+            entryPoint = row;
+        }
+    }
+
+    //add a reverse link, pruning the neighbor list with the selection heuristic when it overflows
+    private void addLink(int node, int newNeighbor, int level, int maxNeighbors){
+        int[] current = links[node][level];
+        int[] extended = Arrays.copyOf(current, current.length + 1);
+        extended[current.length] = newNeighbor;
+        if (extended.length <= maxNeighbors){
+            links[node][level] = extended;
+            return;
+        }
+        TopKHeap heap = new TopKHeap(extended.length);
+        for (int neighbor : extended){
+            heap.offer(neighbor, (float) matrix.cosine(node, neighbor));
+        }
+        TopKResult sorted = heap.toResult();
+        links[node][level] = selectNeighbors(sorted.getRows(), sorted.getScores(), maxNeighbors);
+    }
+
+    //neighbor selection heuristic: keep a candidate only if it is closer to the base than to any kept neighbor
+    private int[] selectNeighbors(int[] rows, float[] scores, int maxNeighbors){
+        int[] selected = new int[Math.min(maxNeighbors, rows.length)];
+        int count = 0;
+        for (int i = 0; i < rows.length && count < selected.length; i++){
+            boolean keep = true;
+            for (int j = 0; j < count; j++){
+                if (matrix.cosine(rows[i], selected[j]) > scores[i]){
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep){
+                selected[count++] = rows[i];
+            }
+        }
+        //fill the remaining slots with the closest skipped candidates to keep the graph well connected
+        for (int i = 0; i < rows.length && count < selected.length; i++){
+            boolean taken = false;
+            for (int j = 0; j < count; j++){
+                if (selected[j] == rows[i]){
+                    taken = true;
+                    break;
+                }
+            }
+            if (!taken){
+                selected[count++] = rows[i];
+            }
+        }
+        return selected;
+    }
+
+    //walk greedily to the closest node on one level
+    private void greedyClosest(float[] query, float queryNorm, int level, int[] best, float[] bestScore){
+        boolean changed = true;
+        while (changed){
+            changed = false;
+            for (int neighbor : links[best[0]][level]){
+                float s = score(neighbor, query, queryNorm);
+                if (s > bestScore[0]){
+                    bestScore[0] = s;
+                    best[0] = neighbor;
+                    changed = true;
+                }
+            }
+        }
+    }
+
+    //best-first search on one level keeping the ef closest nodes found
+    private TopKHeap searchLayer(float[] query, float queryNorm, int entry, float entryScore, int ef, int level){
+        VisitedSet visited = VISITED_SETS.get();
+        visited.reset(links.length);
+        visited.visit(entry);
+        CandidateQueue candidates = new CandidateQueue(ef);
+        TopKHeap results = new TopKHeap(ef);
+        candidates.push(entry, entryScore);
+        results.offer(entry, entryScore);
+        while (candidates.size() > 0){
+            float candidateScore = candidates.peekScore();
+            if (candidateScore < results.threshold()){
+                break;
+            }
+            int candidate = candidates.pop();
+            int[] neighbors = links[candidate].length > level ? links[candidate][level] : new int[0];
+            for (int neighbor : neighbors){
+                if (!visited.visit(neighbor)){
+                    continue;
+                }
+                float s = score(neighbor, query, queryNorm);
+                if (s > results.threshold()){
+                    candidates.push(neighbor, s);
+                    results.offer(neighbor, s);
+                }
+            }
+        }
+        return results;
+    }
+
+    private float score(int row, float[] query, float queryNorm){
+        return (float) matrix.cosine(row, query, queryNorm);
+    }
+
+    /**
+     * compare the index against exact brute-force retrieval and print recall@K and latency
+     * @param k         number of rows retrieved per query
+     * @param efSearch  size of the dynamic candidate list for the index
+     * @param queryCount    number of rows sampled as queries
+     * @return  average recall@K
+     */
+    public double evaluateRecall(int k, int efSearch, int queryCount){
+        Random random = new Random(7);
+        int hits = 0;
+        int total = 0;
+        long indexNanos = 0;
+        long bruteForceNanos = 0;
+        for (int q = 0; q < queryCount; q++){
+            int row = random.nextInt(matrix.getRowCount());
+            long t0 = System.nanoTime();
+            TopKResult approximate = searchByRow(row, k, efSearch);
+            long t1 = System.nanoTime();
+            TopKResult exact = BruteForceRetriever.searchByRow(matrix, row, k);
+            long t2 = System.nanoTime();
+            indexNanos += t1 - t0;
+            bruteForceNanos += t2 - t1;
+            int[] exactRows = exact.getRows().clone();
+            Arrays.sort(exactRows);
+            for (int approximateRow : approximate.getRows()){
+                if (Arrays.binarySearch(exactRows, approximateRow) >= 0){
+                    hits++;
+                }
+            }
+            total += exactRows.length;
+        }
+        double recall = total == 0 ? 0 : (double) hits / total;
+        System.out.printf("HNSW M=%d efConstruction=%d efSearch=%d: recall@%d=%.4f, hnsw %.1f us/query, brute-force %.1f us/query%n",
+                m, efConstruction, efSearch, k, recall,
+                indexNanos / 1e3 / Math.max(1, queryCount), bruteForceNanos / 1e3 / Math.max(1, queryCount));
+        return recall;
+    }
+
+    /**
+     * save the graph with the fingerprint of its embedding matrix, the matrix itself is stored separately
+     * @param path  output file path
+     */
+    public void save(String path) throws IOException{
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(path)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(matrix.fingerprint());
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(links.length);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int[][] nodeLinks : links){
+                out.writeInt(nodeLinks.length);
+                for (int[] levelLinks : nodeLinks){
+                    out.writeInt(levelLinks.length);
+                    for (int neighbor : levelLinks){
+                        out.writeInt(neighbor);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * load a prebuilt graph for an embedding matrix
+     * @param path  index file path
+     * @param matrix    embedding matrix the graph was built on, same ids, vectors and row order
+     * @return  loaded index
+     * @throws IOException  if the file isn't a supported index or was built on another matrix
+     */
+    public static HnswIndex load(String path, EmbeddingMatrix matrix) throws IOException{
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("not a supported HNSW index file: " + path);
+            }
+            //row ordinals are graph nodes, a graph of a reordered or retrained matrix would return wrong neighbors
+            if (in.readLong() != matrix.fingerprint()){
+                throw new IOException("HNSW index was built on another embedding matrix: " + path);
+            }
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            int count = in.readInt();
+            if (count != matrix.getRowCount()){
+                throw new IOException("HNSW index has " + count + " nodes but the embedding matrix has " + matrix.getRowCount() + " rows: " + path);
+            }
+            HnswIndex index = new HnswIndex(matrix, m, efConstruction);
+            index.entryPoint = in.readInt();
+            index.maxLevel = in.readInt();
+            for (int node = 0; node < count; node++){
+                int[][] nodeLinks = new int[in.readInt()][];
+                for (int level = 0; level < nodeLinks.length; level++){
+                    nodeLinks[level] = new int[in.readInt()];
+                    for (int i = 0; i < nodeLinks[level].length; i++){
+                        nodeLinks[level][i] = in.readInt();
+                    }
+                }
+                index.links[node] = nodeLinks;
+            }
+            return index;
+        }
+    }
+
+    /**
+     * build the index of an embedding file's snapshot and save it alongside, e.g. item2vecEmb.csv -> item2vecEmb.hnsw
+     * @param embPath   embedding csv path, its snapshot must have been written
+     * @param m         max neighbors per node on upper levels
+     * @param efConstruction    size of the dynamic candidate list while inserting
+     * @return  path of the saved index
+     */
+    public static String writeIndex(String embPath, int m, int efConstruction) throws IOException{
+        String indexPath = getIndexPath(embPath);
+        build(EmbeddingSnapshot.open(EmbeddingSnapshot.getSnapshotPath(embPath)), m, efConstruction).save(indexPath);
+        return indexPath;
+    }
+
+    //build an index over an embedding snapshot and print recall@K for a range of efSearch values, or save it
+    public static void main(String[] args) throws IOException{
+        if (args.length < 1){
+            System.out.println("usage: HnswIndex <embedding snapshot> [M] [efConstruction] [K]");
+            System.out.println("       HnswIndex --write <embedding csv> [M] [efConstruction]");
+            return;
+        }
+        if ("--write".equals(args[0]) && args.length > 1){
+            int m = args.length > 2 ? Integer.parseInt(args[2]) : Config.HNSW_M;
+            int efConstruction = args.length > 3 ? Integer.parseInt(args[3]) : Config.HNSW_EF_CONSTRUCTION;
+            System.out.println("Saved HNSW index to " + writeIndex(args[1], m, efConstruction));
+            return;
+        }
+        EmbeddingMatrix matrix = EmbeddingSnapshot.open(args[0]);
+        int m = args.length > 1 ? Integer.parseInt(args[1]) : Config.HNSW_M;
+        int efConstruction = args.length > 2 ? Integer.parseInt(args[2]) : Config.HNSW_EF_CONSTRUCTION;
+        int k = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+        long t0 = System.nanoTime();
+        HnswIndex index = build(matrix, m, efConstruction);
+        System.out.printf("Built HNSW index over %d rows in %.1f ms%n", matrix.getRowCount(), (System.nanoTime() - t0) / 1e6);
+        for (int efSearch : new TreeSet<>(Arrays.asList(k, 2 * k, 50, 100, 200, 400))){
+            index.evaluateRecall(k, efSearch, 200);
+        }
+    }
+
+    //growable max-heap of (row, score), best candidate first
+    private static class CandidateQueue {
+        int[] rows;
+        float[] scores;
+        int size;
+
+        CandidateQueue(int initialCapacity){
+            rows = new int[Math.max(16, initialCapacity)];
+            scores = new float[rows.length];
+            size = 0;
+        }
+
+        int size(){
+            return size;
+        }
+
+        float peekScore(){
+            return scores[0];
+        }
+
+        void push(int row, float score){
+            if (size == rows.length){
+                rows = Arrays.copyOf(rows, size * 2);
+                scores = Arrays.copyOf(scores, size * 2);
+            }
+            int index = size++;
+            while (index > 0){
+                int parent = (index - 1) >>> 1;
+                if (scores[parent] >= score){
+                    break;
+                }
+                rows[index] = rows[parent];
+                scores[index] = scores[parent];
+                index = parent;
+            }
+            rows[index] = row;
+            scores[index] = score;
+        }
+
+        int pop(){
+            int top = rows[0];
+            size--;
+            if (size > 0){
+                int row = rows[size];
+                float score = scores[size];
+                int index = 0;
+                int half = size >>> 1;
+                while (index < half){
+                    int child = 2 * index + 1;
+                    if (child + 1 < size && scores[child + 1] > scores[child]){
+                        child++;
+                    }
+                    if (score >= scores[child]){
+                        break;
+                    }
+                    rows[index] = rows[child];
+                    scores[index] = scores[child];
+                    index = child;
+                }
+                rows[index] = row;
+                scores[index] = score;
+            }
+            return top;
+        }
+    }
+
+    //visited marks for one search, cleared in O(1) by moving to a new generation
+    private static class VisitedSet {
+        int[] marks;
+        int generation;
+
+        VisitedSet(){
+            marks = new int[0];
+            generation = 0;
+        }
+
+        //start a search over size nodes, growing the marks to the largest index searched on this thread
+        void reset(int size){
+            generation++;
+            if (marks.length < size){
+                marks = new int[size];
+                generation = 1;
+            } else if (generation == Integer.MAX_VALUE){
+                Arrays.fill(marks, 0);
+                generation = 1;
+            }
+        }
+
+        //mark a node, returns false if it was already visited in this generation
+        boolean visit(int node){
+            if (marks[node] == generation){
+                return false;
+            }
+            marks[node] = generation;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.sparrowrecsys.online.retrieval;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * LshIndex, inverted index from (hash table, bucket) to the ordinals of the items that fall into the bucket.
+ * A query only touches the posting lists of its own buckets, and candidates are ranked by the number of
+ * hash tables they collide with the query in.
+ */
+public class LshIndex {
+    //original id of every ordinal
+    final int[] ids;
+    //posting lists keyed by table id and bucket id
+    final Map<Long, int[]> postings;
+    //per-thread collision counters shared by all indexes, all zero between queries, grown to the largest index
+    private static final ThreadLocal<int[]> COLLISION_COUNTS = ThreadLocal.withInitial(() -> new int[0]);
+
+    private LshIndex(int[] ids, Map<Long, int[]> postings){
+        this.ids = ids;
+        this.postings = postings;
+    }
+
+    public int size() {
+        return ids.length;
+    }
+
+    public int getId(int ordinal) {
+        return ids[ordinal];
+    }
+
+    /**
+     * retrieve the items colliding with the query buckets in the most hash tables
+     * @param buckets   bucket id of the query in every hash table
+     * @param k         number of items to retrieve
+     * @param excludeId item id to skip, e.g. the query item itself
+     * @return  top K ordinals, scored by number of colliding tables
+     */
+    public TopKResult search(float[] buckets, int k, int excludeId){
+        if (null == buckets || k <= 0){
+            return new TopKResult(new int[0], new float[0]);
+        }
+        int[] counts = COLLISION_COUNTS.get();
+        if (counts.length < ids.length){
+            counts = new int[ids.length];
+            COLLISION_COUNTS.set(counts);
+        }
+        int[][] lists = new int[buckets.length][];
+        for (int table = 0; table < buckets.length; table++){
+            lists[table] = postings.get(key(table, buckets[table]));
+        }
+        TopKHeap heap = new TopKHeap(k);
+        for (int[] list : lists){
+            if (null == list){
+                continue;
+            }
+            for (int ordinal : list){
+                counts[ordinal]++;
+            }
+        }
+        //each touched ordinal is offered once, then its counter is cleared for the next query
+        for (int[] list : lists){
+            if (null == list){
+                continue;
+            }
+            for (int ordinal : list){
+                if (counts[ordinal] > 0){
+                    if (ids[ordinal] != excludeId){
+                        heap.offer(ordinal, counts[ordinal]);
+                    }
+                    counts[ordinal] = 0;
+                }
+            }
+        }
+        return heap.toResult();
+    }
+
+    private static long key(int table, float bucket){
+        return ((long) table << 32) | (Float.floatToIntBits(bucket) & 0xffffffffL);
+    }
+
+    /**
+     * LshIndex builder, collects bucket ids of every item then freezes them into primitive posting lists
+     */
+    public static class Builder {
+        final List<Integer> ids = new ArrayList<>();
+        final Map<Long, List<Integer>> postingLists = new HashMap<>();
+
+        //add an item with its bucket id in every hash table
+        public Builder add(int id, float[] buckets){
+            int ordinal = ids.size();
+            ids.add(id);
+            for (int table = 0; table < buckets.length; table++){
+                postingLists.computeIfAbsent(key(table, buckets[table]), k -> new ArrayList<>()).add(ordinal);
+            }
+            return this;
+        }
+
+        public LshIndex build(){
+            int[] idArray = new int[ids.size()];
+            for (int i = 0; i < idArray.length; i++){
+                idArray[i] = ids.get(i);
+            }
+            Map<Long, int[]> postings = new HashMap<>(postingLists.size() * 2);
+            for (Map.Entry<Long, List<Integer>> entry : postingLists.entrySet()){
+                List<Integer> list = entry.getValue();
+                int[] ordinals = new int[list.size()];
+                for (int i = 0; i < ordinals.length; i++){
+                    ordinals[i] = list.get(i);
+                }
+                postings.put(entry.getKey(), ordinals);
+            }
+            return new LshIndex(idArray, postings);
+        }
+    }
+}
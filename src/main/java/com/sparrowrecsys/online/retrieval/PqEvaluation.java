@@ -0,0 +1,85 @@
+package com.sparrowrecsys.online.retrieval;
+
+import com.sparrowrecsys.online.model.EmbeddingMatrix;
+import com.sparrowrecsys.online.model.EmbeddingSnapshot;
+import com.sparrowrecsys.online.model.PqEmbeddingMatrix;
+import com.sparrowrecsys.online.util.Config;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * PqEvaluation, measures the memory and accuracy trade-off of product-quantized embeddings against exact ones
+ */
+public class PqEvaluation {
+
+    private PqEvaluation(){}
+
+    /**
+     * print memory reduction, cosine error and recall@K of a quantized matrix
+     * @param exact     uncompressed embedding matrix
+     * @param quantized quantized encoding of the same rows
+     * @param k         number of rows retrieved per query
+     * @param queryCount    number of rows sampled as queries
+     * @return  average recall@K
+     */
+    public static double evaluate(EmbeddingMatrix exact, PqEmbeddingMatrix quantized, int k, int queryCount){
+        Random random = new Random(11);
+        int rows = exact.getRowCount();
+        float[] query = new float[exact.getDim()];
+
+        //cosine error on random pairs
+        double errorSum = 0;
+        int pairCount = queryCount * 20;
+        for (int i = 0; i < pairCount; i++){
+            int a = random.nextInt(rows);
+            int b = random.nextInt(rows);
+            exact.copyRow(a, query);
+            float[] table = quantized.buildQueryTable(query);
+            errorSum += Math.abs(exact.cosine(a, b) - quantized.score(b, table));
+        }
+
+        //recall of asymmetric distance scan against exact retrieval
+        int hits = 0;
+        int total = 0;
+        for (int q = 0; q < queryCount; q++){
+            int row = random.nextInt(rows);
+            exact.copyRow(row, query);
+            TopKResult approximate = BruteForceRetriever.search(quantized, query, k, row);
+            int[] exactRows = BruteForceRetriever.search(exact, query, k, row).getRows().clone();
+            Arrays.sort(exactRows);
+            for (int approximateRow : approximate.getRows()){
+                if (Arrays.binarySearch(exactRows, approximateRow) >= 0){
+                    hits++;
+                }
+            }
+            total += exactRows.length;
+        }
+        double recall = total == 0 ? 0 : (double) hits / total;
+        long vectorBytes = (long) rows * exact.getDim() * Float.BYTES;
+        long codeBytes = (long) rows * quantized.getQuantizer().getSubspaces();
+        System.out.printf("PQ subspaces=%d centroids=%d: vectors %d bytes -> codes %d bytes (%.1fx), total %d -> %d bytes, "
+                        + "mean |cosine error|=%.4f, recall@%d=%.4f%n",
+                quantized.getQuantizer().getSubspaces(), quantized.getQuantizer().getCentroids(),
+                vectorBytes, codeBytes, (double) vectorBytes / Math.max(1, codeBytes),
+                exact.getMemoryBytes(), quantized.getMemoryBytes(), errorSum / pairCount, k, recall);
+        return recall;
+    }
+
+    //train a quantizer over an embedding snapshot, write it alongside the snapshot and print the trade-off report
+    public static void main(String[] args) throws IOException{
+        if (args.length < 1){
+            System.out.println("usage: PqEvaluation <embedding snapshot> [subspaces] [K]");
+            return;
+        }
+        EmbeddingMatrix exact = EmbeddingSnapshot.open(args[0]);
+        int subspaces = args.length > 1 ? Integer.parseInt(args[1]) : Config.PQ_SUBSPACES;
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        PqEmbeddingMatrix quantized = PqEmbeddingMatrix.train(exact, subspaces, Config.PQ_TRAIN_ITERATIONS);
+        String pqPath = PqEmbeddingMatrix.getPqPath(args[0]);
+        quantized.write(pqPath);
+        System.out.println("Wrote product-quantized embeddings to " + pqPath);
+        evaluate(exact, quantized, k, 200);
+    }
+}
@@ -0,0 +1,105 @@
+package com.sparrowrecsys.online.retrieval;
+
+/**
+ * TopKHeap, fixed-capacity min-heap of (row, score) pairs kept in primitive arrays.
+ * The root is the lowest score kept, so a new candidate only needs one comparison to be rejected.
+ */
+public class TopKHeap {
+    final int capacity;
+    final int[] rows;
+    final float[] scores;
+    int size;
+
+    public TopKHeap(int capacity){
+        this.capacity = capacity;
+        this.rows = new int[capacity];
+        this.scores = new float[capacity];
+        this.size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    //lowest score kept in the heap, or negative infinity while the heap isn't full
+    public float threshold(){
+        return size < capacity ? Float.NEGATIVE_INFINITY : scores[0];
+    }
+
+    //offer a candidate, it is kept if the heap isn't full or it beats the current lowest score
+    public void offer(int row, float score){
+        if (capacity == 0){
+            return;
+        }
+        if (size < capacity){
+            rows[size] = row;
+            scores[size] = score;
+            siftUp(size++);
+        } else if (score > scores[0]){
+            rows[0] = row;
+            scores[0] = score;
+            siftDown(0);
+        }
+    }
+
+    //merge all candidates of another heap into this one
+    public void merge(TopKHeap other){
+        for (int i = 0; i < other.size; i++){
+            offer(other.rows[i], other.scores[i]);
+        }
+    }
+
+    //drain the heap into a result ordered by descending score, the heap is empty afterwards
+    public TopKResult toResult(){
+        int count = size;
+        int[] resultRows = new int[count];
+        float[] resultScores = new float[count];
+        for (int i = count - 1; i >= 0; i--){
+            resultRows[i] = rows[0];
+            resultScores[i] = scores[0];
+            size--;
+            if (size > 0){
+                rows[0] = rows[size];
+                scores[0] = scores[size];
+                siftDown(0);
+            }
+        }
+        return new TopKResult(resultRows, resultScores);
+    }
+
+    private void siftUp(int index){
+        int row = rows[index];
+        float score = scores[index];
+        while (index > 0){
+            int parent = (index - 1) >>> 1;
+            if (scores[parent] <= score){
+                break;
+            }
+            rows[index] = rows[parent];
+            scores[index] = scores[parent];
+            index = parent;
+        }
+        rows[index] = row;
+        scores[index] = score;
+    }
+
+    private void siftDown(int index){
+        int row = rows[index];
+        float score = scores[index];
+        int half = size >>> 1;
+        while (index < half){
+            int child = 2 * index + 1;
+            if (child + 1 < size && scores[child + 1] < scores[child]){
+                child++;
+            }
+            if (score <= scores[child]){
+                break;
+            }
+            rows[index] = rows[child];
+            scores[index] = scores[child];
+            index = child;
+        }
+        rows[index] = row;
+        scores[index] = score;
+    }
+}
@@ -0,0 +1,34 @@
+package com.sparrowrecsys.online.retrieval;
+
+/**
+ * TopKResult, retrieved rows of an embedding matrix and their scores, ordered by descending score
+ */
+public class TopKResult {
+    final int[] rows;
+    final float[] scores;
+
+    public TopKResult(int[] rows, float[] scores){
+        this.rows = rows;
+        this.scores = scores;
+    }
+
+    public int size() {
+        return rows.length;
+    }
+
+    public int getRow(int index) {
+        return rows[index];
+    }
+
+    public float getScore(int index) {
+        return scores[index];
+    }
+
+    public int[] getRows() {
+        return rows;
+    }
+
+    public float[] getScores() {
+        return scores;
+    }
+}
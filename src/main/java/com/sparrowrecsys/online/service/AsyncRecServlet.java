@@ -0,0 +1,157 @@
+package com.sparrowrecsys.online.service;
+
+import com.sparrowrecsys.online.datamanager.DataManager;
+import com.sparrowrecsys.online.util.Config;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AsyncRecServlet, base of the recommendation services, served with Servlet 3.1 async processing.
+ *
+ * The jetty thread only reads the request parameters and starts the recommendation. Its stages run on a shared
+ * worker pool with the data snapshot of the request pinned, and no thread waits while model serving scores.
+ * The body is written by a non-blocking write listener. The snapshot lease is held until the stages are done, even if
+ * the request times out before.
+ */
+public abstract class AsyncRecServlet extends HttpServlet {
+    private static final AtomicInteger WORKER_COUNT = new AtomicInteger();
+    private static final ExecutorService WORKERS = Executors.newFixedThreadPool(Config.REC_WORKER_THREADS, runnable -> {
+        Thread thread = new Thread(runnable, "rec-worker-" + WORKER_COUNT.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * start serving a request, stages never touch the response, which is gone once the request has timed out
+     * @param request   http request, parameters are read here and not by later stages
+     * @param executor  runs the stages with the snapshot of the request pinned
+     * @return  future of the UTF-8 json body and its headers
+     */
+    protected abstract CompletableFuture<Body> serve(HttpServletRequest request, Executor executor) throws Exception;
+
+    /**
+     * Body, json body of a response and the headers that go with it, applied by the servlet right before writing
+     */
+    protected static class Body {
+        final byte[] json;
+        final Map<String, String> headers;
+
+        public Body(byte[] json){
+            this.json = json;
+            this.headers = new LinkedHashMap<>();
+        }
+
+        public Body header(String name, String value){
+            headers.put(name, value);
+            return this;
+        }
+    }
+
+    @Override
+    protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+        response.setContentType("application/json");
+        response.setStatus(HttpServletResponse.SC_OK);
+        response.setCharacterEncoding("UTF-8");
+        response.setHeader("Access-Control-Allow-Origin", "*");
+
+        DataManager.Lease lease = DataManager.getInstance().acquireDetached();
+        AsyncContext async = request.startAsync();
+        //set by whoever ends the request first, the body being written or the timeout
+        AtomicBoolean finished = new AtomicBoolean(false);
+        async.setTimeout(Config.ASYNC_REQUEST_TIMEOUT_MILLIS);
+        //the lease is closed once the stages are done, a timed out request completes without waiting for them
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(AsyncEvent event) {
+            }
+
+            @Override
+            public void onTimeout(AsyncEvent event) {
+                if (finished.compareAndSet(false, true)) {
+                    System.out.println("Async request timed out after " + Config.ASYNC_REQUEST_TIMEOUT_MILLIS + "ms.");
+                    event.getAsyncContext().complete();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent event) {
+            }
+
+            @Override
+            public void onStartAsync(AsyncEvent event) {
+            }
+        });
+
+        CompletableFuture<Body> body;
+        try {
+            body = serve(request, lease.pinTo(WORKERS));
+        } catch (Exception e) {
+            body = new CompletableFuture<>();
+            body.completeExceptionally(e);
+        }
+        body.whenComplete((result, e) -> {
+            //the body is the last stage, nothing reads the snapshot any more
+            lease.close();
+            if (null != e) {
+                e.printStackTrace();
+            }
+            if (finished.compareAndSet(false, true)) {
+                if (null == e) {
+                    for (Map.Entry<String, String> header : result.headers.entrySet()) {
+                        response.setHeader(header.getKey(), header.getValue());
+                    }
+                }
+                write(async, response, null == e ? result.json : JsonResponse.EMPTY_BODY);
+            }
+        });
+    }
+
+    //write the body without blocking, the request completes once it is flushed
+    private static void write(AsyncContext async, HttpServletResponse response, byte[] body) {
+        try {
+            response.setContentLength(body.length);
+            ServletOutputStream out = response.getOutputStream();
+            out.setWriteListener(new WriteListener() {
+                private boolean written = false;
+
+                @Override
+                public void onWritePossible() throws IOException {
+                    while (out.isReady()) {
+                        if (written) {
+                            async.complete();
+                            return;
+                        }
+                        written = true;
+                        out.write(body);
+                    }
+                }
+
+                @Override
+                public void onError(Throwable t) {
+                    System.out.println("Writing async response failed: " + t);
+                    async.complete();
+                }
+            });
+        } catch (Exception e) {
+            //the client is gone
+            System.out.println("Writing async response failed: " + e);
+            async.complete();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.sparrowrecsys.online.service;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sparrowrecsys.online.datamanager.Movie;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * JsonResponse, writes json bodies of the services as UTF-8 bytes straight to the response output stream.
+ *
+ * Movies are written from the json fragments encoded when they were loaded, so a movie list response is a
+ * concatenation of shared byte arrays with no serialization per request. Bodies end with a line break like the
+ * println responses they replace. Async services write the bodies encoded here through AsyncRecServlet.
+ */
+public class JsonResponse {
+    //serializes request-local objects like users, an ObjectMapper is thread safe once configured
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    //bodies of missing entities and failed requests, shared and never modified
+    static final byte[] EMPTY_BODY = {'\n'};
+    private static final byte[] NULL_BODY = {'n', 'u', 'l', 'l', '\n'};
+
+    /**
+     * json array of movies as a response body, one copy of the fragments of the movies
+     * @param movies    movies in response order, null is encoded as json null
+     * @return  UTF-8 body
+     */
+    public static byte[] encodeMovies(List<Movie> movies){
+        if (null == movies){
+            return NULL_BODY;
+        }
+        int length = movies.isEmpty() ? 3 : movies.size() + 2;
+        for (Movie movie : movies){
+            length += movie.getJson().length;
+        }
+        byte[] body = new byte[length];
+        int offset = 0;
+        body[offset++] = '[';
+        for (int i = 0; i < movies.size(); i++){
+            if (i > 0){
+                body[offset++] = ',';
+            }
+            byte[] json = movies.get(i).getJson();
+            System.arraycopy(json, 0, body, offset, json.length);
+            offset += json.length;
+        }
+        body[offset++] = ']';
+        body[offset] = '\n';
+        return body;
+    }
+
+    /**
+     * write the json of a movie, an empty body for a missing movie
+     * @param response  http response
+     * @param movie     movie, may be null
+     */
+    public static void writeMovie(HttpServletResponse response, Movie movie) throws IOException {
+        if (null == movie){
+            writeEmpty(response);
+            return;
+        }
+        byte[] json = movie.getJson();
+        response.setContentLength(json.length + 1);
+        ServletOutputStream out = response.getOutputStream();
+        out.write(json);
+        out.write('\n');
+    }
+
+    /**
+     * serialize an object with Jackson, an empty body for a missing object
+     * @param response  http response
+     * @param value     object to serialize, may be null
+     */
+    public static void writeObject(HttpServletResponse response, Object value) throws IOException {
+        if (null == value){
+            writeEmpty(response);
+            return;
+        }
+        byte[] json = MAPPER.writeValueAsBytes(value);
+        response.setContentLength(json.length + 1);
+        ServletOutputStream out = response.getOutputStream();
+        out.write(json);
+        out.write('\n');
+    }
+
+    //empty body, returned for missing entities and failed requests
+    public static void writeEmpty(HttpServletResponse response) throws IOException {
+        response.setContentLength(EMPTY_BODY.length);
+        response.getOutputStream().write(EMPTY_BODY);
+    }
+}
@@ -1,6 +1,5 @@
 package com.sparrowrecsys.online.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sparrowrecsys.online.datamanager.DataManager;
 import com.sparrowrecsys.online.datamanager.Movie;
 
@@ -16,7 +15,7 @@ import java.io.IOException;
 public class MovieService extends HttpServlet {
     protected void doGet(HttpServletRequest request,
                          HttpServletResponse response) throws IOException {
-        try {
+        try (DataManager.Lease lease = DataManager.getInstance().acquire()) {
             response.setContentType("application/json");
             response.setStatus(HttpServletResponse.SC_OK);
             response.setCharacterEncoding("UTF-8");
@@ -28,18 +27,12 @@ public class MovieService extends HttpServlet {
             //get movie object from DataManager
             Movie movie = DataManager.getInstance().getMovieById(Integer.parseInt(movieId));
 
-            //convert movie object to json format and return
-            if (null != movie) {
-                ObjectMapper mapper = new ObjectMapper();
-                String jsonMovie = mapper.writeValueAsString(movie);
-                response.getWriter().println(jsonMovie);
-            }else {
-                response.getWriter().println("");
-            }
+            //return the pre-encoded json of the movie
+            JsonResponse.writeMovie(response, movie);
 
         } catch (Exception e) {
             e.printStackTrace();
-            response.getWriter().println("");
+            JsonResponse.writeEmpty(response);
         }
     }
 }
@@ -1,54 +1,34 @@
 package com.sparrowrecsys.online.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sparrowrecsys.online.recprocess.RecForYouProcess;
 import com.sparrowrecsys.online.util.ABTest;
-import com.sparrowrecsys.online.datamanager.Movie;
 import com.sparrowrecsys.online.util.Config;
 
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * RecForYouService, provide recommended for you service
  */
 
-public class RecForYouService extends HttpServlet {
-    protected void doGet(HttpServletRequest request,
-                         HttpServletResponse response) throws ServletException,
-            IOException {
-        try {
-            response.setContentType("application/json");
-            response.setStatus(HttpServletResponse.SC_OK);
-            response.setCharacterEncoding("UTF-8");
-            response.setHeader("Access-Control-Allow-Origin", "*");
-
-            //get user id via url parameter
-            String userId = request.getParameter("id");
-            //number of returned movies
-            String size = request.getParameter("size");
-            //ranking algorithm
-            String model = request.getParameter("model");
-
-            if (Config.IS_ENABLE_AB_TEST){
-                model = ABTest.getConfigByUserId(userId);
-            }
-
-            //a simple method, just fetch all the movie in the genre
-            List<Movie> movies = RecForYouProcess.getRecList(Integer.parseInt(userId), Integer.parseInt(size), model);
-
-            //convert movie list to json format and return
-            ObjectMapper mapper = new ObjectMapper();
-            String jsonMovies = mapper.writeValueAsString(movies);
-            response.getWriter().println(jsonMovies);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            response.getWriter().println("");
-        }
+public class RecForYouService extends AsyncRecServlet {
+    @Override
+    protected CompletableFuture<Body> serve(HttpServletRequest request, Executor executor) {
+        //get user id via url parameter
+        String userId = request.getParameter("id");
+        //number of returned movies
+        int size = Integer.parseInt(request.getParameter("size"));
+        //ranking algorithm
+        String model = Config.IS_ENABLE_AB_TEST ? ABTest.getConfigByUserId(userId) : request.getParameter("model");
+
+        //user profile, recall and ranking run as stages, no thread waits for model serving
+        return RecForYouProcess.getRecResultAsync(Integer.parseInt(userId), size, model, executor).thenApply(result ->
+                //concatenate the pre-encoded json of the movies, the body stays a plain movie array and a fallback
+                //ranking is flagged in headers
+                new Body(JsonResponse.encodeMovies(result.getMovies()))
+                        .header("X-Rec-Ranked-By", result.getRankedBy())
+                        .header("X-Rec-Degraded", String.valueOf(result.isDegraded()))
+                        .header("Access-Control-Expose-Headers", "X-Rec-Ranked-By, X-Rec-Degraded"));
     }
 }
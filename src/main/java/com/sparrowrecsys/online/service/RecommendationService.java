@@ -1,47 +1,27 @@
 package com.sparrowrecsys.online.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.sparrowrecsys.online.datamanager.DataManager;
-import com.sparrowrecsys.online.datamanager.Movie;
 
-import javax.servlet.ServletException;
-import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
-import java.io.IOException;
-import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * RecommendationService, provide recommendation service based on different input
  */
 
-public class RecommendationService extends HttpServlet {
-    protected void doGet(HttpServletRequest request,
-                         HttpServletResponse response) throws ServletException,
-            IOException {
-        try {
-            response.setContentType("application/json");
-            response.setStatus(HttpServletResponse.SC_OK);
-            response.setCharacterEncoding("UTF-8");
-            response.setHeader("Access-Control-Allow-Origin", "*");
+public class RecommendationService extends AsyncRecServlet {
+    @Override
+    protected CompletableFuture<Body> serve(HttpServletRequest request, Executor executor) {
+        //genre - movie category
+        String genre = request.getParameter("genre");
+        //number of returned movies
+        int size = Integer.parseInt(request.getParameter("size"));
+        //ranking algorithm
+        String sortby = request.getParameter("sortby");
 
-            //genre - movie category
-            String genre = request.getParameter("genre");
-            //number of returned movies
-            String size = request.getParameter("size");
-            //ranking algorithm
-            String sortby = request.getParameter("sortby");
-            //a simple method, just fetch all the movie in the genre
-            List<Movie> movies = DataManager.getInstance().getMoviesByGenre(genre, Integer.parseInt(size),sortby);
-
-            //convert movie list to json format and return
-            ObjectMapper mapper = new ObjectMapper();
-            String jsonMovies = mapper.writeValueAsString(movies);
-            response.getWriter().println(jsonMovies);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            response.getWriter().println("");
-        }
+        //a simple method, just fetch all the movie in the genre, and concatenate the pre-encoded json of the movies
+        return CompletableFuture.supplyAsync(
+                () -> new Body(JsonResponse.encodeMovies(DataManager.getInstance().getMoviesByGenre(genre, size, sortby))), executor);
     }
 }
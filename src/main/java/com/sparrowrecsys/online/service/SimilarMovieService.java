@@ -1,46 +1,27 @@
 package com.sparrowrecsys.online.service;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.sparrowrecsys.online.datamanager.Movie;
 import com.sparrowrecsys.online.recprocess.SimilarMovieProcess;
-import java.io.IOException;
-import java.util.List;
-import javax.servlet.http.HttpServlet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 import javax.servlet.http.HttpServletRequest;
-import javax.servlet.http.HttpServletResponse;
 
 import static com.sparrowrecsys.online.util.Constants.*;
 
 /**
  * SimilarMovieService, recommend similar movies given by a specific movie
  */
-public class SimilarMovieService extends HttpServlet {
-    protected void doGet(HttpServletRequest request,
-                         HttpServletResponse response) throws IOException {
-        try {
-            response.setContentType("application/json");
-            response.setStatus(HttpServletResponse.SC_OK);
-            response.setCharacterEncoding("UTF-8");
-            response.setHeader("Access-Control-Allow-Origin", "*");
+public class SimilarMovieService extends AsyncRecServlet {
+    @Override
+    protected CompletableFuture<Body> serve(HttpServletRequest request, Executor executor) {
+        //movieId
+        int movieId = Integer.parseInt(request.getParameter(MOVIE_ID));
+        //number of returned movies
+        int size = Integer.parseInt(request.getParameter("size"));
+        //model of calculating similarity, e.g. embedding, graph-embedding
+        String model = request.getParameter("model");
 
-            //movieId
-            String movieId = request.getParameter(MOVIE_ID);
-            //number of returned movies
-            String size = request.getParameter("size");
-            //model of calculating similarity, e.g. embedding, graph-embedding
-            String model = request.getParameter("model");
-
-            //use SimilarMovieFlow to get similar movies
-            List<Movie> movies = SimilarMovieProcess.getRecList(Integer.parseInt(movieId), Integer.parseInt(size), model);
-
-            //convert movie list to json format and return
-            ObjectMapper mapper = new ObjectMapper();
-            String jsonMovies = mapper.writeValueAsString(movies);
-            response.getWriter().println(jsonMovies);
-
-        } catch (Exception e) {
-            e.printStackTrace();
-            response.getWriter().println("");
-        }
+        //use SimilarMovieFlow to get similar movies, and concatenate the pre-encoded json of the movies
+        return CompletableFuture.supplyAsync(
+                () -> new Body(JsonResponse.encodeMovies(SimilarMovieProcess.getRecList(movieId, size, model))), executor);
     }
 }
@@ -1,5 +1,5 @@
 package com.sparrowrecsys.online.service;
-import com.fasterxml.jackson.databind.ObjectMapper;
+
 import com.sparrowrecsys.online.datamanager.DataManager;
 import com.sparrowrecsys.online.datamanager.User;
 
@@ -15,7 +15,7 @@ import java.io.IOException;
 public class UserService extends HttpServlet {
     protected void doGet(HttpServletRequest request,
                          HttpServletResponse response) throws IOException {
-        try {
+        try (DataManager.Lease lease = DataManager.getInstance().acquire()) {
             response.setContentType("application/json");
             response.setStatus(HttpServletResponse.SC_OK);
             response.setCharacterEncoding("UTF-8");
@@ -27,18 +27,12 @@ public class UserService extends HttpServlet {
             //get user object from DataManager
             User user = DataManager.getInstance().getUserById(Integer.parseInt(userId));
 
-            //convert movie object to json format and return
-            if (null != user) {
-                ObjectMapper mapper = new ObjectMapper();
-                String jsonUser = mapper.writeValueAsString(user);
-                response.getWriter().println(jsonUser);
-            }else{
-                response.getWriter().println("");
-            }
+            //convert user object to json format and return
+            JsonResponse.writeObject(response, user);
 
         } catch (Exception e) {
             e.printStackTrace();
-            response.getWriter().println("");
+            JsonResponse.writeEmpty(response);
         }
     }
 }
@@ -0,0 +1,84 @@
+package com.sparrowrecsys.online.serving;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * BatchMetrics, counters of one model's batched serving calls, used to tune max batch size against max wait
+ */
+public class BatchMetrics {
+    //upper bounds of the requests-per-batch histogram buckets, the last bucket is open ended
+    private static final int[] BATCH_SIZE_BUCKETS = {1, 2, 4, 8, 16, 32};
+
+    final LongAdder batches = new LongAdder();
+    final LongAdder requests = new LongAdder();
+    final LongAdder examples = new LongAdder();
+    final LongAdder failedBatches = new LongAdder();
+    final LongAdder totalQueueMicros = new LongAdder();
+    final AtomicLong maxQueueMicros = new AtomicLong();
+    final AtomicLong maxBatchExamples = new AtomicLong();
+    final AtomicLongArray batchSizeHistogram = new AtomicLongArray(BATCH_SIZE_BUCKETS.length + 1);
+
+    //record a batch about to be sent
+    void recordBatch(int requestCount, int exampleCount){
+        batches.increment();
+        requests.add(requestCount);
+        examples.add(exampleCount);
+        maxBatchExamples.accumulateAndGet(exampleCount, Math::max);
+        int bucket = 0;
+        while (bucket < BATCH_SIZE_BUCKETS.length && requestCount > BATCH_SIZE_BUCKETS[bucket]){
+            bucket++;
+        }
+        batchSizeHistogram.incrementAndGet(bucket);
+    }
+
+    //record how long a request waited in the queue before its batch was sent
+    void recordQueueDelay(long micros){
+        totalQueueMicros.add(micros);
+        maxQueueMicros.accumulateAndGet(micros, Math::max);
+    }
+
+    void recordFailure(){
+        failedBatches.increment();
+    }
+
+    public long getBatches() {
+        return batches.sum();
+    }
+
+    public long getRequests() {
+        return requests.sum();
+    }
+
+    public long getExamples() {
+        return examples.sum();
+    }
+
+    public long getFailedBatches() {
+        return failedBatches.sum();
+    }
+
+    public double getAverageRequestsPerBatch(){
+        long batchCount = batches.sum();
+        return batchCount == 0 ? 0 : (double) requests.sum() / batchCount;
+    }
+
+    public double getAverageQueueMicros(){
+        long requestCount = requests.sum();
+        return requestCount == 0 ? 0 : (double) totalQueueMicros.sum() / requestCount;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder histogram = new StringBuilder();
+        for (int bucket = 0; bucket < batchSizeHistogram.length(); bucket++){
+            histogram.append(bucket == BATCH_SIZE_BUCKETS.length ? ">" + BATCH_SIZE_BUCKETS[bucket - 1] : "<=" + BATCH_SIZE_BUCKETS[bucket])
+                    .append(':').append(batchSizeHistogram.get(bucket)).append(' ');
+        }
+        return String.format("batches=%d failed=%d requests=%d examples=%d avgRequestsPerBatch=%.2f maxBatchExamples=%d "
+                        + "avgQueueMicros=%.0f maxQueueMicros=%d requestsPerBatch[%s]",
+                getBatches(), getFailedBatches(), getRequests(), getExamples(), getAverageRequestsPerBatch(),
+                maxBatchExamples.get(), getAverageQueueMicros(), maxQueueMicros.get(), histogram.toString().trim());
+    }
+}
@@ -0,0 +1,91 @@
+package com.sparrowrecsys.online.serving;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.sparrowrecsys.online.util.Config.*;
+
+/**
+ * CircuitBreaker, stops calling a failing model serving endpoint for a cool-down period.
+ *
+ * The breaker opens after CIRCUIT_BREAKER_FAILURE_THRESHOLD consecutive failures or timeouts. While open every call
+ * is rejected without touching the network. Once CIRCUIT_BREAKER_COOL_DOWN_MILLIS have passed a single trial call
+ * is let through, its success closes the breaker and its failure opens it for another cool-down. A trial whose
+ * outcome is never reported expires after another cool-down and the next call becomes the trial.
+ */
+public class CircuitBreaker {
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+
+    private static final ConcurrentHashMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final AtomicInteger state = new AtomicInteger(CLOSED);
+    private final AtomicInteger consecutiveFailures = new AtomicInteger(0);
+    private final AtomicLong openedAtNanos = new AtomicLong(0);
+    private final AtomicLong trialStartedAtNanos = new AtomicLong(0);
+
+    public CircuitBreaker(String name){
+        this.name = name;
+    }
+
+    //breaker shared by all calls to a model
+    public static CircuitBreaker forModel(String model){
+        return BREAKERS.computeIfAbsent(model, CircuitBreaker::new);
+    }
+
+    /**
+     * check whether a call may go out, the caller must report its outcome through recordSuccess or recordFailure
+     * @return  true if the call is allowed
+     */
+    public boolean allowRequest(){
+        switch (state.get()){
+            case CLOSED:
+                return true;
+            case OPEN:
+                long now = System.nanoTime();
+                if (now - openedAtNanos.get() < coolDownNanos()){
+                    return false;
+                }
+                //stamp before publishing the half-open state, so no caller sees it with a stale trial time
+                trialStartedAtNanos.set(now);
+                //only the caller winning the transition sends the trial call
+                return state.compareAndSet(OPEN, HALF_OPEN);
+            default:
+                //a trial call is in flight, unless it was lost without an outcome, then the caller replacing it goes
+                long trialStartedAt = trialStartedAtNanos.get();
+                long current = System.nanoTime();
+                return current - trialStartedAt >= coolDownNanos() && trialStartedAtNanos.compareAndSet(trialStartedAt, current);
+        }
+    }
+
+    private static long coolDownNanos(){
+        return TimeUnit.MILLISECONDS.toNanos(CIRCUIT_BREAKER_COOL_DOWN_MILLIS);
+    }
+
+    public void recordSuccess(){
+        consecutiveFailures.set(0);
+        if (state.getAndSet(CLOSED) != CLOSED){
+            System.out.println("Circuit breaker of " + name + " closed");
+        }
+    }
+
+    public void recordFailure(){
+        int failures = consecutiveFailures.incrementAndGet();
+        int current = state.get();
+        if (current == HALF_OPEN || (current == CLOSED && failures >= CIRCUIT_BREAKER_FAILURE_THRESHOLD)){
+            //stamp before publishing the open state, so no caller sees it with a stale opening time
+            openedAtNanos.set(System.nanoTime());
+            if (state.compareAndSet(current, OPEN)){
+                System.out.println("Circuit breaker of " + name + " opened after " + failures + " consecutive failures");
+            }
+        }
+    }
+
+    public int getState(){
+        return state.get();
+    }
+}
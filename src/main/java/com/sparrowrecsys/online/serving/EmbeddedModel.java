@@ -0,0 +1,451 @@
+package com.sparrowrecsys.online.serving;
+
+import com.sparrowrecsys.online.datamanager.Movie;
+import com.sparrowrecsys.online.datamanager.User;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static com.sparrowrecsys.online.util.Constants.*;
+
+/**
+ * EmbeddedModel, in-process scorer for the NeuralCF, EmbeddingMLP and Wide&Deep ranking models.
+ *
+ * It evaluates weights dumped by TFRecModel's ExportWeights.py: the DenseFeatures input columns (numeric,
+ * identity embedding and vocabulary embedding columns, in input order), a stack of dense layers, and for
+ * Wide&Deep the hashed movieId x userRatedMovie1 cross whose one-hot indicator is appended to the input of
+ * the output layer. All candidates of a request are scored as one batch on primitive arrays, and since the
+ * first layer is linear the user side of its product is computed once per request.
+ *
+ * File layout, big endian as written by java.io.DataOutputStream:
+ * magic(int) version(int) model(utf)
+ * columnCount(int), per column: feature(utf) type(int) dim(int)
+ *     identity embedding: rows(int) table(rows * dim floats)
+ *     vocabulary embedding: rows(int) vocabulary(rows utf) table(rows * dim floats)
+ * layerCount(int), per layer: in(int) out(int) activation(int) kernel(in * out floats, row-major [in][out]) bias(out floats)
+ * hasCross(int), if 1: feature1(utf) feature2(utf) rows1(int) rows2(int) buckets(rows1 * rows2 shorts)
+ */
+public class EmbeddedModel {
+    public static final int MAGIC = 0x4D525053;
+    public static final int VERSION = 1;
+    //weights file inside a model's modeldata folder, e.g. modeldata/neuralcf/model.weights
+    public static final String WEIGHTS_FILE = "model.weights";
+
+    static final int COLUMN_NUMERIC = 0;
+    static final int COLUMN_IDENTITY_EMBEDDING = 1;
+    static final int COLUMN_VOCABULARY_EMBEDDING = 2;
+
+    static final int ACTIVATION_LINEAR = 0;
+    static final int ACTIVATION_RELU = 1;
+    static final int ACTIVATION_SIGMOID = 2;
+
+    final String model;
+    final Column[] columns;
+    final int inputDim;
+    final DenseLayer[] layers;
+    //hashed cross feeding the output layer, null if the model has no wide part
+    final Cross cross;
+
+    EmbeddedModel(String model, Column[] columns, DenseLayer[] layers, Cross cross){
+        this.model = model;
+        this.columns = columns;
+        this.layers = layers;
+        this.cross = cross;
+        int offset = 0;
+        for (Column column : columns){
+            column.offset = offset;
+            offset += column.dim;
+        }
+        this.inputDim = offset;
+        if (layers.length == 0 || layers[0].in != inputDim){
+            throw new IllegalArgumentException("first layer of " + model + " doesn't match its " + inputDim + " input columns");
+        }
+    }
+
+    public String getModel() {
+        return model;
+    }
+
+    /**
+     * score all candidates of a user
+     * @param user  input user
+     * @param candidates    candidate movies
+     * @return  predicted probability of every candidate, in candidate order
+     */
+    public double[] score(User user, List<Movie> candidates){
+        int n = candidates.size();
+        DenseLayer first = layers[0];
+        float[] input = new float[inputDim];
+
+        //user side of the first layer is the same for every candidate
+        float[] userPartial = new float[first.out];
+        for (Column column : columns){
+            if (column.userSide){
+                column.fill(input, user, null);
+                first.accumulate(input, column.offset, column.offset, column.dim, userPartial, 0);
+            }
+        }
+
+        float[] hidden = new float[n * first.out];
+        for (int i = 0; i < n; i++){
+            Movie movie = candidates.get(i);
+            System.arraycopy(userPartial, 0, hidden, i * first.out, first.out);
+            for (Column column : columns){
+                if (!column.userSide){
+                    column.fill(input, user, movie);
+                    first.accumulate(input, column.offset, column.offset, column.dim, hidden, i * first.out);
+                }
+            }
+        }
+        first.activate(hidden, n);
+
+        int width = first.out;
+        for (int l = 1; l < layers.length; l++){
+            DenseLayer layer = layers[l];
+            float[] next = layer.forward(hidden, n, width);
+            if (l == layers.length - 1 && null != cross){
+                //one-hot cross bucket, its weight sits in the output layer rows after the hidden width
+                for (int i = 0; i < n; i++){
+                    int bucket = cross.bucket(user, candidates.get(i));
+                    if (bucket >= 0 && width + bucket < layer.in){
+                        for (int j = 0; j < layer.out; j++){
+                            next[i * layer.out + j] += layer.kernel[(width + bucket) * layer.out + j];
+                        }
+                    }
+                }
+            }
+            layer.activate(next, n);
+            hidden = next;
+            width = layer.out;
+        }
+
+        double[] scores = new double[n];
+        for (int i = 0; i < n; i++){
+            scores[i] = hidden[i * width];
+        }
+        return scores;
+    }
+
+    /**
+     * load a weights file
+     * @param path  weights file path
+     * @return  loaded model
+     */
+    public static EmbeddedModel load(String path) throws IOException{
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION){
+                throw new IOException("not a supported model weights file: " + path);
+            }
+            String model = in.readUTF();
+
+            Column[] columns = new Column[in.readInt()];
+            for (int c = 0; c < columns.length; c++){
+                String feature = in.readUTF();
+                int type = in.readInt();
+                int dim = in.readInt();
+                Column column = new Column(feature, type, dim);
+                if (type == COLUMN_IDENTITY_EMBEDDING || type == COLUMN_VOCABULARY_EMBEDDING){
+                    column.rows = in.readInt();
+                    if (type == COLUMN_VOCABULARY_EMBEDDING){
+                        column.vocabulary = new HashMap<>();
+                        for (int row = 0; row < column.rows; row++){
+                            column.vocabulary.put(in.readUTF(), row);
+                        }
+                    }
+                    column.table = readFloats(in, column.rows * dim);
+                } else if (type != COLUMN_NUMERIC){
+                    throw new IOException("unknown column type " + type + " of " + feature + ": " + path);
+                }
+                columns[c] = column;
+            }
+
+            DenseLayer[] layers = new DenseLayer[in.readInt()];
+            for (int l = 0; l < layers.length; l++){
+                int inDim = in.readInt();
+                int outDim = in.readInt();
+                int activation = in.readInt();
+                float[] kernel = readFloats(in, inDim * outDim);
+                float[] bias = readFloats(in, outDim);
+                layers[l] = new DenseLayer(inDim, outDim, activation, kernel, bias);
+            }
+
+            Cross cross = null;
+            if (in.readInt() == 1){
+                String feature1 = in.readUTF();
+                String feature2 = in.readUTF();
+                int rows1 = in.readInt();
+                int rows2 = in.readInt();
+                short[] buckets = new short[rows1 * rows2];
+                for (int i = 0; i < buckets.length; i++){
+                    buckets[i] = in.readShort();
+                }
+                cross = new Cross(feature1, feature2, rows1, rows2, buckets);
+            }
+            return new EmbeddedModel(model, columns, layers, cross);
+        }
+    }
+
+    private static float[] readFloats(DataInputStream in, int count) throws IOException{
+        float[] values = new float[count];
+        for (int i = 0; i < count; i++){
+            values[i] = in.readFloat();
+        }
+        return values;
+    }
+
+    //user side features are read from the user, the rest from the candidate movie
+    static boolean isUserFeature(String feature){
+        return feature.startsWith("user");
+    }
+
+    /**
+     * FeatureRef, where a model input feature is read from, resolved once when the model is loaded
+     * so scoring reads typed feature columns by index
+     */
+    static class FeatureRef {
+        final boolean userSide;
+        final boolean isId;
+        //column in the user or movie FeatureSchema, -1 for ids and features the schema doesn't have
+        final int schemaColumn;
+
+        FeatureRef(String feature){
+            this.userSide = isUserFeature(feature);
+            this.isId = USER_ID.equals(feature) || MOVIE_ID.equals(feature);
+            this.schemaColumn = (userSide ? FeatureSchema.USER : FeatureSchema.MOVIE).indexOf(feature);
+        }
+
+        //numeric value, 0 for features without a column
+        float number(User user, Movie movie){
+            if (schemaColumn < 0){
+                return isId ? (userSide ? user.getUserId() : movie.getMovieId()) : 0;
+            }
+            return userSide ? user.getFeatureStore().getNumber(schemaColumn, FeatureStore.SINGLE_ROW)
+                    : movie.getFeatureStore().getNumber(schemaColumn, movie.getFeatureRow());
+        }
+
+        //FeatureDictionary id of a categorical value, missing for features without a column
+        int category(User user, Movie movie){
+            if (schemaColumn < 0){
+                return FeatureDictionary.MISSING;
+            }
+            return userSide ? user.getFeatureStore().getCategory(schemaColumn, FeatureStore.SINGLE_ROW)
+                    : movie.getFeatureStore().getCategory(schemaColumn, movie.getFeatureRow());
+        }
+    }
+
+    static class Column {
+        final String feature;
+        final int type;
+        final int dim;
+        final boolean userSide;
+        final FeatureRef ref;
+        int offset;
+        int rows;
+        float[] table;
+        Map<String, Integer> vocabulary;
+        //vocabulary row of every FeatureDictionary id, extended when the dictionary has grown
+        volatile int[] rowsByCategory;
+
+        Column(String feature, int type, int dim){
+            this.feature = feature;
+            this.type = type;
+            this.dim = dim;
+            this.userSide = isUserFeature(feature);
+            this.ref = new FeatureRef(feature);
+            this.rowsByCategory = new int[0];
+        }
+
+        //write the column's input values at its offset, unknown categories embed to zeros like TF's default
+        void fill(float[] input, User user, Movie movie){
+            switch (type){
+                case COLUMN_NUMERIC:
+                    input[offset] = ref.number(user, movie);
+                    return;
+                case COLUMN_IDENTITY_EMBEDDING:
+                    fillEmbedding(input, (int) ref.number(user, movie));
+                    return;
+                default:
+                    fillEmbedding(input, vocabularyRow(ref.category(user, movie)));
+            }
+        }
+
+        //vocabulary row of a dictionary id, -1 if the value isn't in the vocabulary
+        int vocabularyRow(int category){
+            int[] rowsOfCategories = rowsByCategory;
+            if (category >= rowsOfCategories.length){
+                FeatureDictionary dictionary = FeatureDictionary.getInstance();
+                rowsOfCategories = new int[Math.max(category + 1, dictionary.size())];
+                for (int id = 0; id < rowsOfCategories.length; id++){
+                    Integer row = vocabulary.get(dictionary.getValue(id));
+                    rowsOfCategories[id] = null == row ? -1 : row;
+                }
+                rowsByCategory = rowsOfCategories;
+            }
+            return rowsOfCategories[category];
+        }
+
+        private void fillEmbedding(float[] input, int row){
+            if (row < 0 || row >= rows){
+                for (int i = 0; i < dim; i++){
+                    input[offset + i] = 0;
+                }
+                return;
+            }
+            System.arraycopy(table, row * dim, input, offset, dim);
+        }
+    }
+
+    static class DenseLayer {
+        final int in;
+        final int out;
+        final int activation;
+        //row-major [in][out]
+        final float[] kernel;
+        final float[] bias;
+
+        DenseLayer(int in, int out, int activation, float[] kernel, float[] bias){
+            this.in = in;
+            this.out = out;
+            this.activation = activation;
+            this.kernel = kernel;
+            this.bias = bias;
+        }
+
+        //output[outOffset, outOffset + out) += input[inputOffset, inputOffset + count) * kernel rows [kernelRow, kernelRow + count)
+        void accumulate(float[] input, int inputOffset, int kernelRow, int count, float[] output, int outOffset){
+            for (int k = 0; k < count; k++){
+                float x = input[inputOffset + k];
+                if (x == 0){
+                    continue;
+                }
+                int row = (kernelRow + k) * out;
+                for (int j = 0; j < out; j++){
+                    output[outOffset + j] += x * kernel[row + j];
+                }
+            }
+        }
+
+        //batched product of n input rows of the given width with the first width kernel rows, bias not added
+        float[] forward(float[] input, int n, int width){
+            float[] output = new float[n * out];
+            for (int i = 0; i < n; i++){
+                accumulate(input, i * width, 0, width, output, i * out);
+            }
+            return output;
+        }
+
+        //add bias and apply the activation to n output rows in place
+        void activate(float[] output, int n){
+            for (int i = 0; i < n; i++){
+                for (int j = 0; j < out; j++){
+                    float value = output[i * out + j] + bias[j];
+                    switch (activation){
+                        case ACTIVATION_RELU:
+                            value = Math.max(0, value);
+                            break;
+                        case ACTIVATION_SIGMOID:
+                            value = (float) (1.0 / (1.0 + Math.exp(-value)));
+                            break;
+                        default:
+                            break;
+                    }
+                    output[i * out + j] = value;
+                }
+            }
+        }
+    }
+
+    static class Cross {
+        final String feature1;
+        final String feature2;
+        final FeatureRef ref1;
+        final FeatureRef ref2;
+        final int rows1;
+        final int rows2;
+        //hash bucket of every (feature1, feature2) id pair, precomputed by the exporter with TF's own hashing
+        final short[] buckets;
+
+        Cross(String feature1, String feature2, int rows1, int rows2, short[] buckets){
+            this.feature1 = feature1;
+            this.feature2 = feature2;
+            this.ref1 = new FeatureRef(feature1);
+            this.ref2 = new FeatureRef(feature2);
+            this.rows1 = rows1;
+            this.rows2 = rows2;
+            this.buckets = buckets;
+        }
+
+        //bucket of a candidate, -1 if an id is out of range
+        int bucket(User user, Movie movie){
+            int id1 = (int) ref1.number(user, movie);
+            int id2 = (int) ref2.number(user, movie);
+            if (id1 < 0 || id1 >= rows1 || id2 < 0 || id2 >= rows2){
+                return -1;
+            }
+            return buckets[id1 * rows2 + id2];
+        }
+    }
+
+    /**
+     * check agreement with TF serving on predictions recorded by ExportWeights.py
+     * usage: EmbeddedModel <weights file> <recorded predictions csv> [tolerance]
+     */
+    public static void main(String[] args) throws IOException{
+        if (args.length < 2){
+            System.out.println("usage: EmbeddedModel <weights file> <recorded predictions csv> [tolerance]");
+            return;
+        }
+        EmbeddedModel embeddedModel = load(args[0]);
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : 1e-4;
+        int rowCount = 0;
+        int mismatchCount = 0;
+        double maxError = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(args[1]))) {
+            String[] header = reader.readLine().split(",");
+            String line;
+            while ((line = reader.readLine()) != null){
+                String[] values = line.split(",", -1);
+                Map<String, String> features = new HashMap<>();
+                double expected = 0;
+                for (int i = 0; i < header.length && i < values.length; i++){
+                    String value = values[i].replace("\"", "");
+                    if ("prediction".equals(header[i])){
+                        expected = Double.parseDouble(value);
+                    } else {
+                        features.put(header[i], value);
+                    }
+                }
+                User user = new User();
+                user.setUserId(Integer.parseInt(features.get(USER_ID)));
+                user.setUserFeatures(features);
+                Movie movie = new Movie();
+                movie.setMovieId(Integer.parseInt(features.get(MOVIE_ID)));
+                movie.setFeatures(FeatureStore.of(FeatureSchema.MOVIE, features), FeatureStore.SINGLE_ROW);
+
+                double actual = embeddedModel.score(user, Collections.singletonList(movie))[0];
+                double error = Math.abs(actual - expected);
+                maxError = Math.max(maxError, error);
+                if (error > tolerance){
+                    mismatchCount++;
+                    if (mismatchCount <= 10){
+                        System.out.println("mismatch at row " + rowCount + ": embedded " + actual + " vs serving " + expected);
+                    }
+                }
+                rowCount++;
+            }
+        }
+        System.out.println(embeddedModel.getModel() + ": " + rowCount + " recorded predictions, " + mismatchCount
+                + " beyond tolerance " + tolerance + ", max abs error " + maxError);
+        if (mismatchCount > 0){
+            System.exit(1);
+        }
+    }
+}
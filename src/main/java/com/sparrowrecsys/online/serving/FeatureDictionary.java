@@ -0,0 +1,91 @@
+package com.sparrowrecsys.online.serving;
+
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * FeatureDictionary, interns the values of categorical features like genres as dense int ids.
+ *
+ * Id 0 is the empty string, which stands for a missing value. Every value keeps its json fragment, so encoding a
+ * categorical feature is a byte copy. Lookups are lock free, interning a new value locks. Categorical features are
+ * a small closed set, so the dictionary only grows while the first snapshots and users are loaded.
+ */
+public class FeatureDictionary {
+    public static final int MISSING = 0;
+
+    //singleton instance
+    private static volatile FeatureDictionary instance;
+
+    private final ConcurrentHashMap<String, Integer> ids;
+    //value and json fragment of every id, replaced by larger copies before a new id is published
+    private volatile String[] values;
+    private volatile byte[][] encoded;
+    private int size;
+
+    private FeatureDictionary(){
+        this.ids = new ConcurrentHashMap<>();
+        this.values = new String[64];
+        this.encoded = new byte[64][];
+        this.size = 0;
+        intern("");
+    }
+
+    public static FeatureDictionary getInstance(){
+        if (null == instance){
+            synchronized (FeatureDictionary.class){
+                if (null == instance){
+                    instance = new FeatureDictionary();
+                }
+            }
+        }
+        return instance;
+    }
+
+    /**
+     * id of a value, a new id is assigned to a value seen for the first time
+     * @param value categorical value, null is treated as missing
+     * @return  id of the value
+     */
+    public int intern(String value){
+        if (null == value){
+            return MISSING;
+        }
+        Integer id = ids.get(value);
+        if (null != id){
+            return id;
+        }
+        synchronized (this){
+            id = ids.get(value);
+            if (null != id){
+                return id;
+            }
+            if (size == values.length){
+                encoded = Arrays.copyOf(encoded, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            encoded[size] = new JsonByteWriter(value.length() + 2).writeString(value).toByteArray();
+            values[size] = value;
+            //publishing the id last makes the value visible to whoever reads the id
+            ids.put(value, size);
+            return size++;
+        }
+    }
+
+    //id of a known value, -1 if the value has never been interned
+    public int lookup(String value){
+        Integer id = ids.get(value);
+        return null == id ? -1 : id;
+    }
+
+    public String getValue(int id){
+        return values[id];
+    }
+
+    public byte[] getEncoded(int id){
+        return encoded[id];
+    }
+
+    public int size(){
+        return ids.size();
+    }
+}
@@ -0,0 +1,69 @@
+package com.sparrowrecsys.online.serving;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static com.sparrowrecsys.online.util.Constants.*;
+
+/**
+ * FeatureSchema, typed columns of the movie or user features produced by FeatureEngForRecModel.
+ * Column indexes are fixed, so feature values are read by index instead of by name on the ranking path.
+ */
+public class FeatureSchema {
+    public static final int TYPE_INT = 0;
+    public static final int TYPE_FLOAT = 1;
+    //string value stored as a FeatureDictionary id
+    public static final int TYPE_CATEGORY = 2;
+
+    //movie features in model serving encoding order
+    public static final FeatureSchema MOVIE = new FeatureSchema(
+            new String[]{FEATURE_MOVIE_GENRE_1, FEATURE_MOVIE_GENRE_2, FEATURE_MOVIE_GENRE_3,
+                    FEATURE_MOVIE_RELEASE_YEAR, FEATURE_MOVIE_RATING_COUNT,
+                    FEATURE_MOVIE_AVG_RATING, FEATURE_MOVIE_RATING_STDDEV},
+            new int[]{TYPE_CATEGORY, TYPE_CATEGORY, TYPE_CATEGORY,
+                    TYPE_INT, TYPE_INT,
+                    TYPE_FLOAT, TYPE_FLOAT});
+
+    public static final FeatureSchema USER = new FeatureSchema(
+            new String[]{FEATURE_USER_GENRE_1, FEATURE_USER_GENRE_2, FEATURE_USER_GENRE_3, FEATURE_USER_GENRE_4, FEATURE_USER_GENRE_5,
+                    FEATURE_USER_RATING_COUNT, FEATURE_USER_AVG_RATING, FEATURE_USER_RATING_STDDEV,
+                    FEATURE_USER_RATED_MOVIE_1, FEATURE_USER_RATED_MOVIE_2, FEATURE_USER_RATED_MOVIE_3,
+                    FEATURE_USER_RATED_MOVIE_4, FEATURE_USER_RATED_MOVIE_5,
+                    FEATURE_USER_RELEASE_YEAR, FEATURE_USER_RELEASE_YEAR_STDDEV},
+            new int[]{TYPE_CATEGORY, TYPE_CATEGORY, TYPE_CATEGORY, TYPE_CATEGORY, TYPE_CATEGORY,
+                    TYPE_INT, TYPE_FLOAT, TYPE_FLOAT,
+                    TYPE_INT, TYPE_INT, TYPE_INT,
+                    TYPE_INT, TYPE_INT,
+                    TYPE_FLOAT, TYPE_FLOAT});
+
+    final String[] names;
+    final int[] types;
+    final Map<String, Integer> indexes;
+
+    FeatureSchema(String[] names, int[] types){
+        this.names = names;
+        this.types = types;
+        this.indexes = new HashMap<>();
+        for (int column = 0; column < names.length; column++){
+            indexes.put(names[column], column);
+        }
+    }
+
+    public int getColumnCount() {
+        return names.length;
+    }
+
+    public String getName(int column) {
+        return names[column];
+    }
+
+    public int getType(int column) {
+        return types[column];
+    }
+
+    //column of a feature, -1 if the schema doesn't have it
+    public int indexOf(String feature){
+        Integer column = indexes.get(feature);
+        return null == column ? -1 : column;
+    }
+}
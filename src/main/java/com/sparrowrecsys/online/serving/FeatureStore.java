@@ -0,0 +1,174 @@
+package com.sparrowrecsys.online.serving;
+
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * FeatureStore, typed features of many movies or users in primitive columns, parsed once when they are added.
+ *
+ * Int and categorical columns are int arrays, categories holding FeatureDictionary ids, float columns are float
+ * arrays. Numeric values also keep their json fragment so model serving requests are encoded by copying bytes.
+ * Row 0 is the row of an entity without features: zeros and empty strings, like the defaults TF serving got before,
+ * except in single entity stores made by of().
+ * Rows are added at load time by one thread, the store is read-only once published.
+ */
+public class FeatureStore {
+    public static final int NO_FEATURES = 0;
+    //row of the entity in a single entity store
+    public static final int SINGLE_ROW = 0;
+
+    //shared stores holding only the row without features
+    public static final FeatureStore EMPTY_MOVIE = new FeatureStore(FeatureSchema.MOVIE, 0);
+    public static final FeatureStore EMPTY_USER = new FeatureStore(FeatureSchema.USER, 0);
+
+    final FeatureSchema schema;
+    //column values by [column][row], null where the column has the other type
+    int[][] intColumns;
+    float[][] floatColumns;
+    //json fragments of numeric values by [column][row], null for categorical columns
+    byte[][][] encodedColumns;
+    int size;
+    int capacity;
+
+    /**
+     * @param schema    feature columns
+     * @param expectedRows  number of rows the store holds without growing
+     */
+    public FeatureStore(FeatureSchema schema, int expectedRows){
+        this(schema, expectedRows + 1, null);
+    }
+
+    //store whose row 0 holds the given features, null for the row without features
+    private FeatureStore(FeatureSchema schema, int capacity, Map<String, String> firstRow){
+        this.schema = schema;
+        int columnCount = schema.getColumnCount();
+        this.intColumns = new int[columnCount][];
+        this.floatColumns = new float[columnCount][];
+        this.encodedColumns = new byte[columnCount][][];
+        for (int column = 0; column < columnCount; column++){
+            if (schema.getType(column) == FeatureSchema.TYPE_FLOAT){
+                floatColumns[column] = new float[capacity];
+            } else {
+                intColumns[column] = new int[capacity];
+            }
+            if (schema.getType(column) != FeatureSchema.TYPE_CATEGORY){
+                encodedColumns[column] = new byte[capacity][];
+            }
+        }
+        this.size = 0;
+        this.capacity = capacity;
+        add(firstRow);
+    }
+
+    /**
+     * store of a single entity, whose features take row 0 instead of the row without features
+     * @param schema    feature columns
+     * @param features  raw features
+     * @return  store whose only row holds the features
+     */
+    public static FeatureStore of(FeatureSchema schema, Map<String, String> features){
+        return new FeatureStore(schema, 1, features);
+    }
+
+    /**
+     * parse and append the raw features of an entity, missing or malformed numbers become 0 and missing strings ""
+     * @param features  raw features, e.g. a Redis hash
+     * @return  row of the features
+     */
+    public int add(Map<String, String> features){
+        if (size == capacity){
+            grow(size + (size >> 1) + 1);
+        }
+        int row = size;
+        JsonByteWriter writer = new JsonByteWriter(16);
+        for (int column = 0; column < schema.getColumnCount(); column++){
+            String raw = null == features ? null : features.get(schema.getName(column));
+            writer.reset();
+            switch (schema.getType(column)){
+                case FeatureSchema.TYPE_INT:
+                    intColumns[column][row] = parseInt(raw);
+                    encodedColumns[column][row] = writer.writeInt(intColumns[column][row]).toByteArray();
+                    break;
+                case FeatureSchema.TYPE_FLOAT:
+                    floatColumns[column][row] = parseFloat(raw);
+                    encodedColumns[column][row] = writer.writeFloat(floatColumns[column][row]).toByteArray();
+                    break;
+                default:
+                    intColumns[column][row] = FeatureDictionary.getInstance().intern(null == raw ? "" : raw);
+            }
+        }
+        size++;
+        return row;
+    }
+
+    private void grow(int capacity){
+        this.capacity = capacity;
+        for (int column = 0; column < schema.getColumnCount(); column++){
+            if (null != intColumns[column]){
+                intColumns[column] = Arrays.copyOf(intColumns[column], capacity);
+            }
+            if (null != floatColumns[column]){
+                floatColumns[column] = Arrays.copyOf(floatColumns[column], capacity);
+            }
+            if (null != encodedColumns[column]){
+                encodedColumns[column] = Arrays.copyOf(encodedColumns[column], capacity);
+            }
+        }
+    }
+
+    public FeatureSchema getSchema() {
+        return schema;
+    }
+
+    //number of rows, including the row without features
+    public int size() {
+        return size;
+    }
+
+    //value of a numeric column as a float, the dictionary id for a categorical one
+    public float getNumber(int column, int row){
+        return null == floatColumns[column] ? intColumns[column][row] : floatColumns[column][row];
+    }
+
+    //value of an int or categorical column
+    public int getInt(int column, int row){
+        return intColumns[column][row];
+    }
+
+    public float getFloat(int column, int row){
+        return floatColumns[column][row];
+    }
+
+    //dictionary id of a categorical column
+    public int getCategory(int column, int row){
+        return intColumns[column][row];
+    }
+
+    //json fragment of a value
+    public byte[] getEncoded(int column, int row){
+        return null == encodedColumns[column] ? FeatureDictionary.getInstance().getEncoded(intColumns[column][row])
+                : encodedColumns[column][row];
+    }
+
+    static int parseInt(String value){
+        if (null == value || value.isEmpty()){
+            return 0;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            return (int) parseFloat(value);
+        }
+    }
+
+    static float parseFloat(String value){
+        if (null == value || value.isEmpty()){
+            return 0;
+        }
+        try {
+            return Float.parseFloat(value);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package com.sparrowrecsys.online.serving;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * JsonByteWriter, appends json tokens as UTF-8 bytes into a growable buffer that is reused across requests.
+ * It only writes, the caller is responsible for producing well-formed json.
+ */
+public class JsonByteWriter {
+    private static final byte[] NULL = {'n', 'u', 'l', 'l'};
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    byte[] buffer;
+    int size;
+
+    public JsonByteWriter(int initialCapacity){
+        this.buffer = new byte[initialCapacity];
+        this.size = 0;
+    }
+
+    public void reset(){
+        size = 0;
+    }
+
+    //drop the current buffer, used when a request still in flight may read it
+    public void detach(){
+        buffer = new byte[buffer.length];
+        size = 0;
+    }
+
+    public byte[] getBuffer() {
+        return buffer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private void ensureCapacity(int extra){
+        if (size + extra > buffer.length){
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, size + extra));
+        }
+    }
+
+    public JsonByteWriter writeByte(char c){
+        ensureCapacity(1);
+        buffer[size++] = (byte) c;
+        return this;
+    }
+
+    public JsonByteWriter writeBytes(byte[] bytes){
+        ensureCapacity(bytes.length);
+        System.arraycopy(bytes, 0, buffer, size, bytes.length);
+        size += bytes.length;
+        return this;
+    }
+
+    public JsonByteWriter writeInt(int value){
+        if (value == Integer.MIN_VALUE){
+            return writeAscii(Integer.toString(value));
+        }
+        ensureCapacity(11);
+        if (value < 0){
+            buffer[size++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (int rest = value / 10; rest > 0; rest /= 10){
+            digits++;
+        }
+        for (int i = size + digits - 1; i >= size; i--){
+            buffer[i] = (byte) ('0' + value % 10);
+            value /= 10;
+        }
+        size += digits;
+        return this;
+    }
+
+    public JsonByteWriter writeFloat(float value){
+        if (Float.isNaN(value) || Float.isInfinite(value)){
+            return writeBytes(NULL);
+        }
+        return writeAscii(Float.toString(value));
+    }
+
+    //write a quoted json string, null is written as json null
+    public JsonByteWriter writeString(String value){
+        if (null == value){
+            return writeBytes(NULL);
+        }
+        writeByte('"');
+        for (int i = 0; i < value.length(); i++){
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\'){
+                writeByte('\\').writeByte(c);
+            } else if (c < 0x20){
+                writeByte('\\').writeByte('u').writeByte('0').writeByte('0')
+                        .writeByte((char) HEX[c >> 4]).writeByte((char) HEX[c & 0xf]);
+            } else if (c < 0x80){
+                writeByte(c);
+            } else {
+                //rare non-ascii text, encode the remaining part through the charset
+                writeRaw(value.substring(i));
+                break;
+            }
+        }
+        return writeByte('"');
+    }
+
+    private void writeRaw(String rest){
+        StringBuilder escaped = new StringBuilder(rest.length());
+        for (int i = 0; i < rest.length(); i++){
+            char c = rest.charAt(i);
+            if (c == '"' || c == '\\'){
+                escaped.append('\\').append(c);
+            } else if (c < 0x20){
+                escaped.append(String.format("\\u%04x", (int) c));
+            } else {
+                escaped.append(c);
+            }
+        }
+        writeBytes(escaped.toString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    private JsonByteWriter writeAscii(String value){
+        ensureCapacity(value.length());
+        for (int i = 0; i < value.length(); i++){
+            buffer[size++] = (byte) value.charAt(i);
+        }
+        return this;
+    }
+
+    //bytes written so far as a standalone array, for caching pre-encoded fragments
+    public byte[] toByteArray(){
+        return Arrays.copyOf(buffer, size);
+    }
+}
@@ -0,0 +1,204 @@
+package com.sparrowrecsys.online.serving;
+
+import com.sparrowrecsys.online.datamanager.Movie;
+import com.sparrowrecsys.online.datamanager.User;
+import com.sparrowrecsys.online.util.HttpClient;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static com.sparrowrecsys.online.util.Config.*;
+
+/**
+ * ModelServingBatcher, coalesces ranking calls of concurrent requests for the same model into one predict call.
+ *
+ * Every model has a dispatcher thread. A batch opens when a request arrives and is sent once it holds
+ * MODEL_SERVING_MAX_BATCH_SIZE examples or MODEL_SERVING_MAX_WAIT_MICROS have passed since it opened.
+ * Sending is asynchronous, so the next batch forms while the previous one is in flight, and the scores
+ * of a response are split back to the callers in the order their candidates were encoded.
+ */
+public class ModelServingBatcher {
+    //singleton instance
+    private static volatile ModelServingBatcher instance;
+
+    private final ConcurrentHashMap<String, Dispatcher> dispatchers = new ConcurrentHashMap<>();
+
+    private ModelServingBatcher(){}
+
+    public static ModelServingBatcher getInstance(){
+        if (null == instance){
+            synchronized (ModelServingBatcher.class){
+                if (null == instance){
+                    instance = new ModelServingBatcher();
+                }
+            }
+        }
+        return instance;
+    }
+
+    //predict url of a model on the TF serving endpoint
+    public static String getPredictUrl(String model){
+        return MODEL_SERVING_ENDPOINT + model + ":predict";
+    }
+
+    /**
+     * queue the candidates of a user for the next batch of a model
+     * @param model     model name
+     * @param user      input user, its features are encoded right away on the calling thread
+     * @param candidates    candidate movies, must not change until the result completes
+     * @return  future of one score per candidate
+     */
+    public CompletableFuture<double[]> score(String model, User user, List<Movie> candidates){
+        PendingRequest request = new PendingRequest(PredictRequestEncoder.encodeUser(model, user), candidates);
+        dispatchers.computeIfAbsent(model, Dispatcher::new).queue.add(request);
+        return request.result;
+    }
+
+    //metrics of a model's batches, null if the model was never called
+    public BatchMetrics getMetrics(String model){
+        Dispatcher dispatcher = dispatchers.get(model);
+        return null == dispatcher ? null : dispatcher.metrics;
+    }
+
+    private static class PendingRequest {
+        final byte[][] userColumns;
+        final List<Movie> candidates;
+        final long enqueueNanos;
+        final CompletableFuture<double[]> result;
+
+        PendingRequest(byte[][] userColumns, List<Movie> candidates){
+            this.userColumns = userColumns;
+            this.candidates = candidates;
+            this.enqueueNanos = System.nanoTime();
+            this.result = new CompletableFuture<>();
+        }
+    }
+
+    private static class Dispatcher implements Runnable {
+        final String model;
+        final String url;
+        final LinkedBlockingQueue<PendingRequest> queue = new LinkedBlockingQueue<>();
+        final BatchMetrics metrics = new BatchMetrics();
+        //request taken from the queue that didn't fit in the previous batch
+        PendingRequest carried;
+        //body size of the previous batch, to size the next buffer
+        int lastBodySize = 64 * 1024;
+
+        Dispatcher(String model){
+            this.model = model;
+            this.url = getPredictUrl(model);
+            Thread thread = new Thread(this, "model-serving-batcher-" + model);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()){
+                try {
+                    dispatch(collectBatch());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } catch (RuntimeException e) {
+                    System.out.println("Model serving batcher of " + model + " failed to dispatch a batch: " + e);
+                }
+            }
+        }
+
+        private List<PendingRequest> collectBatch() throws InterruptedException{
+            PendingRequest first = null != carried ? carried : queue.take();
+            carried = null;
+            List<PendingRequest> batch = new ArrayList<>();
+            batch.add(first);
+            int examples = first.candidates.size();
+            long deadline = first.enqueueNanos + TimeUnit.MICROSECONDS.toNanos(MODEL_SERVING_MAX_WAIT_MICROS);
+            while (examples < MODEL_SERVING_MAX_BATCH_SIZE){
+                long remaining = deadline - System.nanoTime();
+                //past the deadline only requests already queued join the batch
+                PendingRequest next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                if (null == next){
+                    break;
+                }
+                if (examples + next.candidates.size() > MODEL_SERVING_MAX_BATCH_SIZE){
+                    carried = next;
+                    break;
+                }
+                batch.add(next);
+                examples += next.candidates.size();
+            }
+            return batch;
+        }
+
+        private void dispatch(List<PendingRequest> batch){
+            //callers that already gave up cancelled their result, don't spend model serving time on them
+            batch.removeIf(request -> request.result.isDone());
+            if (batch.isEmpty()){
+                return;
+            }
+            List<byte[][]> users = new ArrayList<>(batch.size());
+            List<List<Movie>> candidateLists = new ArrayList<>(batch.size());
+            int examples = 0;
+            long now = System.nanoTime();
+            for (PendingRequest request : batch){
+                users.add(request.userColumns);
+                candidateLists.add(request.candidates);
+                examples += request.candidates.size();
+                metrics.recordQueueDelay(TimeUnit.NANOSECONDS.toMicros(now - request.enqueueNanos));
+            }
+            metrics.recordBatch(batch.size(), examples);
+            if (metrics.getBatches() % MODEL_SERVING_METRICS_REPORT_BATCHES == 0){
+                System.out.println("Model serving batches of " + model + ": " + metrics);
+            }
+
+            //a fresh buffer per batch, the previous one may still be in flight
+            JsonByteWriter body = new JsonByteWriter(lastBodySize);
+            try {
+                PredictRequestEncoder.encode(body, model, users, candidateLists);
+            } catch (RuntimeException e) {
+                fail(batch, e);
+                return;
+            }
+            lastBodySize = body.size();
+            final int exampleCount = examples;
+            CompletableFuture<byte[]> response;
+            try {
+                response = HttpClient.postAsync(url, body.getBuffer(), body.size());
+            } catch (RuntimeException e) {
+                //fail callers right away instead of leaving them to their deadline
+                fail(batch, e);
+                return;
+            }
+            response.whenComplete((content, error) -> {
+                if (null != error){
+                    fail(batch, error);
+                    return;
+                }
+                double[] scores;
+                try {
+                    scores = PredictResponseParser.parseScores(content, exampleCount);
+                } catch (RuntimeException e) {
+                    fail(batch, e);
+                    return;
+                }
+                int offset = 0;
+                for (PendingRequest request : batch){
+                    int size = request.candidates.size();
+                    request.result.complete(Arrays.copyOfRange(scores, offset, offset + size));
+                    offset += size;
+                }
+            });
+        }
+
+        private void fail(List<PendingRequest> batch, Throwable error){
+            metrics.recordFailure();
+            for (PendingRequest request : batch){
+                request.result.completeExceptionally(error);
+            }
+        }
+    }
+}
@@ -0,0 +1,173 @@
+package com.sparrowrecsys.online.serving;
+
+import com.sparrowrecsys.online.datamanager.Movie;
+import com.sparrowrecsys.online.datamanager.User;
+
+import java.util.Collections;
+import java.util.List;
+
+import static com.sparrowrecsys.online.util.Constants.*;
+
+/**
+ * PredictRequestEncoder, writes a TF Serving predict request in the columnar "inputs" format,
+ * {"inputs":{"userId":[...],"movieId":[...],...}}, straight into a per-thread reusable byte buffer.
+ *
+ * User side values are the same for every candidate of a user, so they are encoded once per user and repeated,
+ * and movie features are copied from fragments pre-encoded in the movies' FeatureStore. One request may hold the
+ * candidates of several users, which is how batched calls are sent.
+ */
+public class PredictRequestEncoder {
+    //user side columns of models using movie and user features, in encoding order
+    static final String[] FEATURE_USER_COLUMNS = {
+            USER_ID, FEATURE_USER_RATING_COUNT, FEATURE_USER_AVG_RATING,
+            FEATURE_USER_GENRE_1, FEATURE_USER_GENRE_2, FEATURE_USER_GENRE_3, FEATURE_USER_GENRE_4, FEATURE_USER_GENRE_5,
+            FEATURE_USER_RATING_STDDEV};
+    //wide and deep additionally crosses the user's last rated movie
+    static final String[] WIDE_N_DEEP_USER_COLUMNS = {
+            USER_ID, FEATURE_USER_RATING_COUNT, FEATURE_USER_AVG_RATING,
+            FEATURE_USER_GENRE_1, FEATURE_USER_GENRE_2, FEATURE_USER_GENRE_3, FEATURE_USER_GENRE_4, FEATURE_USER_GENRE_5,
+            FEATURE_USER_RATING_STDDEV, FEATURE_USER_RATED_MOVIE_1};
+    //neural cf only uses ids
+    static final String[] ID_USER_COLUMNS = {USER_ID};
+    //FeatureSchema.USER column of every user side column, -1 for the user id
+    static final int[] FEATURE_USER_SCHEMA_COLUMNS = schemaColumnsOf(FEATURE_USER_COLUMNS);
+    static final int[] WIDE_N_DEEP_USER_SCHEMA_COLUMNS = schemaColumnsOf(WIDE_N_DEEP_USER_COLUMNS);
+    static final int[] ID_USER_SCHEMA_COLUMNS = schemaColumnsOf(ID_USER_COLUMNS);
+
+    private static final ThreadLocal<JsonByteWriter> WRITER = ThreadLocal.withInitial(() -> new JsonByteWriter(64 * 1024));
+
+    private PredictRequestEncoder(){}
+
+    /**
+     * encode a predict request for all candidates of a user
+     * @param model     model name, decides which features are sent
+     * @param user      input user
+     * @param candidates    candidate movies, one example each
+     * @return  the calling thread's writer holding the request body, valid until its next encode
+     */
+    public static JsonByteWriter encode(String model, User user, List<Movie> candidates){
+        JsonByteWriter writer = WRITER.get();
+        writer.reset();
+        encode(writer, model, Collections.singletonList(encodeUser(model, user)), Collections.singletonList(candidates));
+        return writer;
+    }
+
+    /**
+     * encode one predict request holding the candidates of several users, examples follow the given order
+     * @param writer    writer to append the request body to
+     * @param model     model name, decides which features are sent
+     * @param users     user column values of every segment, from encodeUser
+     * @param candidateLists    candidate movies of every segment
+     */
+    public static void encode(JsonByteWriter writer, String model, List<byte[][]> users, List<List<Movie>> candidateLists){
+        writer.writeByte('{').writeString("inputs").writeByte(':').writeByte('{');
+
+        String[] userColumns = getUserColumns(model);
+        for (int column = 0; column < userColumns.length; column++){
+            if (column > 0){
+                writer.writeByte(',');
+            }
+            writer.writeString(userColumns[column]).writeByte(':').writeByte('[');
+            boolean first = true;
+            for (int segment = 0; segment < users.size(); segment++){
+                byte[] value = users.get(segment)[column];
+                for (int i = 0; i < candidateLists.get(segment).size(); i++){
+                    if (!first){
+                        writer.writeByte(',');
+                    }
+                    writer.writeBytes(value);
+                    first = false;
+                }
+            }
+            writer.writeByte(']');
+        }
+
+        writer.writeByte(',').writeString(MOVIE_ID).writeByte(':').writeByte('[');
+        boolean first = true;
+        for (List<Movie> candidates : candidateLists){
+            for (Movie candidate : candidates){
+                if (!first){
+                    writer.writeByte(',');
+                }
+                writer.writeInt(candidate.getMovieId());
+                first = false;
+            }
+        }
+        writer.writeByte(']');
+
+        if (EMBEDDING_MLP.equals(model) || WIDE_N_DEEP.equals(model)) {
+            // movie features
+            for (int column = 0; column < FeatureSchema.MOVIE.getColumnCount(); column++){
+                writer.writeByte(',').writeString(FeatureSchema.MOVIE.getName(column)).writeByte(':').writeByte('[');
+                first = true;
+                for (List<Movie> candidates : candidateLists){
+                    for (Movie candidate : candidates){
+                        if (!first){
+                            writer.writeByte(',');
+                        }
+                        writer.writeBytes(candidate.getFeatureStore().getEncoded(column, candidate.getFeatureRow()));
+                        first = false;
+                    }
+                }
+                writer.writeByte(']');
+            }
+        }
+
+        writer.writeByte('}').writeByte('}');
+    }
+
+    /**
+     * encode the user side column values of a model once, they are repeated for every candidate of the user
+     * @param model model name, decides which features are sent
+     * @param user  input user
+     * @return  json fragment of every column in getUserColumns(model) order
+     */
+    public static byte[][] encodeUser(String model, User user){
+        int[] schemaColumns = getUserSchemaColumns(model);
+        FeatureStore userFeatures = user.getFeatureStore();
+        byte[][] values = new byte[schemaColumns.length][];
+        for (int column = 0; column < schemaColumns.length; column++){
+            if (schemaColumns[column] < 0){
+                values[column] = new JsonByteWriter(12).writeInt(user.getUserId()).toByteArray();
+            } else {
+                values[column] = userFeatures.getEncoded(schemaColumns[column], FeatureStore.SINGLE_ROW);
+            }
+        }
+        return values;
+    }
+
+    //user side columns sent for a model, the user id comes first
+    static String[] getUserColumns(String model){
+        if (WIDE_N_DEEP.equals(model)){
+            return WIDE_N_DEEP_USER_COLUMNS;
+        }
+        if (EMBEDDING_MLP.equals(model)){
+            return FEATURE_USER_COLUMNS;
+        }
+        return ID_USER_COLUMNS;
+    }
+
+    //FeatureSchema.USER columns of getUserColumns(model)
+    static int[] getUserSchemaColumns(String model){
+        if (WIDE_N_DEEP.equals(model)){
+            return WIDE_N_DEEP_USER_SCHEMA_COLUMNS;
+        }
+        if (EMBEDDING_MLP.equals(model)){
+            return FEATURE_USER_SCHEMA_COLUMNS;
+        }
+        return ID_USER_SCHEMA_COLUMNS;
+    }
+
+    private static int[] schemaColumnsOf(String[] userColumns){
+        int[] schemaColumns = new int[userColumns.length];
+        for (int column = 0; column < userColumns.length; column++){
+            schemaColumns[column] = FeatureSchema.USER.indexOf(userColumns[column]);
+        }
+        return schemaColumns;
+    }
+
+    //drop the calling thread's buffer, used when a request that timed out may still be reading it
+    public static void discardBuffer(){
+        WRITER.get().detach();
+    }
+}
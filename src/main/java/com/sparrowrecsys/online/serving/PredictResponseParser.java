@@ -0,0 +1,134 @@
+package com.sparrowrecsys.online.serving;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * PredictResponseParser, reads scores out of a TF Serving predict response without building a json tree.
+ * Accepts both {"outputs":[[s1],[s2],...]} (columnar requests) and {"predictions":[[s1],[s2],...]} (row requests),
+ * taking the first value of every example.
+ */
+public class PredictResponseParser {
+    private static final byte[] OUTPUTS = "\"outputs\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] PREDICTIONS = "\"predictions\"".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] ERROR = "\"error\"".getBytes(StandardCharsets.US_ASCII);
+
+    private PredictResponseParser(){}
+
+    /**
+     * parse the score of every example
+     * @param content   response body bytes
+     * @param expected  number of examples in the request
+     * @return  scores in example order
+     */
+    public static double[] parseScores(byte[] content, int expected){
+        int pos = findKey(content, OUTPUTS);
+        if (pos < 0){
+            pos = findKey(content, PREDICTIONS);
+        }
+        if (pos < 0){
+            throw new IllegalArgumentException("no scores in model serving response: " + preview(content));
+        }
+        pos = expect(content, skipWhitespace(content, pos), '[');
+
+        double[] scores = new double[expected];
+        int count = 0;
+        while (true){
+            pos = skipWhitespace(content, pos);
+            if (pos >= content.length){
+                throw new IllegalArgumentException("truncated model serving response");
+            }
+            if (content[pos] == ']'){
+                break;
+            }
+            if (count == expected){
+                throw new IllegalArgumentException("model serving returned more than " + expected + " scores");
+            }
+            if (content[pos] == '['){
+                //example output vector, keep its first value
+                pos = skipWhitespace(content, pos + 1);
+                int end = numberEnd(content, pos);
+                scores[count++] = parseNumber(content, pos, end);
+                pos = skipTo(content, end, ']') + 1;
+            } else {
+                int end = numberEnd(content, pos);
+                scores[count++] = parseNumber(content, pos, end);
+                pos = end;
+            }
+            pos = skipWhitespace(content, pos);
+            if (pos < content.length && content[pos] == ','){
+                pos++;
+            }
+        }
+        if (count != expected){
+            throw new IllegalArgumentException("model serving returned " + count + " scores for " + expected + " examples");
+        }
+        return scores;
+    }
+
+    //position right after the ':' following a top-level key, -1 if the key is absent
+    private static int findKey(byte[] content, byte[] key){
+        outer:
+        for (int i = 0; i + key.length <= content.length; i++){
+            for (int j = 0; j < key.length; j++){
+                if (content[i + j] != key[j]){
+                    continue outer;
+                }
+            }
+            int pos = skipWhitespace(content, i + key.length);
+            if (pos < content.length && content[pos] == ':'){
+                return pos + 1;
+            }
+        }
+        return -1;
+    }
+
+    private static int skipWhitespace(byte[] content, int pos){
+        while (pos < content.length && (content[pos] == ' ' || content[pos] == '\n' || content[pos] == '\r' || content[pos] == '\t')){
+            pos++;
+        }
+        return pos;
+    }
+
+    private static int expect(byte[] content, int pos, char c){
+        if (pos >= content.length || content[pos] != c){
+            throw new IllegalArgumentException("malformed model serving response, expected '" + c + "' at " + pos);
+        }
+        return pos + 1;
+    }
+
+    private static int skipTo(byte[] content, int pos, char c){
+        while (pos < content.length && content[pos] != c){
+            pos++;
+        }
+        if (pos == content.length){
+            throw new IllegalArgumentException("truncated model serving response");
+        }
+        return pos;
+    }
+
+    private static int numberEnd(byte[] content, int pos){
+        int end = pos;
+        while (end < content.length){
+            byte b = content[end];
+            if ((b >= '0' && b <= '9') || b == '-' || b == '+' || b == '.' || b == 'e' || b == 'E'){
+                end++;
+            } else {
+                break;
+            }
+        }
+        if (end == pos){
+            throw new IllegalArgumentException("malformed model serving response, expected a number at " + pos);
+        }
+        return end;
+    }
+
+    private static double parseNumber(byte[] content, int start, int end){
+        return Double.parseDouble(new String(content, start, end - start, StandardCharsets.US_ASCII));
+    }
+
+    private static String preview(byte[] content){
+        int errorPos = findKey(content, ERROR);
+        int from = errorPos < 0 ? 0 : errorPos;
+        return new String(content, from, Math.min(200, content.length - from), StandardCharsets.UTF_8);
+    }
+}
@@ -1,5 +1,6 @@
 package com.sparrowrecsys.online.util;
 
+import java.util.concurrent.TimeUnit;
 
 public class Config {
     public static final String DATA_SOURCE_REDIS = "redis";
@@ -8,18 +9,103 @@ public class Config {
     public static final int REDIS_PORT = 6379;
     public static final String REDIS_ENDPOINT = "localhost";
 
+    // Redis connection pool, timeouts apply to every request path call
+    public static int REDIS_POOL_MAX_TOTAL = 64;
+    public static int REDIS_POOL_MIN_IDLE = 4;
+    public static long REDIS_POOL_MAX_WAIT_MILLIS = 50;
+    public static int REDIS_CONNECTION_TIMEOUT_MILLIS = 200;
+    public static int REDIS_SO_TIMEOUT_MILLIS = 100;
+    // read timeout of bulk loads, a pipeline of REDIS_BATCH_SIZE values takes far longer than a single call
+    public static int REDIS_BULK_SO_TIMEOUT_MILLIS = 10000;
+    // max keys per MGET or pipeline round trip
+    public static int REDIS_BATCH_SIZE = 500;
+    // threads parsing bulk loaded Redis values at startup
+    public static int REDIS_LOADER_THREADS = Runtime.getRuntime().availableProcessors();
+    // threads parsing chunks of movies.csv, links.csv and ratings.csv at load time
+    public static int CSV_LOADER_THREADS = Runtime.getRuntime().availableProcessors();
+
     public static final int DEFAULT_REC_SYS_PORT = 6010;
 
+    // jetty threads, connection acceptors and NIO selectors, requests of the async endpoints only hold a jetty thread
+    // while their parameters are read. The pool grows past SERVER_MAX_THREADS when acceptors and selectors would
+    // leave fewer than SERVER_MIN_THREADS threads for requests, e.g. on hosts with many cores
+    public static int SERVER_MAX_THREADS = 64;
+    public static int SERVER_MIN_THREADS = 8;
+    public static int SERVER_ACCEPTORS = 1;
+    public static int SERVER_SELECTORS = Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+    // threads running the stages of async recommendation requests, stages block on Redis but not on model serving
+    public static int REC_WORKER_THREADS = Runtime.getRuntime().availableProcessors() * 2;
+    public static long ASYNC_REQUEST_TIMEOUT_MILLIS = 5000;
+
+    // shared http client for model serving calls, the response timeout also bounds how long a caller waits
+    public static int HTTP_CLIENT_MAX_CONNECTIONS = 200;
+    public static int HTTP_CLIENT_MAX_CONNECTIONS_PER_ROUTE = 50;
+    public static int HTTP_CLIENT_IO_THREADS = Runtime.getRuntime().availableProcessors();
+    public static int HTTP_CLIENT_CONNECT_TIMEOUT_MILLIS = 100;
+    public static int HTTP_CLIENT_RESPONSE_TIMEOUT_MILLIS = 300;
+
+    // model serving calls of concurrent requests for the same model are coalesced into batches
+    public static String MODEL_SERVING_ENDPOINT = "http://localhost:8501/v1/models/";
+    public static boolean IS_ENABLE_MODEL_SERVING_BATCHING = true;
+    // max examples per combined predict call, and max time a batch stays open after its first request
+    public static int MODEL_SERVING_MAX_BATCH_SIZE = 4096;
+    public static int MODEL_SERVING_MAX_WAIT_MICROS = 2000;
+    public static int MODEL_SERVING_METRICS_REPORT_BATCHES = 1000;
+
+    // time a rec for you request may spend before ranking gives up on model serving and falls back to embedding scores
+    public static int REC_LATENCY_BUDGET_MILLIS = 300;
+    // a model endpoint failing this many calls in a row is skipped for the cool-down period
+    public static int CIRCUIT_BREAKER_FAILURE_THRESHOLD = 5;
+    public static int CIRCUIT_BREAKER_COOL_DOWN_MILLIS = 10000;
+
+    // comma separated ranking models scored in process from modeldata/<model>/model.weights instead of TF serving
+    public static String EMBEDDED_SCORING_MODELS = "";
+
+    // near-cache of user embeddings and features fetched from Redis, entries live as long as the 24h Redis expiry
+    // of user embeddings, 0 bytes disables the cache
+    public static long USER_PROFILE_CACHE_MAX_BYTES = 64L * 1024 * 1024;
+    public static long USER_PROFILE_CACHE_TTL_MILLIS = TimeUnit.HOURS.toMillis(24);
+
+    // similar movie lists cached per data snapshot, each list keeps its top entries, larger requests bypass the cache
+    public static int SIMILAR_MOVIE_CACHE_LIST_SIZE = 50;
+    public static int SIMILAR_MOVIE_CACHE_MAX_LISTS = 200000;
+    // comma separated models whose similar movie lists are precomputed for the whole catalog on every new snapshot
+    public static String SIMILAR_MOVIE_CACHE_PRECOMPUTE_MODELS = "";
+
+    // seconds between background reloads of movies, ratings, embeddings and indexes into a new data snapshot, 0 disables
+    public static int DATA_RELOAD_INTERVAL_SECONDS = 0;
+
     public static String EMB_DATA_SOURCE = Config.DATA_SOURCE_REDIS;
     public static boolean IS_LOAD_USER_FEATURE_FROM_REDIS = true;
     public static boolean IS_LOAD_ITEM_FEATURE_FROM_REDIS = true;
 
     public static String RECALL_BY_EMBEDDING_LSH = "recallByLSH";
+    public static String RECALL_BY_EMBEDDING_BRUTE_FORCE = "recallByBruteForce";
+    public static String RECALL_BY_EMBEDDING_HNSW = "recallByHNSW";
     public static String RECALL_BY_NAIVE_FALLBACK = "fallback";
 
-    // any value other than RECALL_BY_EMBEDDING_LSH will fall back to naive generation
+    // any value other than the embedding based strategies will fall back to naive generation
     public static String RECALL_STRATEGY = RECALL_BY_EMBEDDING_LSH;
 
+    // exact embedding retrieval scans partitions of this many rows in parallel
+    public static int RETRIEVAL_PARTITION_SIZE = 4096;
+    public static int RETRIEVAL_PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    // HNSW index knobs, M is the max neighbors per node, ef is the search candidate list size
+    public static int HNSW_M = 16;
+    public static int HNSW_EF_CONSTRUCTION = 200;
+    public static int HNSW_EF_SEARCH = 100;
+
+    // verify the checksum of the float block of embedding snapshots when they are opened, it reads every vector
+    // before serving, the id and norm tables are always verified
+    public static boolean IS_VERIFY_EMBEDDING_SNAPSHOT = false;
+
+    // serve product-quantized embeddings (item2vecEmb.pq, userEmb.pq) instead of float vectors in file mode,
+    // the offline embedding job only trains them when enabled, PQ_SUBSPACES must divide the embedding dimension
+    public static boolean IS_ENABLE_PQ_EMBEDDING = false;
+    public static int PQ_SUBSPACES = 5;
+    public static int PQ_TRAIN_ITERATIONS = 20;
+
     public static boolean IS_ENABLE_AB_TEST = false;
 
 }
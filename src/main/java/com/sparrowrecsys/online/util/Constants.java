@@ -40,6 +40,8 @@ public class Constants {
   public static final String WIDE_N_DEEP = "widendeep";
   public static final String NEURAL_CF = "neuralcf";
   public static final String EMBEDDING_MLP = "embeddingmlp";
+  // ranking in candidate order, used when no model applies
+  public static final String FALLBACK = "fallback";
 
 
 
@@ -2,10 +2,18 @@ package com.sparrowrecsys.online.util;
 
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.concurrent.FutureCallback;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.ContentType;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONObject;
 
@@ -15,27 +23,123 @@ import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.concurrent.Future;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
 
+import static com.sparrowrecsys.online.util.Config.*;
 import static com.sparrowrecsys.online.util.Constants.*;
 
 
+/**
+ * HttpClient, long-lived async http client shared by all model serving calls.
+ * Connections are kept alive in a pool with per-route limits, so requests skip thread creation and TCP handshakes.
+ */
 public class HttpClient {
+    //shared client, started once on first use
+    private static volatile CloseableHttpAsyncClient client;
+
+    private HttpClient(){}
+
+    public static CloseableHttpAsyncClient getClient(){
+        if (null == client){
+            synchronized (HttpClient.class){
+                if (null == client){
+                    client = createClient();
+                }
+            }
+        }
+        return client;
+    }
+
+    private static CloseableHttpAsyncClient createClient(){
+        IOReactorConfig ioReactorConfig = IOReactorConfig.custom()
+                .setIoThreadCount(HTTP_CLIENT_IO_THREADS)
+                .setConnectTimeout(HTTP_CLIENT_CONNECT_TIMEOUT_MILLIS)
+                .setSoTimeout(HTTP_CLIENT_RESPONSE_TIMEOUT_MILLIS)
+                .setTcpNoDelay(true)
+                .setSoKeepAlive(true)
+                .build();
+        PoolingNHttpClientConnectionManager connectionManager;
+        try {
+            connectionManager = new PoolingNHttpClientConnectionManager(new DefaultConnectingIOReactor(ioReactorConfig));
+        } catch (IOReactorException e) {
+            throw new IllegalStateException("can't start http client I/O reactor", e);
+        }
+        connectionManager.setMaxTotal(HTTP_CLIENT_MAX_CONNECTIONS);
+        connectionManager.setDefaultMaxPerRoute(HTTP_CLIENT_MAX_CONNECTIONS_PER_ROUTE);
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(HTTP_CLIENT_CONNECT_TIMEOUT_MILLIS)
+                .setConnectionRequestTimeout(HTTP_CLIENT_CONNECT_TIMEOUT_MILLIS)
+                .setSocketTimeout(HTTP_CLIENT_RESPONSE_TIMEOUT_MILLIS)
+                .build();
+        CloseableHttpAsyncClient httpClient = HttpAsyncClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .build();
+        httpClient.start();
+        return httpClient;
+    }
+
+    /**
+     * post a json body without blocking the caller
+     * @param host  target url
+     * @param body  request body
+     * @return  future of the response content, completed exceptionally on connection, timeout or http errors
+     */
+    public static CompletableFuture<String> postAsync(String host, String body){
+        byte[] bodyBytes = body.getBytes(StandardCharsets.UTF_8);
+        return postAsync(host, bodyBytes, bodyBytes.length).thenApply(content -> new String(content, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * post a json body held in a byte buffer without blocking the caller
+     * @param host  target url
+     * @param body  buffer holding the request body, must not be modified until the future completes
+     * @param length    number of body bytes at the start of the buffer
+     * @return  future of the raw response content, completed exceptionally on connection, timeout or http errors
+     */
+    public static CompletableFuture<byte[]> postAsync(String host, byte[] body, int length){
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        HttpPost request = new HttpPost(host);
+        request.setEntity(new ByteArrayEntity(body, 0, length, ContentType.APPLICATION_JSON));
+        getClient().execute(request, new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                try {
+                    int status = response.getStatusLine().getStatusCode();
+                    byte[] content = EntityUtils.toByteArray(response.getEntity());
+                    if (status >= 300){
+                        result.completeExceptionally(new IllegalStateException("http status " + status + " from " + host + ": "
+                                + new String(content, StandardCharsets.UTF_8)));
+                    } else {
+                        result.complete(content);
+                    }
+                } catch (Exception e) {
+                    result.completeExceptionally(e);
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                result.completeExceptionally(e);
+            }
+
+            @Override
+            public void cancelled() {
+                result.cancel(false);
+            }
+        });
+        return result;
+    }
+
     public static String asyncSinglePostRequest(String host, String body){
         if (null == body || body.isEmpty()){
             return null;
         }
 
         try {
-            final CloseableHttpAsyncClient client = HttpAsyncClients.createDefault();
-            client.start();
-            HttpEntity bodyEntity = new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8));
-            HttpPost request = new HttpPost(host);
-            request.setEntity(bodyEntity);
-            final Future<HttpResponse> future = client.execute(request, null);
-            final HttpResponse response = future.get();
-            client.close();
-            return getRespondContent(response);
+            return postAsync(host, body).get(HTTP_CLIENT_RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
         }catch (Exception e){
             e.printStackTrace();
             return "";
@@ -48,25 +152,15 @@ public class HttpClient {
         }
 
         try {
-            final CloseableHttpAsyncClient client = HttpAsyncClients.createDefault();
-            client.start();
-
-            HashMap<String, Future<HttpResponse>> futures = new HashMap<>();
+            HashMap<String, CompletableFuture<String>> futures = new HashMap<>();
             for (Map.Entry<String, String> bodyEntry : bodyMap.entrySet()) {
-                String body = bodyEntry.getValue();
-                HttpEntity bodyEntity = new ByteArrayEntity(body.getBytes(StandardCharsets.UTF_8));
-                HttpPost request = new HttpPost(host);
-                request.setEntity(bodyEntity);
-                futures.put(bodyEntry.getKey(), client.execute(request, null));
+                futures.put(bodyEntry.getKey(), postAsync(host, bodyEntry.getValue()));
             }
 
             HashMap<String, String> responds = new HashMap<>();
-            for (Map.Entry<String, Future<HttpResponse>> future : futures.entrySet()) {
-                final HttpResponse response = future.getValue().get();
-                responds.put(future.getKey(), getRespondContent(response));
+            for (Map.Entry<String, CompletableFuture<String>> future : futures.entrySet()) {
+                responds.put(future.getKey(), future.getValue().get(HTTP_CLIENT_RESPONSE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS));
             }
-
-            client.close();
             return responds;
         }catch (Exception e){
             e.printStackTrace();
@@ -0,0 +1,185 @@
+package com.sparrowrecsys.online.util;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.ObjIntConsumer;
+
+/**
+ * IntObjectMap, open addressing hash map from primitive int keys to non-null objects.
+ * Keys and values sit in two parallel arrays probed linearly, so a lookup neither boxes the key
+ * nor follows a node pointer, and an entry costs 8 bytes plus load factor slack instead of a node and an Integer.
+ * Iteration follows slot order, not insertion order. Not thread safe, readers may share a map that no longer changes.
+ */
+public class IntObjectMap<V> {
+    private static final int MIN_CAPACITY = 16;
+    //multiplicative hashing constant, spreads clustered ids like MovieLens ones over the table
+    private static final int GOLDEN_RATIO = 0x9E3779B9;
+
+    private int[] keys;
+    //null marks an empty slot
+    private Object[] values;
+    private int size;
+    private int mask;
+    private int shift;
+
+    public IntObjectMap(){
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize  number of entries the map holds without resizing
+     */
+    public IntObjectMap(int expectedSize){
+        allocate(tableSizeFor(expectedSize));
+    }
+
+    private static int tableSizeFor(int expectedSize){
+        //keep the load factor at or below 3/4
+        long needed = Math.max(MIN_CAPACITY, (long) expectedSize * 4 / 3 + 1);
+        int capacity = Integer.highestOneBit((int) Math.min(1 << 30, needed));
+        return capacity < needed ? capacity << 1 : capacity;
+    }
+
+    private void allocate(int capacity){
+        keys = new int[capacity];
+        values = new Object[capacity];
+        mask = capacity - 1;
+        shift = 32 - Integer.numberOfTrailingZeros(capacity);
+        size = 0;
+    }
+
+    private int slot(int key){
+        return (key * GOLDEN_RATIO) >>> shift;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(int key){
+        for (int i = slot(key); ; i = (i + 1) & mask){
+            Object value = values[i];
+            if (null == value){
+                return null;
+            }
+            if (keys[i] == key){
+                return (V) value;
+            }
+        }
+    }
+
+    public boolean containsKey(int key){
+        return null != get(key);
+    }
+
+    /**
+     * map a key to a value
+     * @param key   key
+     * @param value non-null value
+     * @return  previous value of the key, null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public V put(int key, V value){
+        if (null == value){
+            throw new NullPointerException("IntObjectMap doesn't hold null values");
+        }
+        for (int i = slot(key); ; i = (i + 1) & mask){
+            Object previous = values[i];
+            if (null == previous){
+                keys[i] = key;
+                values[i] = value;
+                if (++size > (mask + 1) / 4 * 3){
+                    resize();
+                }
+                return null;
+            }
+            if (keys[i] == key){
+                values[i] = value;
+                return (V) previous;
+            }
+        }
+    }
+
+    /**
+     * remove a key, later entries of its probe run are shifted back so lookups need no tombstones
+     * @param key   key
+     * @return  removed value, null if the key was absent
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(int key){
+        int i = slot(key);
+        while (true){
+            if (null == values[i]){
+                return null;
+            }
+            if (keys[i] == key){
+                break;
+            }
+            i = (i + 1) & mask;
+        }
+        V removed = (V) values[i];
+        int gap = i;
+        for (int j = (gap + 1) & mask; null != values[j]; j = (j + 1) & mask){
+            int home = slot(keys[j]);
+            //move the entry into the gap unless its home slot lies cyclically within (gap, j]
+            if (((j - home) & mask) >= ((j - gap) & mask)){
+                keys[gap] = keys[j];
+                values[gap] = values[j];
+                gap = j;
+            }
+        }
+        values[gap] = null;
+        size--;
+        return removed;
+    }
+
+    private void resize(){
+        int[] oldKeys = keys;
+        Object[] oldValues = values;
+        allocate(oldKeys.length << 1);
+        for (int i = 0; i < oldKeys.length; i++){
+            if (null != oldValues[i]){
+                int j = slot(oldKeys[i]);
+                while (null != values[j]){
+                    j = (j + 1) & mask;
+                }
+                keys[j] = oldKeys[i];
+                values[j] = oldValues[i];
+                size++;
+            }
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear(){
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    //call the action with every value and its key
+    @SuppressWarnings("unchecked")
+    public void forEach(ObjIntConsumer<V> action){
+        for (int i = 0; i < values.length; i++){
+            if (null != values[i]){
+                action.accept((V) values[i], keys[i]);
+            }
+        }
+    }
+
+    //all values, as a new list
+    @SuppressWarnings("unchecked")
+    public List<V> values(){
+        List<V> list = new ArrayList<>(size);
+        for (Object value : values){
+            if (null != value){
+                list.add((V) value);
+            }
+        }
+        return list;
+    }
+}
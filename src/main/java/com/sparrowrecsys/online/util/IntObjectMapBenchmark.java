@@ -0,0 +1,108 @@
+package com.sparrowrecsys.online.util;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.function.IntFunction;
+import java.util.function.Supplier;
+
+/**
+ * IntObjectMapBenchmark, compares heap and lookup time of IntObjectMap and HashMap on a MovieLens sized id space.
+ * Values are one shared object, so heap numbers are the overhead of the maps themselves.
+ *
+ * usage: IntObjectMapBenchmark [keyCount] [maxId] [lookups]
+ * defaults to the MovieLens-25M user ids, 162541 dense ids. Use 62423 209171 for its sparse movie ids.
+ */
+public class IntObjectMapBenchmark {
+    private static final Object VALUE = new Object();
+
+    public static void main(String[] args){
+        int keyCount = args.length > 0 ? Integer.parseInt(args[0]) : 162541;
+        int maxId = args.length > 1 ? Integer.parseInt(args[1]) : keyCount;
+        int lookups = args.length > 2 ? Integer.parseInt(args[2]) : 20000000;
+
+        int[] ids = sampleIds(keyCount, maxId, new Random(42));
+        //requests look up existing ids, in random order
+        int[] queries = new int[lookups];
+        Random random = new Random(7);
+        for (int i = 0; i < lookups; i++){
+            queries[i] = ids[random.nextInt(keyCount)];
+        }
+        System.out.println(keyCount + " keys up to id " + maxId + ", " + lookups + " lookups");
+
+        HashMap<Integer, Object> hashMap = measureHeap("HashMap", () -> {
+            HashMap<Integer, Object> map = new HashMap<>();
+            for (int id : ids){
+                map.put(id, VALUE);
+            }
+            return map;
+        });
+        IntObjectMap<Object> intMap = measureHeap("IntObjectMap", () -> {
+            IntObjectMap<Object> map = new IntObjectMap<>();
+            for (int id : ids){
+                map.put(id, VALUE);
+            }
+            return map;
+        });
+
+        for (int round = 0; round < 5; round++){
+            //early rounds warm up the JIT, the last one is representative
+            measureLookups("HashMap", queries, hashMap::get);
+            measureLookups("IntObjectMap", queries, intMap::get);
+        }
+    }
+
+    //distinct ids in [1, maxId], sorted like MovieLens ids
+    private static int[] sampleIds(int keyCount, int maxId, Random random){
+        boolean[] taken = new boolean[maxId + 1];
+        int[] ids = new int[keyCount];
+        int count = 0;
+        if (keyCount == maxId){
+            for (int id = 1; id <= maxId; id++){
+                ids[count++] = id;
+            }
+            return ids;
+        }
+        while (count < keyCount){
+            int id = 1 + random.nextInt(maxId);
+            if (!taken[id]){
+                taken[id] = true;
+                count++;
+            }
+        }
+        count = 0;
+        for (int id = 1; id <= maxId; id++){
+            if (taken[id]){
+                ids[count++] = id;
+            }
+        }
+        return ids;
+    }
+
+    private static <T> T measureHeap(String name, Supplier<T> builder){
+        long before = usedHeap();
+        T map = builder.get();
+        long after = usedHeap();
+        System.out.println(name + " heap: " + (after - before) / 1024 + " KB");
+        return map;
+    }
+
+    private static long usedHeap(){
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++){
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void measureLookups(String name, int[] queries, IntFunction<Object> lookup){
+        long start = System.nanoTime();
+        int found = 0;
+        for (int query : queries){
+            if (null != lookup.apply(query)){
+                found++;
+            }
+        }
+        long nanos = System.nanoTime() - start;
+        System.out.println(name + " lookup: " + String.format("%.1f", (double) nanos / queries.length) + " ns, " + found + " found");
+    }
+}
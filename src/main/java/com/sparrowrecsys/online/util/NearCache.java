@@ -0,0 +1,320 @@
+package com.sparrowrecsys.online.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * NearCache, in-process cache of values loaded from a remote store like Redis, keyed by int ids.
+ *
+ * Entries are bounded by their estimated size in bytes and evicted by segmented LRU: new entries enter a probation
+ * segment, and an entry hit again moves to a protected segment holding up to 80% of the budget, so one-off ids scanned
+ * once can't flush the ids that keep coming back. Entries expire a fixed time after they are loaded. Concurrent misses
+ * of the same key are coalesced into one load. Cached values are shared between threads and must be immutable.
+ * The key space is striped over independently locked segments.
+ */
+public class NearCache<V> {
+    private static final int STRIPES = 16;
+    //share of a stripe's budget kept for entries hit at least twice
+    private static final int PROTECTED_PERCENT = 80;
+
+    private final Stripe<V>[] stripes;
+    private final long ttlNanos;
+    private final ToIntFunction<V> weigher;
+    //loads in flight, waited on by concurrent misses of the same key
+    private final ConcurrentHashMap<Integer, CompletableFuture<V>> loading;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder coalescedMisses = new LongAdder();
+    private final LongAdder loads = new LongAdder();
+    private final LongAdder failedLoads = new LongAdder();
+    private final LongAdder totalLoadNanos = new LongAdder();
+    private final AtomicLong maxLoadNanos = new AtomicLong();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    /**
+     * @param maxBytes  budget of the estimated size of all entries
+     * @param ttlMillis time an entry is served after it is loaded
+     * @param weigher   estimated size of a value in bytes
+     */
+    @SuppressWarnings("unchecked")
+    public NearCache(long maxBytes, long ttlMillis, ToIntFunction<V> weigher){
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++){
+            stripes[i] = new Stripe<>(maxBytes / STRIPES);
+        }
+        this.ttlNanos = TimeUnit.MILLISECONDS.toNanos(ttlMillis);
+        this.weigher = weigher;
+        this.loading = new ConcurrentHashMap<>();
+    }
+
+    private Stripe<V> stripeOf(int key){
+        return stripes[(key * 0x9E3779B9) >>> 28];
+    }
+
+    /**
+     * get the cached value of a key, loading it on a miss. Threads missing the same key meanwhile wait for that load
+     * @param key   key
+     * @param loader    loads the value of a key, a null value is returned but not cached
+     * @return  value of the key
+     */
+    public V get(int key, IntFunction<V> loader){
+        V cached = getIfPresent(key);
+        if (null != cached){
+            return cached;
+        }
+        CompletableFuture<V> load = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = loading.putIfAbsent(key, load);
+        if (null != inFlight){
+            coalescedMisses.increment();
+            try {
+                return inFlight.join();
+            } catch (CompletionException e) {
+                throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : e;
+            }
+        }
+        long start = System.nanoTime();
+        try {
+            V value = loader.apply(key);
+            long loadNanos = System.nanoTime() - start;
+            loads.increment();
+            totalLoadNanos.add(loadNanos);
+            maxLoadNanos.accumulateAndGet(loadNanos, Math::max);
+            if (null != value){
+                evictions.add(stripeOf(key).put(key, value, weigher.applyAsInt(value), System.nanoTime() + ttlNanos));
+            }
+            load.complete(value);
+            return value;
+        } catch (RuntimeException | Error e) {
+            failedLoads.increment();
+            load.completeExceptionally(e);
+            throw e;
+        } finally {
+            loading.remove(key, load);
+        }
+    }
+
+    //cached value of a key, null if it isn't cached or has expired
+    public V getIfPresent(int key){
+        Stripe<V> stripe = stripeOf(key);
+        Entry<V> entry = stripe.get(key);
+        if (null != entry && entry.expiresAtNanos - System.nanoTime() <= 0){
+            stripe.remove(key, entry);
+            expirations.increment();
+            entry = null;
+        }
+        if (null == entry){
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        return entry.value;
+    }
+
+    public void invalidate(int key){
+        stripeOf(key).remove(key, null);
+    }
+
+    public void invalidateAll(){
+        for (Stripe<V> stripe : stripes){
+            stripe.clear();
+        }
+    }
+
+    //number of cached entries, expired ones included until they are read or evicted
+    public long size(){
+        long size = 0;
+        for (Stripe<V> stripe : stripes){
+            size += stripe.size();
+        }
+        return size;
+    }
+
+    //estimated bytes of all cached entries
+    public long getWeightedSize(){
+        long weight = 0;
+        for (Stripe<V> stripe : stripes){
+            weight += stripe.weight();
+        }
+        return weight;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public double getHitRate(){
+        long hitCount = hits.sum();
+        long requestCount = hitCount + misses.sum();
+        return requestCount == 0 ? 0 : (double) hitCount / requestCount;
+    }
+
+    //misses served by another thread's load of the same key
+    public long getCoalescedMisses() {
+        return coalescedMisses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
+
+    public long getLoads() {
+        return loads.sum();
+    }
+
+    public long getFailedLoads() {
+        return failedLoads.sum();
+    }
+
+    //average duration of successful loads
+    public double getAverageLoadMillis(){
+        long loadCount = loads.sum();
+        return loadCount == 0 ? 0 : totalLoadNanos.sum() / 1e6 / loadCount;
+    }
+
+    public double getMaxLoadMillis(){
+        return maxLoadNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("entries=%d bytes=%d hitRate=%.3f hits=%d misses=%d coalescedMisses=%d loads=%d failedLoads=%d "
+                        + "avgLoadMillis=%.2f maxLoadMillis=%.2f evictions=%d expirations=%d",
+                size(), getWeightedSize(), getHitRate(), getHits(), getMisses(), getCoalescedMisses(), getLoads(), getFailedLoads(),
+                getAverageLoadMillis(), getMaxLoadMillis(), getEvictions(), getExpirations());
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final int weight;
+        final long expiresAtNanos;
+        boolean isProtected;
+
+        Entry(V value, int weight, long expiresAtNanos){
+            this.value = value;
+            this.weight = weight;
+            this.expiresAtNanos = expiresAtNanos;
+            this.isProtected = false;
+        }
+    }
+
+    /**
+     * Stripe, segmented LRU over a part of the key space, both segments in least recently used first order
+     */
+    private static class Stripe<V> {
+        final long maxWeight;
+        final long maxProtectedWeight;
+        final LinkedHashMap<Integer, Entry<V>> probation = new LinkedHashMap<>();
+        final LinkedHashMap<Integer, Entry<V>> protectedEntries = new LinkedHashMap<>();
+        long probationWeight;
+        long protectedWeight;
+
+        Stripe(long maxWeight){
+            this.maxWeight = maxWeight;
+            this.maxProtectedWeight = maxWeight * PROTECTED_PERCENT / 100;
+        }
+
+        //entry of a key, moved to the most recently used end of the protected segment
+        synchronized Entry<V> get(int key){
+            Entry<V> entry = probation.remove(key);
+            if (null != entry){
+                probationWeight -= entry.weight;
+                entry.isProtected = true;
+            } else {
+                entry = protectedEntries.remove(key);
+                if (null == entry){
+                    return null;
+                }
+                protectedWeight -= entry.weight;
+            }
+            protectedEntries.put(key, entry);
+            protectedWeight += entry.weight;
+            //overflowing protected entries get a second chance in probation
+            Iterator<Map.Entry<Integer, Entry<V>>> eldest = protectedEntries.entrySet().iterator();
+            while (protectedWeight > maxProtectedWeight && eldest.hasNext()){
+                Map.Entry<Integer, Entry<V>> demoted = eldest.next();
+                eldest.remove();
+                protectedWeight -= demoted.getValue().weight;
+                demoted.getValue().isProtected = false;
+                probation.put(demoted.getKey(), demoted.getValue());
+                probationWeight += demoted.getValue().weight;
+            }
+            return entry;
+        }
+
+        /**
+         * add or replace the entry of a key as most recently used in probation
+         * @return  number of entries evicted to make room
+         */
+        synchronized int put(int key, V value, int weight, long expiresAtNanos){
+            remove(key, null);
+            if (weight > maxWeight){
+                return 0;
+            }
+            probation.put(key, new Entry<>(value, weight, expiresAtNanos));
+            probationWeight += weight;
+            int evicted = 0;
+            while (probationWeight + protectedWeight > maxWeight){
+                LinkedHashMap<Integer, Entry<V>> victims = probation.isEmpty() ? protectedEntries : probation;
+                Iterator<Entry<V>> eldest = victims.values().iterator();
+                Entry<V> victim = eldest.next();
+                eldest.remove();
+                if (victim.isProtected){
+                    protectedWeight -= victim.weight;
+                } else {
+                    probationWeight -= victim.weight;
+                }
+                evicted++;
+            }
+            return evicted;
+        }
+
+        //remove the entry of a key, only if it is the given one unless that is null
+        synchronized void remove(int key, Entry<V> expected){
+            LinkedHashMap<Integer, Entry<V>> segment = probation.containsKey(key) ? probation : protectedEntries;
+            Entry<V> entry = segment.get(key);
+            if (null == entry || (null != expected && expected != entry)){
+                return;
+            }
+            segment.remove(key);
+            if (entry.isProtected){
+                protectedWeight -= entry.weight;
+            } else {
+                probationWeight -= entry.weight;
+            }
+        }
+
+        synchronized void clear(){
+            probation.clear();
+            protectedEntries.clear();
+            probationWeight = 0;
+            protectedWeight = 0;
+        }
+
+        synchronized int size(){
+            return probation.size() + protectedEntries.size();
+        }
+
+        synchronized long weight(){
+            return probationWeight + protectedWeight;
+        }
+    }
+}
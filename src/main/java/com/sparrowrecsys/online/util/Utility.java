@@ -2,13 +2,24 @@ package com.sparrowrecsys.online.util;
 
 import com.sparrowrecsys.online.model.Embedding;
 
+import java.io.File;
+
 public class Utility {
     public static Embedding parseEmbStr(String embStr){
         String[] embStrings = embStr.split("\\s");
-        Embedding emb = new Embedding();
-        for (String element : embStrings) {
-            emb.addDim(Float.parseFloat(element));
+        float[] vector = new float[embStrings.length];
+        for (int i = 0; i < embStrings.length; i++) {
+            vector[i] = Float.parseFloat(embStrings[i]);
+        }
+        return new Embedding(vector);
+    }
+
+    //replace the extension of a file path, e.g. item2vecEmb.csv -> item2vecEmb.bin
+    public static String replaceExtension(String path, String extension){
+        int dot = path.lastIndexOf('.');
+        if (dot > path.lastIndexOf(File.separatorChar)){
+            return path.substring(0, dot) + extension;
         }
-        return emb;
+        return path + extension;
     }
 }